@@ -1,5 +1,6 @@
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -11,46 +12,216 @@ public class BPlusTree {
     int _rootPageNum;
     String _tableName;
     RandomAccessFile _tblFile;
-    List<Integer> _leavesNum;
 
     BPlusTree(int rootPageNum, String tableName, RandomAccessFile tblFile) throws IOException {
         _tableName = tableName;
         _tblFile = tblFile;
         _rootPageNum = rootPageNum;
-        _leavesNum = getAllLeaves();
     }
 
-    // This method does a traversal on the B+1 tree and returns the leaf pages in order
+    // Returns the leaf pages in order, read along the leaf sibling chain
     public List<Integer> getAllLeaves() throws IOException {
         List<Integer> leafPages = new ArrayList<>();
-        _tblFile.seek(_rootPageNum * DavisBaseBinaryFile.pageSize);
-        // if root is leaf page read directly return one one, no traversal required
-        PageType rootPageType = PageType.byteToPageType(_tblFile.readByte());
-        if (rootPageType == PageType.tblLEAF) {
-            if (!leafPages.contains(_rootPageNum))
-                leafPages.add(_rootPageNum);
-        } else
-            addLeaves(_rootPageNum, leafPages);
+        for (int pageNo : scanLeaves())
+            leafPages.add(pageNo);
         return leafPages;
     }
 
-    // recursively adds leaves
-    private void addLeaves(int interiorPageNo, List<Integer> leafPages) throws IOException {
-        Page interiorPage = new Page(interiorPageNo, _tblFile);
+    // The leaves in scan order, found one at a time by a LeafCursor from the left most leaf
+    public Iterable<Integer> scanLeaves() throws IOException {
+        int leftMostLeaf = getLeftMostLeaf();
+        return () -> new LeafCursor(_tblFile, leftMostLeaf, Integer.MAX_VALUE);
+    }
+
+    /*
+     * The leaf that holds the row id, -1 if the table has no such row. Every interior cell keeps the
+     * largest row id of its left child, so the first key not below the row id (a binary search of
+     * the sorted keys) names the child to descend into; past the last key it is the right most child.
+     */
+    public int find(int rowId) throws IOException {
+        int pageNo = findLeaf(_tblFile, _rootPageNum, rowId);
+        ByteBuffer page = BufferPool.pin(_tblFile, pageNo);
+        try {
+            if (PaxLeaf.isPax(page))
+                return PaxLeaf.findRow(page, rowId) != -1 ? pageNo : -1;
+            return Page.findCell(page, rowId) != 0 ? pageNo : -1;
+        } finally {
+            BufferPool.unpin(_tblFile, pageNo, false);
+        }
+    }
+
+    // the leaf a row id belongs in, whether or not the row is there: the first leaf of a range scan
+    public static int findLeaf(RandomAccessFile tblFile, int rootPageNo, int rowId) throws IOException {
+        int pageNo = rootPageNo;
+        while (PageType.getPageType(tblFile, pageNo) == PageType.tblINTERIOR) {
+            Page interiorPage = new Page(pageNo, tblFile);
+            Map.Entry<Integer, Integer> child = interiorPage._leftChildrenMap.ceilingEntry(rowId);
+            pageNo = child != null ? child.getValue() : interiorPage._NumOfRight;
+        }
+        return pageNo;
+    }
+
+    /*
+     * The row ids a statement with these WHERE conditions can match, {low, high} both included. Only
+     * the rowid conditions every matching row must meet narrow it, an unbounded side is the smallest
+     * or largest int.
+     */
+    static long[] getRowIdRange(WhereCondition condition_1, WhereCondition condition_2, int whereConnect) {
+        long[] range = { Integer.MIN_VALUE, Integer.MAX_VALUE };
+        if (condition_1 != null && (whereConnect != 2 || condition_2 == null))
+            narrowRowIdRange(range, condition_1);
+        if (condition_2 != null && whereConnect == 1)
+            narrowRowIdRange(range, condition_2);
+        return range;
+    }
+
+    private static void narrowRowIdRange(long[] range, WhereCondition condition) {
+        if (condition._columnOrdinal != WhereCondition.rowIdOrdinal)
+            return;
+        long value = Long.parseLong(condition._comparedValue);
+        switch (condition.getOperation()) {
+            case EQUAL:
+                range[0] = Math.max(range[0], value);
+                range[1] = Math.min(range[1], value);
+                break;
+            case GREATER:
+                range[0] = Math.max(range[0], value + 1);
+                break;
+            case GREATEROREQUAL:
+                range[0] = Math.max(range[0], value);
+                break;
+            case LESS:
+                range[1] = Math.min(range[1], value - 1);
+                break;
+            case LESSOREQUAL:
+                range[1] = Math.min(range[1], value);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /*
+     * The leaves a statement with these WHERE conditions has to read. A rowid = N condition is looked
+     * up with find(). A rowid range seeks its first leaf through the interior pages and follows the
+     * sibling chain until a leaf reaches the upper bound. A condition on a column with an index
+     * (see TableIndex) reads the leaves of the row ids the index gives. Anything else scans every
+     * leaf. The rows of the leaves are still checked against the conditions.
+     */
+    public Iterable<Integer> getLeaves(WhereCondition condition_1, WhereCondition condition_2, int whereConnect) throws IOException {
+        ClusteredKey clusteredKey = BufferPool.getHeader(_tblFile)._clusteredKey;
+        if (clusteredKey != null)
+            return getKeyLeaves(clusteredKey, condition_1, condition_2, whereConnect);
+        long[] range = getRowIdRange(condition_1, condition_2, whereConnect);
+        if (range[0] > range[1])
+            return Collections.emptyList();
+        if (range[0] == range[1]) {
+            int pageNo = find((int) range[0]);
+            return pageNo == -1 ? Collections.emptyList() : Collections.singletonList(pageNo);
+        }
+
+        List<Integer> rowIds = TableIndex.findRowIds(_tableName, condition_1, condition_2, whereConnect);
+        if (rowIds != null)
+            return () -> new RowIdCursor(this, rowIds, range);
+        if (range[0] == Integer.MIN_VALUE && range[1] == Integer.MAX_VALUE)
+            return scanLeaves();
+
+        int firstLeaf = findLeaf(_tblFile, _rootPageNum, (int) range[0]);
+        return () -> new LeafCursor(_tblFile, firstLeaf, range[1]);
+    }
+
+    /*
+     * The same for a clustered table, whose tree is keyed by the clustered key (see ClusteredTable):
+     * a condition on every column of the key is a single descent, a range of keys seeks its first
+     * leaf and follows the sibling chain until a leaf reaches the high key, and a condition on a
+     * column with an index reads the leaves of the keys the index gives.
+     */
+    private Iterable<Integer> getKeyLeaves(ClusteredKey clusteredKey, WhereCondition condition_1, WhereCondition condition_2, int whereConnect) throws IOException {
+        byte[][] range = clusteredKey.getRange(condition_1, condition_2, whereConnect);
+        if (range != null && ClusteredKey.compare(range[0], range[1]) > 0)
+            return Collections.emptyList();
+        if (range != null && Arrays.equals(range[0], range[1])) {
+            int pageNo = ClusteredTable.find(_tblFile, clusteredKey, range[0]);
+            return pageNo == -1 ? Collections.emptyList() : Collections.singletonList(pageNo);
+        }
+
+        List<byte[]> keys = TableIndex.findKeys(_tableName, condition_1, condition_2, whereConnect);
+        if (keys != null)
+            return () -> new KeyCursor(_tblFile, clusteredKey, keys, range);
+        if (range == null)
+            return scanLeaves();
+
+        int firstLeaf = ClusteredTable.findLeaf(_tblFile, clusteredKey, range[0]);
+        return () -> new LeafCursor(_tblFile, firstLeaf, clusteredKey, range[1]);
+    }
+
+    // Returns the left most leaf page, the start of the leaf sibling chain
+    public int getLeftMostLeaf() throws IOException {
+        return getLeftMostLeaf(_tblFile, _rootPageNum);
+    }
 
-        for (int lastRowIdInPage : interiorPage._leftChildrenMap.keySet()) {
-            if (PageType.getPageType(_tblFile, interiorPage._leftChildrenMap.get(lastRowIdInPage)) == PageType.tblLEAF){
-                if (!leafPages.contains(interiorPage._leftChildrenMap.get(lastRowIdInPage)))
-                    leafPages.add(interiorPage._leftChildrenMap.get(lastRowIdInPage));
-            }else
-                addLeaves(interiorPage._leftChildrenMap.get(lastRowIdInPage), leafPages);
+    // the same without listing the leaves first, for a scan that follows the sibling chain
+    public static int getLeftMostLeaf(RandomAccessFile tblFile, int rootPageNo) throws IOException {
+        int pageNo = rootPageNo;
+        while (PageType.getPageType(tblFile, pageNo) == PageType.tblINTERIOR) {
+            Page interiorPage = new Page(pageNo, tblFile);
+            if (interiorPage._leftChildrenMap.isEmpty())
+                pageNo = interiorPage._NumOfRight;
+            else
+                pageNo = interiorPage._leftChildrenMap.firstEntry().getValue();
         }
+        return pageNo;
+    }
+
+    /*
+     * Unlink the emptied leaves from their parent and from the sibling chain, and put them on the
+     * free page list so Page.addNewPage reuses them. The root and leaves that are the right most
+     * child of an interior page (the right most one takes the inserts) stay in the tree.
+     */
+    public int removeEmptyLeaves(Set<Integer> emptyLeaves) throws IOException {
+        if (emptyLeaves.isEmpty())
+            return 0;
+
+        List<Page> interiorPages = new ArrayList<>();
+        addInteriorPages(_rootPageNum, interiorPages, new HashSet<>());
+
+        Set<Integer> removable = new HashSet<>(emptyLeaves);
+        removable.remove(_rootPageNum);
+        for (Page interiorPage : interiorPages)
+            removable.remove(interiorPage._NumOfRight);
+        if (removable.isEmpty())
+            return 0;
 
-        if (PageType.getPageType(_tblFile, interiorPage._NumOfRight) == PageType.tblLEAF){
-            if (!leafPages.contains(interiorPage._NumOfRight))
-                leafPages.add(interiorPage._NumOfRight);
-        }else
-            addLeaves(interiorPage._NumOfRight, leafPages);
+        // skip the removed leaves in the sibling chain
+        int previousLeaf = -1;
+        int previousRight = -1;
+        for (int leafNo = getLeftMostLeaf(); leafNo != -1; leafNo = Page.getRightPageNo(_tblFile, leafNo)) {
+            if (removable.contains(leafNo))
+                continue;
+            if (previousLeaf != -1 && previousRight != leafNo)
+                new Page(previousLeaf, _tblFile).setRightPageNo(leafNo);
+            previousLeaf = leafNo;
+            previousRight = Page.getRightPageNo(_tblFile, leafNo);
+        }
+
+        for (Page interiorPage : interiorPages)
+            for (int childPageNo : new ArrayList<>(interiorPage._leftChildrenMap.values()))
+                if (removable.contains(childPageNo))
+                    interiorPage.removeLeftChild(childPageNo);
+
+        for (int leafNo : removable)
+            Page.freePage(_tblFile, leafNo);
+        return removable.size();
+    }
+
+    private void addInteriorPages(int pageNo, List<Page> interiorPages, Set<Integer> visited) throws IOException {
+        if (!visited.add(pageNo) || PageType.getPageType(_tblFile, pageNo) != PageType.tblINTERIOR)
+            return;
+        Page interiorPage = new Page(pageNo, _tblFile);
+        interiorPages.add(interiorPage);
+        for (int childPageNo : interiorPage._leftChildrenMap.values())
+            addInteriorPages(childPageNo, interiorPages, visited);
+        addInteriorPages(interiorPage._NumOfRight, interiorPages, visited);
     }
 
     // Returns the right most child page for inserting new records
@@ -62,3 +233,139 @@ public class BPlusTree {
             return rootPageNo;
     }
 }
+
+/*
+ * Walks the leaves in row id order: it starts at one leaf and follows the right sibling pointers,
+ * reading only the page header of each leaf, until the chain ends or a leaf holds the last row id
+ * wanted. Once the scan goes past its first leaf it is taken as a full scan: the next readAheadPages
+ * leaves listed by the parent of the current leaf are read ahead, so their I/O overlaps the
+ * decoding of the current leaf.
+ */
+class LeafCursor implements Iterator<Integer> {
+    RandomAccessFile _tblFile;
+    int _next;
+    long _lastRowId;
+    // the last key wanted in a clustered table, instead of the last row id
+    ClusteredKey _clusteredKey;
+    byte[] _lastKey;
+    int _count = 0;
+    // the children of the interior page the last leaf read ahead came from, in row id order
+    List<Integer> _siblings = new ArrayList<>();
+    int _readAheadEnd = 0;  // the siblings before it were already read ahead
+
+    LeafCursor(RandomAccessFile tblFile, int firstLeaf, long lastRowId) {
+        _tblFile = tblFile;
+        _next = firstLeaf;
+        _lastRowId = lastRowId;
+    }
+
+    LeafCursor(RandomAccessFile tblFile, int firstLeaf, ClusteredKey clusteredKey, byte[] lastKey) {
+        this(tblFile, firstLeaf, Integer.MAX_VALUE);
+        _clusteredKey = clusteredKey;
+        _lastKey = lastKey;
+    }
+
+    public boolean hasNext() {
+        return _next != -1;
+    }
+
+    public Integer next() {
+        if (_next == -1)
+            throw new NoSuchElementException();
+        int pageNo = _next;
+        try {
+            ByteBuffer page = BufferPool.pin(_tblFile, pageNo);
+            int parentPageNo;
+            try {
+                _next = page.getInt(6);
+                parentPageNo = page.getInt(0x0A);
+                // an emptied leaf has no last row id, the range goes on past it
+                if (_lastRowId < Integer.MAX_VALUE && page.getShort(2) > 0 && DavisBaseBinaryFile.getPageLastID(page) >= _lastRowId)
+                    _next = -1;
+                if (_lastKey != null && ClusteredTable.reaches(_clusteredKey, page, _lastKey))
+                    _next = -1;
+            } finally {
+                BufferPool.unpin(_tblFile, pageNo, false);
+            }
+            if (_count > 0 && _next != -1 && BufferPool.readAheadPages > 0)
+                readAhead(pageNo, parentPageNo);
+        } catch (IOException e) {
+            System.out.println("ERROR: unable to read the leaf page " + pageNo + " " + e.getMessage());
+            _next = -1;
+        }
+        _count++;
+        return pageNo;
+    }
+
+    private void readAhead(int pageNo, int parentPageNo) {
+        int index = _siblings.indexOf(pageNo);
+        if (index == -1 && parentPageNo != -1) {
+            // the scan went on to the children of another interior page
+            Page parentPage = new Page(parentPageNo, _tblFile);
+            if (parentPage._pageType != PageType.tblINTERIOR)
+                return;
+            _siblings = new ArrayList<>(parentPage._leftChildrenMap.values());
+            _siblings.add(parentPage._NumOfRight);
+            _readAheadEnd = 0;
+            index = _siblings.indexOf(pageNo);
+        }
+        if (index == -1)
+            return;
+        int end = Math.min(_siblings.size(), index + 1 + BufferPool.readAheadPages);
+        if (_readAheadEnd < end) {
+            BufferPool.prefetch(_tblFile, _siblings.subList(Math.max(_readAheadEnd, index + 1), end));
+            _readAheadEnd = end;
+        }
+    }
+}
+
+/*
+ * The leaves of a list of row ids in order, each one once: a row id is looked up with find(), then
+ * the row ids up to the last one of its leaf are passed over. A leaf is found when it is asked for,
+ * the rows read before may have changed the tree.
+ */
+class RowIdCursor implements Iterator<Integer> {
+    BPlusTree _bPlusTree;
+    List<Integer> _rowIds;
+    long[] _range;
+    int _position = 0;
+    int _next = -1;
+    long _lastRowId = Long.MIN_VALUE;    // the last row id of the last leaf found
+
+    RowIdCursor(BPlusTree bPlusTree, List<Integer> rowIds, long[] range) {
+        _bPlusTree = bPlusTree;
+        _rowIds = rowIds;
+        _range = range;
+    }
+
+    // the next leaf is only looked up once the rows of the last one were handled
+    public boolean hasNext() {
+        if (_next == -1)
+            advance();
+        return _next != -1;
+    }
+
+    public Integer next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        int pageNo = _next;
+        _next = -1;
+        return pageNo;
+    }
+
+    private void advance() {
+        while (_next == -1 && _position < _rowIds.size()) {
+            int rowId = _rowIds.get(_position++);
+            if (rowId <= _lastRowId || rowId < _range[0] || rowId > _range[1])
+                continue;
+            try {
+                _next = _bPlusTree.find(rowId);
+                if (_next != -1)
+                    _lastRowId = DavisBaseBinaryFile.getPageLastID(_bPlusTree._tblFile, _next);
+            } catch (IOException e) {
+                System.out.println("ERROR: unable to find the row " + rowId + " " + e.getMessage());
+                _position = _rowIds.size();
+            }
+        }
+    }
+}
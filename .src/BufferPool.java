@@ -0,0 +1,653 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Author: Bo-Yu Huang
+ * Date: 8/2/20
+ */
+
+class Frame{
+    String _filePath;
+    int _pageNum;
+    ByteBuffer _page;
+    int _pinCount;
+    boolean _isDirty;
+    boolean _referenced;
+    // changed since the page was last logged, it must not be written to the table file before that
+    boolean _isUnlogged;
+    long _pageLSN;
+    // LSN of the first change logged since the page was last written back, 0 if it is clean on disk
+    long _recLSN;
+
+    Frame(String filePath, int pageNum, ByteBuffer page){
+        _filePath = filePath;
+        _pageNum = pageNum;
+        _page = page;
+    }
+}
+
+public class BufferPool {
+    /*
+     * Size of the shared page cache in MB, it can be changed with --buffer-pool-mb at startup.
+     * Every page of every .tbl file is read and written through these frames. The changes of a
+     * statement are made durable by the write-ahead log when it ends (WriteAheadLog.commit), the
+     * dirty pages themselves are only written back when they get evicted or on exit.
+     * A page is never written back before its log record is on disk.
+     */
+    static int bufferPoolSizeMB = 8;
+
+    /*
+     * With --storage=mmap every table file is mapped with FileChannel.map: a miss copies the page
+     * out of the mapped memory and a write-back copies it in, neither costs a read or write syscall.
+     * The frame is a copy of its own, not a view on the mapping, since the OS may write a mapped
+     * page to the file at any time: a change only reaches the mapping once its log record is on
+     * disk, like any other write-back.
+     */
+    static boolean useMappedIO = false;
+    static HashMap<String, MappedFile> _mappedFiles = new HashMap<>();
+
+    // tables created WITH (compression = deflate): their frames hold the inflated pages, never mapped
+    static HashMap<String, CompressedFile> _compressedFiles = new HashMap<>();
+
+    // all cached frames in clock order, and <file path, <page number, frame>> for look up
+    static List<Frame> _frames = new ArrayList<>();
+    static HashMap<String, HashMap<Integer, Frame>> _pageTable = new HashMap<>();
+    static int _clockHand = 0;
+    static long _bytesCached = 0;
+
+    // handles given out to the callers, and the pool's own read/write handle of each file
+    static HashMap<RandomAccessFile, String> _openFiles = new HashMap<>();
+    static HashMap<String, RandomAccessFile> _backingFiles = new HashMap<>();
+
+    // file header (page 0) of each file, it tells the page size of the file
+    static HashMap<String, FileHeader> _headers = new HashMap<>();
+
+    // frames and headers changed since the last commit, and headers not written back yet
+    static List<Frame> _unloggedFrames = new ArrayList<>();
+    static HashSet<String> _unloggedHeaders = new HashSet<>();
+    static HashSet<String> _dirtyHeaders = new HashSet<>();
+    // last logged image and first unwritten LSN of each dirty header
+    static HashMap<String, byte[]> _loggedHeaders = new HashMap<>();
+    static HashMap<String, Long> _headerRecLSNs = new HashMap<>();
+
+    /*
+     * A statement may change more pages than the pool holds. When every frame that could go was
+     * changed by the running statement, stealBatchPages of them are stolen: the images their pages
+     * have on disk are logged as undo records and forced first, then the frames are written over
+     * them (see steal). Recovery puts the undo images of a statement that did not commit back, and
+     * the commit forces the stolen pages to the table files instead of logging them.
+     */
+    static int stealBatchPages = 16;
+    // files with stolen pages, or pages written straight to them (writeNew), to force at commit
+    static HashSet<String> _stolenFiles = new HashSet<>();
+    // the log is needed from this LSN on until the statement that stole pages commits
+    static long _stealRedoLSN = 0;
+
+    /*
+     * Read-ahead: the pages a scan is about to need are read by a few I/O threads while the scan
+     * decodes the current page (BPlusTree.scanLeaves), readAheadPages pages ahead, 0 turns it off
+     * (--read-ahead). A pin of a page being read ahead waits for that read instead of reading again.
+     */
+    static int readAheadPages = 8;
+    static int ioThreadCount = 4;
+    static ExecutorService _ioThreads;
+    static HashSet<String> _readsAhead = new HashSet<>();
+    // number of pages written to each file, a read ahead that raced with a write is dropped
+    static HashMap<String, Long> _pageWrites = new HashMap<>();
+
+    static long getCapacity() { return (long) bufferPoolSizeMB * 1024 * 1024; }
+
+    // Open a table file whose pages are cached by the pool
+    public static synchronized RandomAccessFile open(String path, String mode) throws FileNotFoundException {
+        RandomAccessFile file = new RandomAccessFile(path, mode);
+        _openFiles.put(file, new File(path).getAbsolutePath());
+        return file;
+    }
+
+    // Close a table file, its dirty pages stay cached, they are already logged or will be at commit
+    public static synchronized void close(RandomAccessFile file) throws IOException {
+        _openFiles.remove(file);
+        file.close();
+    }
+
+    // Pin the page in memory (read it from disk if it is not cached) and return its frame
+    public static synchronized ByteBuffer pin(RandomAccessFile file, int pageNum) throws IOException {
+        String path = getPath(file);
+        Frame frame = getFrame(path, pageNum);
+        while (frame == null && _readsAhead.contains(path + "#" + pageNum)) {
+            try {
+                BufferPool.class.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for page " + pageNum);
+            }
+            frame = getFrame(path, pageNum);
+        }
+        if (frame == null)
+            frame = addFrame(path, pageNum, readPage(path, pageNum));
+        frame._pinCount++;
+        frame._referenced = true;
+        return frame._page;
+    }
+
+    // Pin a page that was just appended to the file, there is nothing to read from disk
+    public static synchronized ByteBuffer pinNew(RandomAccessFile file, int pageNum) throws IOException {
+        String path = getPath(file);
+        Frame frame = getFrame(path, pageNum);
+        if (frame == null)
+            frame = addFrame(path, pageNum, ByteBuffer.allocate(getHeader(path)._pageSize));
+        Page.writeBytes(frame._page, 0, new byte[frame._page.capacity()]);
+        frame._pinCount++;
+        frame._referenced = true;
+        setDirty(frame);
+        return frame._page;
+    }
+
+    /*
+     * Write a page past the page count of the file straight to it, neither cached nor logged (LOAD
+     * DATA). Nothing links to it until the statement commits, the commit forces it to disk first,
+     * as it does with stolen pages.
+     */
+    public static synchronized void writeNew(RandomAccessFile file, int pageNum, ByteBuffer page) throws IOException {
+        String path = getPath(file);
+        writePage(new Frame(path, pageNum, page));
+        _stolenFiles.add(path);
+    }
+
+    // Start reading the pages that are not cached yet, without waiting for them
+    public static synchronized void prefetch(RandomAccessFile file, List<Integer> pageNums) {
+        if (useMappedIO || readAheadPages == 0 || pageNums.isEmpty())
+            return;
+        String path = getPath(file);
+        int pageSize;
+        RandomAccessFile backingFile;
+        CompressedFile compressedFile;
+        try {
+            pageSize = getHeader(path)._pageSize;
+            backingFile = getBackingFile(path);
+            compressedFile = getCompressedFile(path);
+        } catch (IOException e) {
+            return;
+        }
+        // pages read ahead must not push each other out of the pool before they are used
+        if ((long) pageSize * (pageNums.size() + 1) > getCapacity())
+            return;
+
+        if (_ioThreads == null) {
+            _ioThreads = Executors.newFixedThreadPool(ioThreadCount, task -> {
+                Thread thread = new Thread(task, "read-ahead");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        long pageWrites = _pageWrites.getOrDefault(path, 0L);
+        for (int pageNum : pageNums) {
+            if (pageNum < 0 || getFrame(path, pageNum) != null || !_readsAhead.add(path + "#" + pageNum))
+                continue;
+            _ioThreads.submit(() -> readAhead(path, backingFile, compressedFile, pageNum, pageSize, pageWrites));
+        }
+    }
+
+    // Runs on an I/O thread: the page is read without holding the pool, then cached
+    private static void readAhead(String path, RandomAccessFile backingFile, CompressedFile compressedFile,
+                                  int pageNum, int pageSize, long pageWrites) {
+        ByteBuffer page = ByteBuffer.allocate(pageSize);
+        try {
+            long pageStart = (long) pageNum * pageSize;
+            if (compressedFile != null)
+                page.put(compressedFile.read(pageNum));
+            else
+                while (page.hasRemaining() && backingFile.getChannel().read(page, pageStart + page.position()) > 0)
+                    ;
+        } catch (IOException e) {
+            page = null;
+        }
+        synchronized (BufferPool.class) {
+            _readsAhead.remove(path + "#" + pageNum);
+            // the page may have been cached or written meanwhile, or the file dropped
+            if (page != null && !page.hasRemaining() && getFrame(path, pageNum) == null
+                    && _backingFiles.get(path) == backingFile && _pageWrites.getOrDefault(path, 0L) == pageWrites) {
+                page.clear();
+                addFrame(path, pageNum, page);
+            }
+            BufferPool.class.notifyAll();
+        }
+    }
+
+    // The header of the file, read from page 0 the first time the file is used
+    public static synchronized FileHeader getHeader(RandomAccessFile file) throws IOException {
+        return getHeader(getPath(file));
+    }
+
+    // The cached header was modified, it is logged at commit and written back to page 0 like a page
+    public static synchronized void writeHeader(RandomAccessFile file) throws IOException {
+        String path = getPath(file);
+        getHeader(path);
+        _unloggedHeaders.add(path);
+        _dirtyHeaders.add(path);
+    }
+
+    public static int getPageSize(RandomAccessFile file) throws IOException {
+        return getHeader(file)._pageSize;
+    }
+
+    public static synchronized void unpin(RandomAccessFile file, int pageNum, boolean isDirty) {
+        Frame frame = getFrame(getPath(file), pageNum);
+        if (frame == null)
+            return;
+        if (frame._pinCount > 0)
+            frame._pinCount--;
+        if (isDirty)
+            setDirty(frame);
+    }
+
+    /*
+     * Log the image of every page and header changed since the last commit, then a commit record.
+     * Returns the LSN of the commit record, 0 if nothing was changed.
+     */
+    static synchronized long logChanges() throws IOException {
+        if (_unloggedFrames.isEmpty() && _unloggedHeaders.isEmpty() && _stolenFiles.isEmpty())
+            return 0;
+        // the stolen pages are in the table files already, they only have to reach the disk
+        for (String path : _stolenFiles)
+            force(path);
+        _stolenFiles.clear();
+        _stealRedoLSN = 0;
+        for (Frame frame : _unloggedFrames) {
+            frame._pageLSN = WriteAheadLog.appendPage(frame._filePath, frame._pageNum, frame._page);
+            frame._isUnlogged = false;
+            if (frame._recLSN == 0)
+                frame._recLSN = frame._pageLSN;
+        }
+        for (String path : _unloggedHeaders) {
+            FileHeader header = _headers.get(path);
+            long lsn = WriteAheadLog.appendHeader(path, header);
+            _loggedHeaders.put(path, header.toBytes());
+            _headerRecLSNs.putIfAbsent(path, lsn);
+        }
+        _unloggedFrames.clear();
+        _unloggedHeaders.clear();
+        return WriteAheadLog.appendCommit();
+    }
+
+    // Write every dirty page of the file back to disk
+    public static synchronized void flushFile(String filePath) throws IOException {
+        String path = new File(filePath).getAbsolutePath();
+        HashMap<Integer, Frame> filePages = _pageTable.get(path);
+        if (filePages == null)
+            return;
+        for (Frame frame : filePages.values())
+            writeBack(frame);
+        writeBackHeader(path);
+    }
+
+    // Dirty pages whose changes are all logged, the checkpoint writes them back
+    static synchronized List<Frame> getDirtyFrames() {
+        List<Frame> dirtyFrames = new ArrayList<>();
+        for (Frame frame : _frames)
+            if (frame._isDirty && !frame._isUnlogged)
+                dirtyFrames.add(frame);
+        return dirtyFrames;
+    }
+
+    // Write back a batch of frames, skipping the ones evicted or being changed since
+    static synchronized void writeBack(List<Frame> frames) throws IOException {
+        for (Frame frame : frames)
+            if (getFrame(frame._filePath, frame._pageNum) == frame && frame._pinCount == 0)
+                writeBack(frame);
+    }
+
+    static synchronized void writeBackHeaders() throws IOException {
+        for (String path : new ArrayList<>(_dirtyHeaders))
+            writeBackHeader(path);
+    }
+
+    // The log is needed from the oldest change that is not written back yet
+    static synchronized long getRedoLSN() {
+        long redoLSN = WriteAheadLog._nextLSN;
+        for (Frame frame : _frames)
+            if (frame._recLSN != 0)
+                redoLSN = Math.min(redoLSN, frame._recLSN);
+        for (long recLSN : _headerRecLSNs.values())
+            redoLSN = Math.min(redoLSN, recLSN);
+        if (_stealRedoLSN != 0)
+            redoLSN = Math.min(redoLSN, _stealRedoLSN);
+        return redoLSN;
+    }
+
+    // Record the checkpoint LSN in the header of every file in use
+    static synchronized void setCheckpointLSN(long checkpointLSN) throws IOException {
+        for (String path : _headers.keySet()) {
+            RandomAccessFile backingFile = _backingFiles.get(path);
+            if (backingFile == null)
+                continue;
+            _headers.get(path)._checkpointLSN = checkpointLSN;
+            ByteBuffer lsn = ByteBuffer.allocate(Long.BYTES).putLong(0, checkpointLSN);
+            FileHeader.writeFully(backingFile, FileHeader.checkpointLSNOffset, lsn);
+        }
+    }
+
+    // The files written through the pool, so they can be forced without holding the pool
+    static synchronized List<FileChannel> getChannels() {
+        List<FileChannel> channels = new ArrayList<>();
+        for (RandomAccessFile backingFile : _backingFiles.values())
+            channels.add(backingFile.getChannel());
+        for (CompressedFile compressedFile : _compressedFiles.values())
+            channels.add(compressedFile._map.getChannel());
+        return channels;
+    }
+
+    static synchronized List<MappedFile> getMappedFiles() {
+        return new ArrayList<>(_mappedFiles.values());
+    }
+
+    // Force the written back pages of the file to the storage device
+    public static synchronized void forceFile(String filePath) throws IOException {
+        force(new File(filePath).getAbsolutePath());
+    }
+
+    private static void force(String path) throws IOException {
+        MappedFile mappedFile = _mappedFiles.get(path);
+        if (mappedFile != null)
+            mappedFile.force();
+        CompressedFile compressedFile = _compressedFiles.get(path);
+        if (compressedFile != null)
+            compressedFile.force();
+        RandomAccessFile backingFile = _backingFiles.get(path);
+        if (backingFile != null)
+            backingFile.getChannel().force(false);
+    }
+
+    // Write every dirty page back, force it and release the pool's own file handles (on exit)
+    public static synchronized void flushAll() {
+        for (Frame frame : _frames) {
+            try {
+                writeBack(frame);
+            } catch (IOException e) {
+                System.out.println("ERROR: unable to write back page " + frame._pageNum + " of " + frame._filePath + " " + e.getMessage());
+            }
+        }
+        for (String path : new ArrayList<>(_dirtyHeaders)) {
+            try {
+                writeBackHeader(path);
+            } catch (IOException e) {
+                System.out.println("ERROR: unable to write back the header of " + path + " " + e.getMessage());
+            }
+        }
+        for (String path : _backingFiles.keySet()) {
+            try {
+                force(path);
+            } catch (IOException e) {
+                System.out.println("ERROR: unable to force " + path + " " + e.getMessage());
+            }
+        }
+        for (RandomAccessFile backingFile : _backingFiles.values()) {
+            try {
+                backingFile.close();
+            } catch (IOException e) {
+                System.out.println("ERROR: unable to close " + e.getMessage());
+            }
+        }
+        for (CompressedFile compressedFile : _compressedFiles.values()) {
+            try {
+                compressedFile.close();
+            } catch (IOException e) {
+                System.out.println("ERROR: unable to close " + compressedFile._mapPath + " " + e.getMessage());
+            }
+        }
+        _backingFiles.clear();
+        _mappedFiles.clear();
+        _compressedFiles.clear();
+        _headers.clear();
+    }
+
+    // Drop all cached pages of a file without writing them, used before the file is deleted
+    public static synchronized void discard(String filePath) {
+        String path = new File(filePath).getAbsolutePath();
+        HashMap<Integer, Frame> filePages = _pageTable.remove(path);
+        if (filePages != null) {
+            for (Frame frame : filePages.values())
+                _bytesCached -= frame._page.capacity();
+            _frames.removeIf(frame -> frame._filePath.equals(path));
+            _unloggedFrames.removeIf(frame -> frame._filePath.equals(path));
+            if (_clockHand >= _frames.size())
+                _clockHand = 0;
+        }
+        _mappedFiles.remove(path);
+        CompressedFile compressedFile = _compressedFiles.remove(path);
+        if (compressedFile != null) {
+            try {
+                compressedFile.close();
+            } catch (IOException e) {
+                System.out.println("ERROR: unable to close " + compressedFile._mapPath + " " + e.getMessage());
+            }
+        }
+        _headers.remove(path);
+        _unloggedHeaders.remove(path);
+        _stolenFiles.remove(path);
+        _dirtyHeaders.remove(path);
+        _loggedHeaders.remove(path);
+        _headerRecLSNs.remove(path);
+        RandomAccessFile backingFile = _backingFiles.remove(path);
+        if (backingFile != null) {
+            try {
+                backingFile.close();
+            } catch (IOException e) {
+                System.out.println("ERROR: unable to close " + path + " " + e.getMessage());
+            }
+        }
+    }
+
+    private static String getPath(RandomAccessFile file) {
+        String path = _openFiles.get(file);
+        if (path == null) {
+            // the handle was not opened through the pool, cache its pages under its own identity
+            path = "#" + System.identityHashCode(file);
+            _openFiles.put(file, path);
+            _backingFiles.put(path, file);
+        }
+        return path;
+    }
+
+    private static RandomAccessFile getBackingFile(String path) throws IOException {
+        RandomAccessFile backingFile = _backingFiles.get(path);
+        if (backingFile == null) {
+            backingFile = new RandomAccessFile(path, "rw");
+            _backingFiles.put(path, backingFile);
+        }
+        return backingFile;
+    }
+
+    private static FileHeader getHeader(String path) throws IOException {
+        FileHeader header = _headers.get(path);
+        if (header == null) {
+            header = FileHeader.read(getBackingFile(path));
+            _headers.put(path, header);
+        }
+        return header;
+    }
+
+    private static ByteBuffer readPage(String path, int pageNum) throws IOException {
+        int pageSize = getHeader(path)._pageSize;
+        CompressedFile compressedFile = getCompressedFile(path);
+        if (compressedFile != null)
+            return compressedFile.read(pageNum);
+        ByteBuffer page = ByteBuffer.allocate(pageSize);
+        if (useMappedIO)
+            page.put(getMappedFile(path).mapPage((long) pageNum * pageSize, pageSize));
+        else
+            FileHeader.readFully(getBackingFile(path), (long) pageNum * pageSize, page);
+        page.clear();
+        return page;
+    }
+
+    private static MappedFile getMappedFile(String path) throws IOException {
+        MappedFile mappedFile = _mappedFiles.get(path);
+        if (mappedFile == null) {
+            mappedFile = new MappedFile(getBackingFile(path));
+            _mappedFiles.put(path, mappedFile);
+        }
+        return mappedFile;
+    }
+
+    private static CompressedFile getCompressedFile(String path) throws IOException {
+        CompressedFile compressedFile = _compressedFiles.get(path);
+        if (compressedFile == null && getHeader(path).isCompressed()) {
+            compressedFile = new CompressedFile(path, getBackingFile(path), getHeader(path));
+            _compressedFiles.put(path, compressedFile);
+        }
+        return compressedFile;
+    }
+
+    private static void setDirty(Frame frame) {
+        frame._isDirty = true;
+        if (!frame._isUnlogged) {
+            frame._isUnlogged = true;
+            _unloggedFrames.add(frame);
+        }
+    }
+
+    private static Frame getFrame(String path, int pageNum) {
+        HashMap<Integer, Frame> filePages = _pageTable.get(path);
+        return filePages == null ? null : filePages.get(pageNum);
+    }
+
+    private static Frame addFrame(String path, int pageNum, ByteBuffer page) {
+        makeRoom(page.capacity());
+        Frame frame = new Frame(path, pageNum, page);
+        _frames.add(frame);
+        _pageTable.computeIfAbsent(path, k -> new HashMap<>()).put(pageNum, frame);
+        _bytesCached += page.capacity();
+        return frame;
+    }
+
+    /*
+     * CLOCK eviction: sweep the frames, give referenced pages a second chance and skip pinned or
+     * unlogged ones. If that is not enough, unlogged frames are stolen, only pinned ones never go.
+     */
+    private static void makeRoom(int bytesNeeded) {
+        int sweep = 0;
+        while (_bytesCached + bytesNeeded > getCapacity() && !_frames.isEmpty() && sweep < 2 * _frames.size()) {
+            if (_clockHand >= _frames.size())
+                _clockHand = 0;
+            Frame frame = _frames.get(_clockHand);
+            if (frame._pinCount > 0 || frame._isUnlogged || frame._referenced) {
+                frame._referenced = false;
+                _clockHand++;
+                sweep++;
+                continue;
+            }
+            try {
+                writeBack(frame);
+            } catch (IOException e) {
+                System.out.println("ERROR: unable to write back page " + frame._pageNum + " " + e.getMessage());
+                _clockHand++;
+                sweep++;
+                continue;
+            }
+            evict(_clockHand);
+        }
+        if (_bytesCached + bytesNeeded <= getCapacity())
+            return;
+
+        // the oldest unpinned frames of the statement go first, in clock order
+        List<Integer> victims = new ArrayList<>();
+        for (int i = 0; i < _frames.size() && victims.size() < stealBatchPages; i++) {
+            int index = (_clockHand + i) % _frames.size();
+            Frame frame = _frames.get(index);
+            if (frame._pinCount == 0 && frame._isUnlogged)
+                victims.add(index);
+        }
+        List<Frame> stolenFrames = new ArrayList<>();
+        for (int index : victims)
+            stolenFrames.add(_frames.get(index));
+        try {
+            steal(stolenFrames);
+        } catch (IOException e) {
+            // if the pages cannot be stolen the pool grows past its capacity until the statement commits
+            System.out.println("ERROR: unable to write back the pages of the statement " + e.getMessage());
+            return;
+        }
+        victims.sort(null);
+        for (int i = victims.size() - 1; i >= 0; i--)
+            evict(victims.get(i));
+    }
+
+    private static void evict(int index) {
+        Frame frame = _frames.remove(index);
+        if (index < _clockHand)
+            _clockHand--;
+        _pageTable.get(frame._filePath).remove(frame._pageNum);
+        _bytesCached -= frame._page.capacity();
+    }
+
+    /*
+     * Write frames changed by the running statement before it commits. The image each page has on
+     * disk goes to the log as an undo record and is forced before the frame is written over it, so
+     * recovery can put it back if the statement never commits.
+     */
+    private static void steal(List<Frame> frames) throws IOException {
+        long undoLSN = 0;
+        for (Frame frame : frames) {
+            undoLSN = WriteAheadLog.appendUndo(frame._filePath, frame._pageNum, readPage(frame._filePath, frame._pageNum).array());
+            if (_stealRedoLSN == 0)
+                _stealRedoLSN = undoLSN;
+            // committed changes the page had in memory are only on disk through the log until then
+            if (frame._recLSN != 0)
+                _stealRedoLSN = Math.min(_stealRedoLSN, frame._recLSN);
+        }
+        WriteAheadLog.flush(undoLSN);
+        for (Frame frame : frames) {
+            writePage(frame);
+            _unloggedFrames.remove(frame);
+            frame._isUnlogged = false;
+            frame._isDirty = false;
+            frame._recLSN = 0;
+            _stolenFiles.add(frame._filePath);
+        }
+    }
+
+    private static void writeBack(Frame frame) throws IOException {
+        if (!frame._isDirty || frame._isUnlogged)
+            return;
+        // write-ahead rule: the log record of the page goes to disk first
+        WriteAheadLog.flush(frame._pageLSN);
+        writePage(frame);
+        frame._isDirty = false;
+        frame._recLSN = 0;
+    }
+
+    private static void writePage(Frame frame) throws IOException {
+        int pageSize = frame._page.capacity();
+        CompressedFile compressedFile = getCompressedFile(frame._filePath);
+        if (compressedFile != null)
+            compressedFile.write(frame._pageNum, frame._page.array());
+        else if (useMappedIO)
+            getMappedFile(frame._filePath).mapPage((long) frame._pageNum * pageSize, pageSize).put(frame._page.array());
+        else
+            FileHeader.writeFully(getBackingFile(frame._filePath), (long) frame._pageNum * pageSize,
+                    ByteBuffer.wrap(frame._page.array(), 0, pageSize));
+        _pageWrites.merge(frame._filePath, 1L, Long::sum);
+    }
+
+    private static void writeBackHeader(String path) throws IOException {
+        if (!_dirtyHeaders.contains(path) || _unloggedHeaders.contains(path))
+            return;
+        // the header may be being changed by a statement, write the image that was logged
+        byte[] image = _loggedHeaders.get(path);
+        WriteAheadLog.flush(ByteBuffer.wrap(image).getLong(FileHeader.lsnOffset));
+        FileHeader.writeFully(getBackingFile(path), 0, ByteBuffer.wrap(image));
+        _dirtyHeaders.remove(path);
+        _headerRecLSNs.remove(path);
+    }
+}
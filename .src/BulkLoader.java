@@ -0,0 +1,657 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Author: Bo-Yu Huang
+ * Date: 8/16/20
+ */
+
+// A page built by the loader, with the last key under it (the key of its parent cell): a row id,
+// or the encoded key of a clustered table
+class LoadedPage{
+    int _pageNum;
+    ByteBuffer _page;
+    byte[] _lastKey;
+
+    LoadedPage(int pageNum, ByteBuffer page, byte[] lastKey){
+        _pageNum = pageNum;
+        _page = page;
+        _lastKey = lastKey;
+    }
+}
+
+// A level of the tree being built: its last page, held back until its right sibling comes,
+// and the children collected so far by the interior page above it
+class LoadLevel{
+    LoadedPage _held;
+    int _parentPageNum = -1;
+    List<Integer> _children = new ArrayList<>();
+    List<byte[]> _keys = new ArrayList<>();
+}
+
+public class BulkLoader {
+    /*
+     * LOAD DATA builds the tree bottom-up instead of inserting the rows one by one. The rows come in
+     * key order, so they are packed into leaves from left to right, each filled up to the fill
+     * factor, and every finished page is handed to the interior page being filled on the level
+     * above. A page is written once its parent is known: each level holds back its last page until
+     * the next one comes, or until the end, where the held page with nothing above it is the root.
+     *
+     * The rows go after those of the table, whose file is not copied: the loader starts from the
+     * right spine of the tree, as if it had built it (see openRightSpine). The new pages take page
+     * numbers past the page count and are written straight to the file (BufferPool.writeNew), the
+     * pages of the spine are kept until the end and written through the buffer pool with the file
+     * header. The rows appear when the statement commits, a load that stops on the way leaves the
+     * table as it was.
+     *
+     * The CSV rows of a clustered table come in any order, they are sorted on disk (see SortedRuns)
+     * and added in key order. When a key is not above every key of the table the table is built
+     * again instead, its rows merged with the new ones, into a new file that replaces the table
+     * file once it is complete, like the file VACUUM builds. Its pages carry a LSN above every
+     * record in the log, so the recovery never redoes a change of the old file on them.
+     *
+     * A value of a UNIQUE column is looked up in the index of the column (see
+     * TableIndex.createUniqueIndexes) and goes to a sorted run of the column, where two equal
+     * values of the load end up next to each other.
+     */
+    RandomAccessFile _tableFile;
+    TableInfo _tableInfo;
+    // the file the pages are written to: the table file, or the file built again in its place
+    RandomAccessFile _file;
+    String _path;
+    CompressedFile _compressedFile;
+    FileHeader _header;
+    ClusteredKey _clusteredKey;
+    int _keyLength = 4;
+    long _lsn;
+    int _fillBytes;
+    int _fanout;
+    int _pageCount;
+    // the pages of the table below it were there before the load, the others are new
+    int _firstNewPage;
+    HashMap<Integer, ByteBuffer> _spinePages = new HashMap<>();
+
+    List<PaxRow> _leafRows = new ArrayList<>();
+    // the page of the leaf being filled when it is the right-most leaf of the table, else -1
+    int _leafPageNum = -1;
+    List<LoadLevel> _levels = new ArrayList<>();
+    // the largest key under the right spine, null for an empty table
+    byte[] _spineLastKey;
+    int _lastRowId;
+
+    // the CSV rows of a clustered table by key, null for a table in row id order
+    SortedRuns _sortedRows;
+    // the new values of each UNIQUE column, null for the other columns
+    List<SortedRuns> _uniqueValues = new ArrayList<>();
+
+    BulkLoader(RandomAccessFile tableFile, TableInfo tableInfo, int fillFactor) throws IOException {
+        _file = _tableFile = tableFile;
+        _tableInfo = tableInfo;
+        _header = BufferPool.getHeader(tableFile);
+        _clusteredKey = _header._clusteredKey;
+        if (_clusteredKey != null)
+            _keyLength = _clusteredKey._length;
+        _lsn = WriteAheadLog.reserveLSN();
+        _fillBytes = _header._pageSize * fillFactor / 100;
+        // an interior cell is its left child and a key, plus its cell pointer
+        _fanout = (_header._pageSize - Page.cellPointerStart) / (2 + 4 + _keyLength) + 1;
+        _pageCount = _firstNewPage = _header._pageCount;
+
+        String tablePath = DavisBasePrompt.getTBLFilePath(tableInfo._tableName);
+        if (_clusteredKey != null)
+            _sortedRows = new SortedRuns(tablePath + ".run");
+        for (int i = 0; i < tableInfo._colData.size(); i++) {
+            TableCol column = tableInfo._colData.get(i);
+            _uniqueValues.add(column._isUnique && !tableInfo.isClusteredKey(i)
+                    ? new SortedRuns(tablePath + "." + column._columnName + ".run") : null);
+        }
+        openRightSpine();
+    }
+
+    /*
+     * Start from the right-most leaf of the table: its rows are the first ones of the leaf being
+     * filled, which keeps its page. Each interior page above it is the page being filled on its
+     * level, with its cells as the children collected so far; the new pages become its next children.
+     */
+    private void openRightSpine() throws IOException {
+        List<Integer> spine = new ArrayList<>();
+        Page page = new Page(_header._rootPageNum, _file);
+        while (page._pageType == PageType.tblINTERIOR) {
+            spine.add(0, page._pageNum);
+            page = new Page(page._NumOfRight, _file);
+        }
+        _leafPageNum = page._pageNum;
+        for (TableRow record : page.getPageRows())
+            _leafRows.add(new PaxRow(record._rowId, LoadByte.Bytestobytes(record.getColDatatypes()),
+                    LoadByte.Bytestobytes(record.getRecordBody())));
+        if (!_leafRows.isEmpty())
+            _spineLastKey = getKey(_leafRows.get(_leafRows.size() - 1));
+
+        for (int pageNo : spine) {
+            LoadLevel loadLevel = new LoadLevel();
+            loadLevel._parentPageNum = pageNo;
+            List<byte[]> cells = new ArrayList<>();
+            ByteBuffer interiorPage = BufferPool.pin(_file, pageNo);
+            for (int i = 0; i < interiorPage.getShort(2); i++) {
+                int cellStart = Page.getUnsignedShort(interiorPage, Page.cellPointerStart + i*2);
+                if (cellStart == 0)
+                    continue;
+                byte[] cell = new byte[4 + _keyLength];
+                Page.readBytes(interiorPage, cellStart, cell);
+                cells.add(cell);
+            }
+            BufferPool.unpin(_file, pageNo, false);
+            cells.sort((cell1, cell2) -> Arrays.compareUnsigned(cell1, 4, cell1.length, cell2, 4, cell2.length));
+            for (byte[] cell : cells) {
+                loadLevel._children.add(ByteBuffer.wrap(cell).getInt(0));
+                loadLevel._keys.add(Arrays.copyOfRange(cell, 4, cell.length));
+            }
+            // a cell keeps the largest key of its child, the rows deleted since may have been larger
+            if (!cells.isEmpty() && (_spineLastKey == null
+                    || ClusteredKey.compare(loadLevel._keys.get(cells.size() - 1), _spineLastKey) > 0))
+                _spineLastKey = loadLevel._keys.get(cells.size() - 1);
+            _levels.add(loadLevel);
+        }
+    }
+
+    /*
+     * Add the rows of a CSV file after the last row id of the table, one row per record with its
+     * values in column order. A value is quoted with " when it has a comma, a quote or a line break,
+     * an empty value or null is NULL. Values are lowercased, as every statement is. Returns the
+     * number of rows, a bad record stops the load with the line it is on.
+     */
+    int loadCsv(String csvPath, boolean hasHeader) throws Exception {
+        TableInfo tableInfo = _tableInfo;
+        int rowId = tableInfo._last_id;
+        int loaded = 0;
+        // a probe of the index of a UNIQUE column, as TableInfo.validateInsert does
+        DavisBaseBinaryFile tableFile = new DavisBaseBinaryFile(_tableFile);
+        List<WhereCondition> uniqueConditions = new ArrayList<>();
+        for (int i = 0; i < tableInfo._colData.size(); i++) {
+            WhereCondition condition = new WhereCondition(tableInfo._colData.get(i)._type);
+            condition._columnName = tableInfo._colData.get(i)._columnName;
+            condition._columnOrdinal = i;
+            condition.setOperator("=");
+            uniqueConditions.add(_uniqueValues.get(i) == null ? null : condition);
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(csvPath), UTF_8)) {
+            int[] lineNo = {0};
+            List<String> values;
+            if (hasHeader)
+                readCsvRecord(reader, lineNo);
+            while ((values = readCsvRecord(reader, lineNo)) != null) {
+                if (values.size() == 1 && values.get(0) == null)
+                    continue;   // blank line
+                if (values.size() != tableInfo._colData.size())
+                    throw new Exception("ERROR: line " + lineNo[0] + " has " + values.size() + " values, "
+                            + tableInfo._tableName + " has " + tableInfo._colData.size() + " columns");
+
+                List<Field> fields = new ArrayList<>();
+                byte[] types = new byte[values.size()];
+                byte[][] valueBytes = new byte[values.size()][];
+                for (int i = 0; i < values.size(); i++) {
+                    TableCol colInfo = tableInfo._colData.get(i);
+                    String value = values.get(i);
+                    Field field;
+                    if (value == null) {
+                        if (!colInfo._isNullable)
+                            throw new Exception("ERROR: line " + lineNo[0] + ": cannot insert NULL into " + colInfo._columnName);
+                        field = new Field(Type.NULL, "NULL");
+                    } else {
+                        try {
+                            field = new Field(colInfo._type, value.toLowerCase());
+                        } catch (Exception e) {
+                            throw new Exception("ERROR: line " + lineNo[0] + ": invalid data format for " + colInfo._columnName + " value: " + value);
+                        }
+                    }
+                    WhereCondition condition = uniqueConditions.get(i);
+                    if (condition != null) {
+                        condition.setConditionValue(field._strValue);
+                        // an empty table has nothing to look up
+                        if (tableInfo._rowCount > 0 && tableFile.recordExists(tableInfo, condition))
+                            throw new Exception("ERROR: line " + lineNo[0] + ": column " + colInfo._columnName + " should be unique, "
+                                    + field._strValue + " is there already");
+                        _uniqueValues.get(i).add(field._strValue.getBytes(UTF_8), ByteBuffer.allocate(4).putInt(lineNo[0]).array());
+                    }
+                    fields.add(field);
+                    types[i] = field._type._value;
+                    valueBytes[i] = field._byteAtt == null ? new byte[0] : field._byteAtt;
+                }
+                rowId++;
+                if (_sortedRows != null)
+                    _sortedRows.add(_clusteredKey.encode(fields), toRunRecord(rowId, types, valueBytes));
+                else
+                    add(toRow(rowId, types, valueBytes));
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    // A CSV row as a sorted run keeps it: its row id, then the type code, length and bytes of each value
+    private static byte[] toRunRecord(int rowId, byte[] types, byte[][] values) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(rowId);
+        for (int i = 0; i < types.length; i++) {
+            out.writeByte(types[i]);
+            out.writeInt(values[i].length);
+            out.write(values[i]);
+        }
+        return record.toByteArray();
+    }
+
+    private PaxRow fromRunRecord(byte[] record) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(record);
+        int rowId = in.getInt();
+        byte[] types = new byte[_tableInfo._colData.size()];
+        byte[][] values = new byte[types.length][];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = in.get();
+            values[i] = new byte[in.getInt()];
+            in.get(values[i]);
+        }
+        return toRow(rowId, types, values);
+    }
+
+    // The row as a leaf stores it, a long text goes to overflow pages
+    private PaxRow toRow(int rowId, byte[] types, byte[][] values) throws IOException {
+        byte[] colDatatypes = new byte[types.length];
+        ByteArrayOutputStream recordBody = new ByteArrayOutputStream();
+        for (int i = 0; i < types.length; i++) {
+            byte[] valueBytes = values[i];
+            if (types[i] == Type.TEXT._value && valueBytes.length > Type.maxInlineText) {
+                valueBytes = writeOverflow(valueBytes);
+                colDatatypes[i] = Type.textOverflow;
+            } else if (types[i] == Type.TEXT._value)
+                colDatatypes[i] = (byte)(Type.TEXT._value + valueBytes.length);
+            else
+                colDatatypes[i] = types[i];
+            recordBody.write(valueBytes);
+        }
+        return new PaxRow(rowId, colDatatypes, recordBody.toByteArray());
+    }
+
+    // The values of the next CSV record, null at the end of the file, [null] for a blank line
+    private static List<String> readCsvRecord(BufferedReader reader, int[] lineNo) throws IOException {
+        String line = reader.readLine();
+        if (line == null)
+            return null;
+        lineNo[0]++;
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        boolean wasQuoted = false;
+        for (int i = 0; ; i++) {
+            if (i == line.length()) {
+                if (!quoted)
+                    break;
+                // a quoted value goes on over the line break
+                line = reader.readLine();
+                if (line == null)
+                    throw new IOException("unterminated quote at line " + lineNo[0]);
+                lineNo[0]++;
+                value.append('\n');
+                i = -1;
+                continue;
+            }
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    value.append('"');
+                    i++;
+                } else if (c == '"')
+                    quoted = false;
+                else
+                    value.append(c);
+            } else if (c == '"') {
+                quoted = true;
+                wasQuoted = true;
+            } else if (c == ',') {
+                values.add(toValue(value, wasQuoted));
+                value.setLength(0);
+                wasQuoted = false;
+            } else
+                value.append(c);
+        }
+        values.add(toValue(value, wasQuoted));
+        return values;
+    }
+
+    // an empty or null value that was not quoted is NULL
+    private static String toValue(StringBuilder value, boolean wasQuoted) {
+        String text = wasQuoted ? value.toString() : value.toString().trim();
+        if (!wasQuoted && (text.isEmpty() || text.equalsIgnoreCase("null")))
+            return null;
+        return text;
+    }
+
+
+    // Add a row to the leaf being filled, the leaf is finished first if the row would not fit
+    void add(PaxRow row) throws IOException {
+        _leafRows.add(row);
+        if (_leafRows.size() > 1 && getLeafSize(_leafRows) > _fillBytes) {
+            _leafRows.remove(_leafRows.size() - 1);
+            finishLeaf();
+            _leafRows.add(row);
+        }
+        _lastRowId = Math.max(_lastRowId, row._rowId);
+    }
+
+    private int getLeafSize(List<PaxRow> rows) {
+        if (_header._leafLayout == FileHeader.paxLayout)
+            return PaxLeaf.getSize(rows);
+        int size = Page.cellPointerStart;
+        for (PaxRow row : rows)
+            size += 2 + 7 + row._colDatatypes.length + row._recordBody.length;
+        return size;
+    }
+
+    private void finishLeaf() throws IOException {
+        ByteBuffer page = newPage(PageType.tblLEAF);
+        if (_header._leafLayout == FileHeader.paxLayout)
+            PaxLeaf.write(page, _leafRows);
+        else {
+            int contentStart = page.capacity();
+            for (int i = 0; i < _leafRows.size(); i++) {
+                PaxRow row = _leafRows.get(i);
+                contentStart -= 7 + row._colDatatypes.length + row._recordBody.length;
+                page.putShort(contentStart, (short)(row._recordBody.length + row._colDatatypes.length + 1));
+                page.putInt(contentStart + 2, row._rowId);
+                page.put(contentStart + 6, (byte) row._colDatatypes.length);
+                Page.writeBytes(page, contentStart + 7, row._colDatatypes);
+                Page.writeBytes(page, contentStart + 7 + row._colDatatypes.length, row._recordBody);
+                page.putShort(Page.cellPointerStart + i*2, (short) contentStart);
+            }
+            page.putShort(2, (short) _leafRows.size());
+            page.putShort(4, (short) contentStart);
+        }
+        byte[] lastKey = getKey(_leafRows.isEmpty() ? null : _leafRows.get(_leafRows.size() - 1));
+        int pageNum = _leafPageNum != -1 ? _leafPageNum : newPageNum();
+        _leafPageNum = -1;
+        _leafRows.clear();
+        finishPage(0, new LoadedPage(pageNum, page, lastKey));
+    }
+
+    // the key of the parent cell of a leaf whose last row it is
+    private byte[] getKey(PaxRow row) {
+        if (_clusteredKey != null)
+            return row == null ? new byte[_keyLength] : _clusteredKey.encode(row);
+        return ByteBuffer.allocate(4).putInt(row == null ? 0 : row._rowId).array();
+    }
+
+    // A finished page of a level: the page held back there now has a right sibling and needs a parent
+    private void finishPage(int level, LoadedPage page) throws IOException {
+        if (level == _levels.size())
+            _levels.add(new LoadLevel());
+        LoadLevel loadLevel = _levels.get(level);
+        if (loadLevel._held != null) {
+            if (level == 0)
+                loadLevel._held._page.putInt(6, page._pageNum);
+            addToParent(level, loadLevel._held);
+        }
+        loadLevel._held = page;
+    }
+
+    private void addToParent(int level, LoadedPage page) throws IOException {
+        LoadLevel loadLevel = _levels.get(level);
+        if (loadLevel._parentPageNum == -1)
+            loadLevel._parentPageNum = newPageNum();
+        page._page.putInt(0x0A, loadLevel._parentPageNum);
+        writePage(page._pageNum, page._page);
+        loadLevel._children.add(page._pageNum);
+        loadLevel._keys.add(page._lastKey);
+        if (loadLevel._children.size() >= _fanout)
+            finishParent(level);
+    }
+
+    // Write the cells of the interior page above a level, the last child is its right-most child
+    private void finishParent(int level) throws IOException {
+        LoadLevel loadLevel = _levels.get(level);
+        ByteBuffer page = newPage(PageType.tblINTERIOR);
+        int cellCount = loadLevel._children.size() - 1;
+        int contentStart = page.capacity();
+        for (int i = 0; i < cellCount; i++) {
+            contentStart -= 4 + _keyLength;
+            page.putInt(contentStart, loadLevel._children.get(i));
+            Page.writeBytes(page, contentStart + 4, loadLevel._keys.get(i));
+            page.putShort(Page.cellPointerStart + i*2, (short) contentStart);
+        }
+        page.putShort(2, (short) cellCount);
+        page.putShort(4, (short) contentStart);
+        page.putInt(6, loadLevel._children.get(cellCount));
+
+        LoadedPage parent = new LoadedPage(loadLevel._parentPageNum, page, loadLevel._keys.get(cellCount));
+        loadLevel._parentPageNum = -1;
+        loadLevel._children.clear();
+        loadLevel._keys.clear();
+        finishPage(level + 1, parent);
+    }
+
+    /*
+     * Check the new values of the UNIQUE columns, add the sorted rows of a clustered table, then
+     * write the last pages of every level and the file header. The pages of the right spine go
+     * through the buffer pool, a file built again is complete on disk when this returns.
+     */
+    void finish() throws Exception {
+        for (int i = 0; i < _uniqueValues.size(); i++)
+            if (_uniqueValues.get(i) != null)
+                checkUnique(i);
+        if (_sortedRows != null)
+            addSortedRows();
+
+        if (!_leafRows.isEmpty() || _levels.isEmpty() || _leafPageNum != -1)
+            finishLeaf();
+        int rootPageNum = -1;
+        for (int level = 0; level < _levels.size(); level++) {
+            LoadLevel loadLevel = _levels.get(level);
+            if (loadLevel._parentPageNum == -1 && level + 1 == _levels.size()) {
+                writePage(loadLevel._held._pageNum, loadLevel._held._page);
+                rootPageNum = loadLevel._held._pageNum;
+                break;
+            }
+            addToParent(level, loadLevel._held);
+            if (loadLevel._parentPageNum != -1)
+                finishParent(level);
+        }
+
+        if (_path == null) {
+            for (Map.Entry<Integer, ByteBuffer> spinePage : _spinePages.entrySet()) {
+                ByteBuffer page = BufferPool.pin(_file, spinePage.getKey());
+                Page.writeBytes(page, 0, spinePage.getValue().array());
+                BufferPool.unpin(_file, spinePage.getKey(), true);
+            }
+            _header._pageCount = _pageCount;
+            _header._rootPageNum = rootPageNum;
+            BufferPool.writeHeader(_file);
+            return;
+        }
+        _header._pageCount = _pageCount;
+        _header._rootPageNum = rootPageNum;
+        _header._lsn = _lsn;
+        _header._checkpointLSN = _lsn;
+        _header.write(_file);
+        if (_compressedFile != null) {
+            _compressedFile.force();
+            _compressedFile.close();
+        }
+        _file.getChannel().force(false);
+        _file.close();
+    }
+
+    // two equal new values of a UNIQUE column are next to each other once sorted
+    private void checkUnique(int column) throws Exception {
+        SortedRuns values = _uniqueValues.get(column);
+        values.sort();
+        byte[][] previous = null;
+        byte[][] value;
+        while ((value = values.next()) != null) {
+            if (previous != null && Arrays.equals(previous[0], value[0]))
+                throw new Exception("ERROR: line " + ByteBuffer.wrap(value[1]).getInt() + ": column "
+                        + _tableInfo._colData.get(column)._columnName + " should be unique, " + new String(value[0], UTF_8) + " is there already");
+            previous = value;
+        }
+        values.close();
+    }
+
+    /*
+     * The CSV rows of a clustered table, in key order. Above every key of the table they go after
+     * its rows, otherwise the table is built again with its rows merged in.
+     */
+    private void addSortedRows() throws Exception {
+        _sortedRows.sort();
+        byte[][] record = nextSortedRow(null);
+        if (record != null && _spineLastKey != null && ClusteredKey.compare(record[0], _spineLastKey) <= 0) {
+            rebuild();
+            BPlusTree bPlusTree = new BPlusTree(DavisBaseBinaryFile.getRootPageNo(_tableFile), _tableInfo._tableName, _tableFile);
+            for (Integer pageNo : bPlusTree.scanLeaves()) {
+                for (TableRow row : new Page(pageNo, _tableFile).getPageRows()) {
+                    byte[] key = _clusteredKey.encode(row);
+                    while (record != null && ClusteredKey.compare(record[0], key) < 0) {
+                        add(fromRunRecord(record[1]));
+                        record = nextSortedRow(record);
+                    }
+                    if (record != null && Arrays.equals(record[0], key))
+                        throw new Exception("ERROR: primary key " + _clusteredKey.toString(key) + " should be unique, it is there already");
+                    add(copyRow(row));
+                }
+            }
+        }
+        while (record != null) {
+            add(fromRunRecord(record[1]));
+            record = nextSortedRow(record);
+        }
+        _sortedRows.close();
+    }
+
+    // the next CSV row by key, two rows with the same key are next to each other
+    private byte[][] nextSortedRow(byte[][] previous) throws Exception {
+        byte[][] record = _sortedRows.next();
+        if (record != null && previous != null && Arrays.equals(record[0], previous[0]))
+            throw new Exception("ERROR: primary key " + _clusteredKey.toString(record[0]) + " should be unique, it is there twice");
+        return record;
+    }
+
+    // Build the table again into a new file, nothing was written for the load yet
+    private void rebuild() throws IOException {
+        _path = DavisBasePrompt.getTBLFilePath(_tableInfo._tableName) + ".load";
+        new File(_path).delete();
+        _file = new RandomAccessFile(_path, "rw");
+        FileHeader tableHeader = _header;
+        _header = FileHeader.create(_file, tableHeader._pageSize, tableHeader._compression, tableHeader._leafLayout);
+        _header._clusteredKey = _clusteredKey;
+        if (_header.isCompressed())
+            _compressedFile = new CompressedFile(_path, _file, _header);
+        _pageCount = _header._pageCount;
+        _firstNewPage = 0;
+        _leafRows.clear();
+        _leafPageNum = -1;
+        _levels.clear();
+    }
+
+    // A row of the table in the file built again, its long values are copied to overflow pages there
+    private PaxRow copyRow(TableRow record) throws IOException {
+        byte[] colDatatypes = LoadByte.Bytestobytes(record.getColDatatypes());
+        byte[] recordBody = LoadByte.Bytestobytes(record.getRecordBody()).clone();
+        int pointer = 0;
+        for (int i = 0; i < colDatatypes.length; i++) {
+            if (colDatatypes[i] == Type.textOverflow) {
+                byte[] reference = writeOverflow(record.getField(i)._byteAtt);
+                System.arraycopy(reference, 0, recordBody, pointer, reference.length);
+            }
+            pointer += Type.getTypeSize(colDatatypes[i]);
+        }
+        return new PaxRow(record._rowId, colDatatypes, recordBody);
+    }
+
+    // Give up the load, the table is as it was: its new pages are past its page count
+    void abort() {
+        if (_sortedRows != null)
+            _sortedRows.close();
+        for (SortedRuns values : _uniqueValues)
+            if (values != null)
+                values.close();
+        if (_path == null)
+            return;
+        try {
+            if (_compressedFile != null)
+                _compressedFile.close();
+            _file.close();
+        } catch (IOException e) {
+            // the files are deleted anyway
+        }
+        if (_compressedFile != null)
+            CompressedFile.deleteMap(_compressedFile._mapPath);
+        new File(_path).delete();
+    }
+
+    // A long value goes to a chain of overflow pages, see Page.writeOverflow
+    private byte[] writeOverflow(byte[] value) throws IOException {
+        int pageCapacity = _header._pageSize - Page.cellPointerStart;
+        int pageCount = (value.length + pageCapacity - 1) / pageCapacity;
+        int firstPage = _pageCount;
+        for (int i = 0; i < pageCount; i++) {
+            int start = i * pageCapacity;
+            int length = Math.min(pageCapacity, value.length - start);
+            ByteBuffer page = newPage(PageType.tblOVERFLOW);
+            page.putShort(2, (short) length);
+            page.putInt(6, i + 1 < pageCount ? firstPage + i + 1 : -1);
+            page.position(Page.cellPointerStart);
+            page.put(value, start, length);
+            writePage(newPageNum(), page);
+        }
+
+        ByteBuffer reference = ByteBuffer.allocate(Type.overflowRefSize);
+        reference.putInt(value.length);
+        reference.putInt(firstPage);
+        reference.put(value, 0, Type.overflowPrefixLength);
+        return reference.array();
+    }
+
+    private ByteBuffer newPage(PageType pageType) {
+        ByteBuffer page = ByteBuffer.allocate(_header._pageSize);
+        page.put(0, pageType._value);
+        page.putShort(4, (short) _header._pageSize);
+        page.putInt(6, -1);
+        page.putInt(0x0A, -1);
+        page.putLong(Page.pageLSN, _lsn);
+        return page;
+    }
+
+    // The next page of the file, the table file grows by whole extents as in Page.addNewPage
+    private int newPageNum() throws IOException {
+        int pageNum = _pageCount++;
+        long pageEnd = (long) _pageCount * _header._pageSize;
+        if (_path == null && !_header.isCompressed() && pageEnd > _file.length())
+            _file.setLength(DavisBaseBinaryFile.getExtendedLength(_file.length(), pageEnd, _header._pageSize));
+        return pageNum;
+    }
+
+    private void writePage(int pageNum, ByteBuffer page) throws IOException {
+        if (pageNum < _firstNewPage)
+            _spinePages.put(pageNum, page);
+        else if (_path == null)
+            BufferPool.writeNew(_file, pageNum, page);
+        else if (_compressedFile != null)
+            _compressedFile.write(pageNum, page.array());
+        else {
+            _file.seek((long) pageNum * _header._pageSize);
+            _file.write(page.array());
+        }
+    }
+}
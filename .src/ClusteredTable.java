@@ -0,0 +1,545 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * Author: Bo-Yu Huang
+ * Date: 8/20/20
+ */
+
+/*
+ * The clustered key of a table: its columns in key order, kept in the file header of the table
+ * and of its indexes. A key is encoded so that its bytes compare like its values, byte by byte and
+ * unsigned: each value big-endian at the size of its type with the sign bit flipped, the values of
+ * the columns one after the other. A (device INT, ts DATETIME) key is 12 bytes, in device order
+ * and then in time order within a device.
+ */
+class ClusteredKey {
+    static final int maxColumns = 4;
+
+    int[] _ordinals;
+    Type[] _types;
+    int _length;
+
+    ClusteredKey(int[] ordinals, Type[] types) {
+        _ordinals = ordinals;
+        _types = types;
+        for (Type type : types)
+            _length += Type.getTypeSize(type._value);
+    }
+
+    // a value of a fixed size that parses back from the way it is printed
+    static boolean isKeyType(Type type) {
+        switch (type) {
+            case TINYINT:
+            case SMALLINT:
+            case INT:
+            case LONG:
+            case YEAR:
+            case DATE:
+            case DATETIME:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // the first column orders the table, an index of it would repeat the tree
+    boolean isLeadingColumn(int ordinal) {
+        return _ordinals[0] == ordinal;
+    }
+
+    int getColumn(int ordinal) {
+        for (int i = 0; i < _ordinals.length; i++)
+            if (_ordinals[i] == ordinal)
+                return i;
+        return -1;
+    }
+
+    byte[] encode(List<Field> fields) {
+        byte[] key = new byte[_length];
+        int position = 0;
+        for (int ordinal : _ordinals)
+            position = putValue(key, position, fields.get(ordinal)._byteAtt);
+        return key;
+    }
+
+    byte[] encode(TableRow record) throws IOException {
+        byte[] key = new byte[_length];
+        int position = 0;
+        for (int ordinal : _ordinals)
+            position = putValue(key, position, record.getField(ordinal)._byteAtt);
+        return key;
+    }
+
+    byte[] encode(PaxRow row) {
+        byte[] key = new byte[_length];
+        int position = 0;
+        for (int ordinal : _ordinals) {
+            int start = row.getValueStart(ordinal);
+            position = putValue(key, position, Arrays.copyOfRange(row._recordBody, start, start + Type.getTypeSize(row._colDatatypes[ordinal])));
+        }
+        return key;
+    }
+
+    private static int putValue(byte[] key, int position, byte[] value) {
+        System.arraycopy(value, 0, key, position, value.length);
+        key[position] ^= (byte) 0x80;
+        return position + value.length;
+    }
+
+    static int compare(byte[] key1, byte[] key2) {
+        return Arrays.compareUnsigned(key1, key2);
+    }
+
+    // The key as it is printed in a message, its values in parentheses
+    String toString(byte[] key) {
+        StringBuilder text = new StringBuilder("(");
+        int position = 0;
+        for (int i = 0; i < _types.length; i++) {
+            byte[] value = Arrays.copyOfRange(key, position, position + Type.getTypeSize(_types[i]._value));
+            value[0] ^= (byte) 0x80;
+            position += value.length;
+            text.append(i == 0 ? "" : ", ").append(Field.toStrValue(_types[i], value));
+        }
+        return text.append(")").toString();
+    }
+
+    /*
+     * The keys a statement with these WHERE conditions can match, {low, high} both included, null
+     * when no condition is on a column of the key. Only the conditions every matching row must meet
+     * narrow it. Each column gets the range of its conditions, the low key is made of the lowest
+     * value of every column and the high key of the highest one: a (device, ts) key with device = 7
+     * and ts >= t reads from (7, t) up to (7, the last time). An empty range has low above high.
+     */
+    byte[][] getRange(WhereCondition condition_1, WhereCondition condition_2, int whereConnect) {
+        List<WhereCondition> conditions = new ArrayList<>();
+        if (condition_1 != null && (whereConnect != 2 || condition_2 == null))
+            conditions.add(condition_1);
+        if (condition_2 != null && whereConnect == 1)
+            conditions.add(condition_2);
+
+        long[] low = new long[_types.length];
+        long[] high = new long[_types.length];
+        for (int i = 0; i < _types.length; i++) {
+            int bits = Type.getTypeSize(_types[i]._value) * 8;
+            low[i] = bits == 64 ? Long.MIN_VALUE : -(1L << (bits - 1));
+            high[i] = bits == 64 ? Long.MAX_VALUE : (1L << (bits - 1)) - 1;
+        }
+        boolean isNarrowed = false;
+        boolean isEmpty = false;
+        for (WhereCondition condition : conditions) {
+            int column = getColumn(condition._columnOrdinal);
+            if (column == -1 || condition._comparedValue.equalsIgnoreCase("null"))
+                continue;
+            long value;
+            try {
+                value = toLong(new Field(_types[column], condition._comparedValue)._byteAtt);
+            } catch (Exception e) {
+                continue;   // not a value of the column, let the scan report it
+            }
+            switch (condition.getOperation()) {
+                case EQUAL:
+                    low[column] = Math.max(low[column], value);
+                    high[column] = Math.min(high[column], value);
+                    break;
+                case GREATER:
+                    isEmpty |= value == high[column];
+                    low[column] = Math.max(low[column], value + 1);
+                    break;
+                case GREATEROREQUAL:
+                    low[column] = Math.max(low[column], value);
+                    break;
+                case LESS:
+                    isEmpty |= value == low[column];
+                    high[column] = Math.min(high[column], value - 1);
+                    break;
+                case LESSOREQUAL:
+                    high[column] = Math.min(high[column], value);
+                    break;
+                default:
+                    continue;
+            }
+            isNarrowed = true;
+        }
+        if (!isNarrowed)
+            return null;
+
+        byte[][] range = { new byte[_length], new byte[_length] };
+        int position = 0;
+        for (int i = 0; i < _types.length; i++) {
+            isEmpty |= low[i] > high[i];
+            int size = Type.getTypeSize(_types[i]._value);
+            putValue(range[0], position, toBytes(low[i], size));
+            putValue(range[1], position, toBytes(high[i], size));
+            position += size;
+        }
+        if (isEmpty) {
+            Arrays.fill(range[0], (byte) 0xFF);
+            Arrays.fill(range[1], (byte) 0);
+        }
+        return range;
+    }
+
+    private static long toLong(byte[] value) {
+        long result = value[0];
+        for (int i = 1; i < value.length; i++)
+            result = (result << 8) | (value[i] & 0xFF);
+        return result;
+    }
+
+    private static byte[] toBytes(long value, int size) {
+        byte[] bytes = new byte[size];
+        for (int i = size - 1; i >= 0; i--, value >>= 8)
+            bytes[i] = (byte) value;
+        return bytes;
+    }
+}
+
+public class ClusteredTable {
+    /*
+     * A table created with PRIMARY KEY (<columns>) CLUSTERED keeps its rows in the order of their
+     * primary key instead of the order they came in. A row still has its row id, which the indexes
+     * and the statements use to tell the rows apart, but the table tree is keyed by the encoded key
+     * of the rows (see ClusteredKey): a leaf holds its rows in key order, and an interior cell holds
+     * its left child and the largest key under it,
+     *
+     *   interior cell  4-byte left child, then the key (ClusteredKey._length bytes)
+     *
+     * A condition on the key (see BPlusTree.getLeaves) seeks its first leaf and reads the leaves of
+     * its range one after the other, a condition on every column of the key is a single descent.
+     * The leaf cell of an index of the table (see TableIndex) carries the key of its row, so a row
+     * found through an index is looked up the same way.
+     *
+     * A row goes into the leaf its key belongs in, not into the right-most one, and the leaf is
+     * written again with its rows in key order. A full leaf is split in the middle: its upper half
+     * moves to a new right sibling, which takes the place of the leaf in the parent, and the leaf
+     * goes into the parent as a cell keyed by its new last key. A full interior page is split the
+     * same way, the key in the middle goes up to its parent. Only a root split adds a level.
+     *
+     * The key is made of up to ClusteredKey.maxColumns TINYINT, SMALLINT, INT, LONG, YEAR, DATE or
+     * DATETIME columns.
+     */
+
+    // Insert a row, its key is not in the table (TableInfo.validateInsert)
+    static void insert(RandomAccessFile file, ClusteredKey clusteredKey, PaxRow row) throws IOException {
+        byte[] key = clusteredKey.encode(row);
+        // the interior pages down to the leaf, a split goes back up along them
+        List<Integer> path = new ArrayList<>();
+        int pageNo = DavisBaseBinaryFile.getRootPageNo(file);
+        while (PageType.getPageType(file, pageNo) == PageType.tblINTERIOR) {
+            path.add(pageNo);
+            pageNo = getChild(file, pageNo, key, clusteredKey._length);
+        }
+
+        ByteBuffer page = BufferPool.pin(file, pageNo);
+        boolean isPax = PaxLeaf.isPax(page);
+        List<PaxRow> rows = getRows(page);
+        int rightSibling = page.getInt(6);
+        BufferPool.unpin(file, pageNo, false);
+        int position = 0;
+        while (position < rows.size() && ClusteredKey.compare(clusteredKey.encode(rows.get(position)), key) < 0)
+            position++;
+        rows.add(position, row);
+        if (getLeafSize(rows, isPax) <= page.capacity()) {
+            writeLeaf(file, pageNo, rows, rightSibling);
+            return;
+        }
+
+        int splitPoint = getSplitPoint(rows, isPax);
+        int parentPageNo = path.isEmpty() ? -1 : path.get(path.size() - 1);
+        int newPageNo = Page.addNewPage(file, PageType.tblLEAF, rightSibling, parentPageNo);
+        writeLeaf(file, newPageNo, rows.subList(splitPoint, rows.size()), rightSibling);
+        writeLeaf(file, pageNo, rows.subList(0, splitPoint), newPageNo);
+        addToParent(file, path, pageNo, clusteredKey.encode(rows.get(splitPoint - 1)), newPageNo);
+    }
+
+    // the leaf a key belongs in, whether or not a row has it: the first leaf of a range scan
+    static int findLeaf(RandomAccessFile file, ClusteredKey clusteredKey, byte[] key) throws IOException {
+        int pageNo = DavisBaseBinaryFile.getRootPageNo(file);
+        while (PageType.getPageType(file, pageNo) == PageType.tblINTERIOR)
+            pageNo = getChild(file, pageNo, key, clusteredKey._length);
+        return pageNo;
+    }
+
+    // The leaf that holds the key, -1 if no row of the table has it
+    static int find(RandomAccessFile file, ClusteredKey clusteredKey, byte[] key) throws IOException {
+        int pageNo = findLeaf(file, clusteredKey, key);
+        ByteBuffer page = BufferPool.pin(file, pageNo);
+        try {
+            for (byte[] rowKey : getKeys(clusteredKey, page))
+                if (Arrays.equals(rowKey, key))
+                    return pageNo;
+            return -1;
+        } finally {
+            BufferPool.unpin(file, pageNo, false);
+        }
+    }
+
+    /*
+     * The child of an interior page the key is under: the first cell whose key is not below it (a
+     * binary search, the cells are in key order), past the last one the right-most child.
+     */
+    private static int getChild(RandomAccessFile file, int pageNo, byte[] key, int keyLength) throws IOException {
+        ByteBuffer page = BufferPool.pin(file, pageNo);
+        try {
+            int low = 0;
+            int high = page.getShort(2);
+            byte[] cellKey = new byte[keyLength];
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                Page.readBytes(page, Page.getUnsignedShort(page, Page.cellPointerStart + middle*2) + 4, cellKey);
+                if (ClusteredKey.compare(cellKey, key) < 0)
+                    low = middle + 1;
+                else
+                    high = middle;
+            }
+            if (low == page.getShort(2))
+                return page.getInt(6);
+            return page.getInt(Page.getUnsignedShort(page, Page.cellPointerStart + low*2));
+        } finally {
+            BufferPool.unpin(file, pageNo, false);
+        }
+    }
+
+    // The keys of the rows of a leaf, in key order
+    static List<byte[]> getKeys(ClusteredKey clusteredKey, ByteBuffer page) {
+        List<byte[]> keys = new ArrayList<>();
+        for (PaxRow row : getRows(page))
+            keys.add(clusteredKey.encode(row));
+        return keys;
+    }
+
+    // The largest key of a leaf, null for an empty leaf
+    static byte[] getLastKey(ClusteredKey clusteredKey, ByteBuffer page) {
+        List<byte[]> keys = getKeys(clusteredKey, page);
+        return keys.isEmpty() ? null : keys.get(keys.size() - 1);
+    }
+
+    // whether a leaf holds the key or a larger one, the last leaf of a range up to the key
+    static boolean reaches(ClusteredKey clusteredKey, ByteBuffer page, byte[] key) {
+        byte[] lastKey = getLastKey(clusteredKey, page);
+        return lastKey != null && ClusteredKey.compare(lastKey, key) >= 0;
+    }
+
+    /*
+     * The page split into pageNo and newPageNo: pageNo now holds the keys up to key, newPageNo the
+     * ones above. newPageNo takes the place of pageNo in the parent (its cell or the right-most child)
+     * and pageNo gets a cell of its own, keyed by key.
+     */
+    private static void addToParent(RandomAccessFile file, List<Integer> path, int pageNo, byte[] key, int newPageNo) throws IOException {
+        if (path.isEmpty()) {
+            int newRootPageNo = Page.addNewPage(file, PageType.tblINTERIOR, newPageNo, -1);
+            TreeMap<byte[], Integer> cells = new TreeMap<>(ClusteredKey::compare);
+            cells.put(key, pageNo);
+            writeInterior(file, newRootPageNo, cells, newPageNo);
+            setParent(file, pageNo, newRootPageNo);
+            setParent(file, newPageNo, newRootPageNo);
+            BufferPool.getHeader(file)._rootPageNum = newRootPageNo;
+            BufferPool.writeHeader(file);
+            return;
+        }
+
+        int parentPageNo = path.remove(path.size() - 1);
+        ByteBuffer parentPage = BufferPool.pin(file, parentPageNo);
+        TreeMap<byte[], Integer> cells = getCells(parentPage, key.length);
+        int rightMostChild = parentPage.getInt(6);
+        int grandParentPageNo = parentPage.getInt(0x0A);
+        BufferPool.unpin(file, parentPageNo, false);
+        byte[] parentKey = null;
+        for (Map.Entry<byte[], Integer> cell : cells.entrySet())
+            if (cell.getValue() == pageNo)
+                parentKey = cell.getKey();
+        if (parentKey != null)
+            cells.put(parentKey, newPageNo);
+        else
+            rightMostChild = newPageNo;
+        cells.put(key, pageNo);
+        setParent(file, newPageNo, parentPageNo);
+
+        if (Page.cellPointerStart + cells.size() * (2 + 4 + key.length) <= BufferPool.getPageSize(file)) {
+            writeInterior(file, parentPageNo, cells, rightMostChild);
+            return;
+        }
+
+        // the lower half stays, the right-most child of the lower half is the child of the middle key
+        List<Map.Entry<byte[], Integer>> entries = new ArrayList<>(cells.entrySet());
+        int middle = entries.size() / 2;
+        TreeMap<byte[], Integer> lowerCells = new TreeMap<>(cells.headMap(entries.get(middle).getKey()));
+        TreeMap<byte[], Integer> upperCells = new TreeMap<>(cells.tailMap(entries.get(middle).getKey(), false));
+        int newInteriorPageNo = Page.addNewPage(file, PageType.tblINTERIOR, rightMostChild, grandParentPageNo);
+        writeInterior(file, newInteriorPageNo, upperCells, rightMostChild);
+        writeInterior(file, parentPageNo, lowerCells, entries.get(middle).getValue());
+        for (int childPageNo : upperCells.values())
+            setParent(file, childPageNo, newInteriorPageNo);
+        setParent(file, rightMostChild, newInteriorPageNo);
+        addToParent(file, path, parentPageNo, entries.get(middle).getKey(), newInteriorPageNo);
+    }
+
+    // the cells of an interior page, key to left child
+    private static TreeMap<byte[], Integer> getCells(ByteBuffer page, int keyLength) {
+        TreeMap<byte[], Integer> cells = new TreeMap<>(ClusteredKey::compare);
+        int numCell = page.getShort(2);
+        for (int i = 0; i < numCell; i++) {
+            int cellStart = Page.getUnsignedShort(page, Page.cellPointerStart + i*2);
+            byte[] key = new byte[keyLength];
+            Page.readBytes(page, cellStart + 4, key);
+            cells.put(key, page.getInt(cellStart));
+        }
+        return cells;
+    }
+
+    // the rows of a leaf, as PAX rows whatever the layout
+    static List<PaxRow> getRows(ByteBuffer page) {
+        if (PaxLeaf.isPax(page))
+            return PaxLeaf.getRows(page);
+        List<PaxRow> rows = new ArrayList<>();
+        int numCell = page.getShort(2);
+        for (int i = 0; i < numCell; i++) {
+            int cellStart = Page.getUnsignedShort(page, Page.cellPointerStart + i*2);
+            if (cellStart == 0)
+                continue;
+            byte[] cell = new byte[Page.getUnsignedShort(page, cellStart) - 1];
+            Page.readBytes(page, cellStart + 7, cell);
+            int columnCount = page.get(cellStart + 6);
+            rows.add(new PaxRow(page.getInt(cellStart + 2), Arrays.copyOfRange(cell, 0, columnCount),
+                    Arrays.copyOfRange(cell, columnCount, cell.length)));
+        }
+        return rows;
+    }
+
+    private static int getLeafSize(List<PaxRow> rows, boolean isPax) {
+        if (isPax)
+            return PaxLeaf.getSize(rows);
+        int size = Page.cellPointerStart;
+        for (PaxRow row : rows)
+            size += 2 + 7 + row._colDatatypes.length + row._recordBody.length;
+        return size;
+    }
+
+    // the first row of the upper half, half of the bytes of the rows are below it
+    private static int getSplitPoint(List<PaxRow> rows, boolean isPax) {
+        int half = getLeafSize(rows, isPax) / 2;
+        int size = getLeafSize(rows.subList(0, 1), isPax);
+        int splitPoint = 1;
+        while (splitPoint < rows.size() - 1) {
+            PaxRow row = rows.get(splitPoint);
+            // a row takes its row id and its column types and values, a cell pointer and payload header too
+            size += (isPax ? 4 : 2 + 7) + row._colDatatypes.length + row._recordBody.length;
+            if (size > half)
+                break;
+            splitPoint++;
+        }
+        return splitPoint;
+    }
+
+    // Write the rows of a leaf again from the end of the page, in key order
+    private static void writeLeaf(RandomAccessFile file, int pageNo, List<PaxRow> rows, int rightSibling) throws IOException {
+        ByteBuffer page = BufferPool.pin(file, pageNo);
+        page.putInt(6, rightSibling);
+        if (PaxLeaf.isPax(page))
+            PaxLeaf.write(page, rows);
+        else {
+            int contentStart = page.capacity();
+            for (int i = 0; i < rows.size(); i++) {
+                PaxRow row = rows.get(i);
+                contentStart -= 7 + row._colDatatypes.length + row._recordBody.length;
+                page.putShort(contentStart, (short)(row._recordBody.length + row._colDatatypes.length + 1));
+                page.putInt(contentStart + 2, row._rowId);
+                page.put(contentStart + 6, (byte) row._colDatatypes.length);
+                Page.writeBytes(page, contentStart + 7, row._colDatatypes);
+                Page.writeBytes(page, contentStart + 7 + row._colDatatypes.length, row._recordBody);
+                page.putShort(Page.cellPointerStart + i*2, (short) contentStart);
+            }
+            page.putShort(2, (short) rows.size());
+            page.putShort(4, (short) contentStart);
+            // the space of the deleted cells is in the rewritten page now
+            page.putShort(Page.freeBlockHead, (short) 0);
+        }
+        BufferPool.unpin(file, pageNo, true);
+    }
+
+    private static void writeInterior(RandomAccessFile file, int pageNo, TreeMap<byte[], Integer> cells, int rightMostChild) throws IOException {
+        ByteBuffer page = BufferPool.pin(file, pageNo);
+        int contentStart = page.capacity();
+        int i = 0;
+        for (Map.Entry<byte[], Integer> cell : cells.entrySet()) {
+            contentStart -= 4 + cell.getKey().length;
+            page.putInt(contentStart, cell.getValue());
+            Page.writeBytes(page, contentStart + 4, cell.getKey());
+            page.putShort(Page.cellPointerStart + i++ * 2, (short) contentStart);
+        }
+        page.putShort(2, (short) cells.size());
+        page.putShort(4, (short) contentStart);
+        page.putInt(6, rightMostChild);
+        page.putShort(Page.freeBlockHead, (short) 0);
+        BufferPool.unpin(file, pageNo, true);
+    }
+
+    private static void setParent(RandomAccessFile file, int pageNo, int parentPageNo) throws IOException {
+        BufferPool.pin(file, pageNo).putInt(0x0A, parentPageNo);
+        BufferPool.unpin(file, pageNo, true);
+    }
+}
+
+/*
+ * The leaves of a list of keys in order, each one once: a key is looked up with find(), then the
+ * keys up to the last one of its leaf are passed over, like the row ids of a RowIdCursor.
+ */
+class KeyCursor implements Iterator<Integer> {
+    RandomAccessFile _tblFile;
+    ClusteredKey _clusteredKey;
+    List<byte[]> _keys;
+    byte[][] _range;
+    int _position = 0;
+    int _next = -1;
+    byte[] _lastKey;    // the last key of the last leaf found
+
+    KeyCursor(RandomAccessFile tblFile, ClusteredKey clusteredKey, List<byte[]> keys, byte[][] range) {
+        _tblFile = tblFile;
+        _clusteredKey = clusteredKey;
+        _keys = keys;
+        _range = range;
+    }
+
+    public boolean hasNext() {
+        if (_next == -1)
+            advance();
+        return _next != -1;
+    }
+
+    public Integer next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        int pageNo = _next;
+        _next = -1;
+        return pageNo;
+    }
+
+    private void advance() {
+        while (_next == -1 && _position < _keys.size()) {
+            byte[] key = _keys.get(_position++);
+            if ((_lastKey != null && ClusteredKey.compare(key, _lastKey) <= 0)
+                    || (_range != null && (ClusteredKey.compare(key, _range[0]) < 0 || ClusteredKey.compare(key, _range[1]) > 0)))
+                continue;
+            try {
+                _next = ClusteredTable.find(_tblFile, _clusteredKey, key);
+                if (_next != -1) {
+                    ByteBuffer page = BufferPool.pin(_tblFile, _next);
+                    _lastKey = ClusteredTable.getLastKey(_clusteredKey, page);
+                    BufferPool.unpin(_tblFile, _next, false);
+                }
+            } catch (IOException e) {
+                System.out.println("ERROR: unable to find the row " + _clusteredKey.toString(key) + " " + e.getMessage());
+                _position = _keys.size();
+            }
+        }
+    }
+}
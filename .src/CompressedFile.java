@@ -0,0 +1,201 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Author: Bo-Yu Huang
+ * Date: 8/12/20
+ */
+
+public class CompressedFile {
+    /*
+     * Pages of a table created WITH (compression = deflate). The file header (page 0) stays as it
+     * is at the start of the .tbl file, every other page is deflated when it is written back and
+     * stored after the header at a variable offset, prefixed with its page number. The page map
+     * tells where each page is stored:
+     *
+     *  <table>.<map id>.map  16 bytes per page: long offset, int stored length, int allocated size
+     *
+     * A page that still fits in its space is rewritten in place, otherwise it moves to the first
+     * hole big enough or to the end of the file. The map id is kept in the file header, so VACUUM
+     * switches to the map of the rebuilt file with the same atomic move.
+     */
+    static final int mapEntrySize = 16;
+    static final int granule = 64;
+
+    RandomAccessFile _file;
+    RandomAccessFile _map;
+    String _mapPath;
+    int _pageSize;
+    // end of the stored pages, and the free space between them: <offset, size>
+    long _end;
+    TreeMap<Long, Integer> _holes = new TreeMap<>();
+    Deflater _deflater = new Deflater(Deflater.BEST_SPEED);
+    Inflater _inflater = new Inflater();
+
+    CompressedFile(String path, RandomAccessFile file, FileHeader header) throws IOException {
+        _file = file;
+        _pageSize = header._pageSize;
+        _mapPath = getMapPath(path, header);
+        _map = new RandomAccessFile(_mapPath, "rw");
+
+        // the holes are whatever lies between the stored pages
+        byte[] raw = new byte[(int) (_map.length() / mapEntrySize * mapEntrySize)];
+        _map.seek(0);
+        _map.readFully(raw);
+        ByteBuffer entries = ByteBuffer.wrap(raw);
+        TreeMap<Long, Integer> stored = new TreeMap<>();
+        for (int i = 0; i < raw.length; i += mapEntrySize)
+            if (entries.getInt(i + 8) > 0)
+                stored.put(entries.getLong(i), entries.getInt(i + 12));
+        _end = _pageSize;
+        for (Map.Entry<Long, Integer> extent : stored.entrySet()) {
+            if (extent.getKey() > _end)
+                _holes.put(_end, (int) (extent.getKey() - _end));
+            _end = Math.max(_end, extent.getKey() + extent.getValue());
+        }
+    }
+
+    // The map file of a table file, next to it: data/user_data/<table>.<map id>.map
+    static String getMapPath(String tablePath, FileHeader header) {
+        int tblAt = tablePath.lastIndexOf(".tbl");
+        String base = tblAt == -1 ? tablePath : tablePath.substring(0, tblAt);
+        return base + "." + Integer.toHexString(header._mapId) + ".map";
+    }
+
+    // The map file of a table file on disk, null if the table is not compressed
+    static String getMapPath(String tablePath) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(tablePath, "r")) {
+            FileHeader header = FileHeader.read(file);
+            return header.isCompressed() ? getMapPath(tablePath, header) : null;
+        }
+    }
+
+    // Read and inflate a page, a page that was never written reads as zeros
+    synchronized ByteBuffer read(int pageNum) throws IOException {
+        ByteBuffer page = ByteBuffer.allocate(_pageSize);
+        ByteBuffer entry = readEntry(pageNum);
+        int length = entry.getInt(8);
+        if (length == 0)
+            return page;
+
+        byte[] stored = new byte[length];
+        FileHeader.readFully(_file, entry.getLong(0), ByteBuffer.wrap(stored));
+        if (ByteBuffer.wrap(stored).getInt(0) != pageNum)
+            throw new IOException("page " + pageNum + " is not where the page map says");
+        _inflater.reset();
+        _inflater.setInput(stored, 4, length - 4);
+        int inflated = 0;
+        try {
+            while (inflated < _pageSize && !_inflater.finished() && !_inflater.needsInput())
+                inflated += _inflater.inflate(page.array(), inflated, _pageSize - inflated);
+        } catch (DataFormatException e) {
+            throw new IOException("page " + pageNum + " is corrupt " + e.getMessage());
+        }
+        if (inflated != _pageSize)
+            throw new IOException("page " + pageNum + " is truncated");
+        return page;
+    }
+
+    // Deflate a page and store it, then point the page map at it
+    synchronized void write(int pageNum, byte[] page) throws IOException {
+        byte[] stored = new byte[4 + page.length / 2];
+        ByteBuffer.wrap(stored).putInt(0, pageNum);
+        int length = 4;
+        _deflater.reset();
+        _deflater.setInput(page);
+        _deflater.finish();
+        while (!_deflater.finished()) {
+            if (length == stored.length)
+                stored = Arrays.copyOf(stored, stored.length * 2);
+            length += _deflater.deflate(stored, length, stored.length - length);
+        }
+
+        ByteBuffer entry = readEntry(pageNum);
+        long offset = entry.getLong(0);
+        int size = entry.getInt(12);
+        if (length > size) {
+            // the old place is given up only once the page has a new one
+            long newOffset = allocate((length + granule - 1) / granule * granule);
+            if (size > 0)
+                free(offset, size);
+            offset = newOffset;
+            size = (length + granule - 1) / granule * granule;
+        }
+        FileHeader.writeFully(_file, offset, ByteBuffer.wrap(stored, 0, length));
+
+        entry.putLong(0, offset);
+        entry.putInt(8, length);
+        entry.putInt(12, size);
+        _map.seek((long) pageNum * mapEntrySize);
+        _map.write(entry.array());
+    }
+
+    private ByteBuffer readEntry(int pageNum) throws IOException {
+        byte[] entry = new byte[mapEntrySize];
+        long entryStart = (long) pageNum * mapEntrySize;
+        if (entryStart + mapEntrySize <= _map.length()) {
+            _map.seek(entryStart);
+            _map.readFully(entry);
+        }
+        return ByteBuffer.wrap(entry);
+    }
+
+    // first fit among the holes, or at the end of the file
+    private long allocate(int size) {
+        for (Map.Entry<Long, Integer> hole : _holes.entrySet()) {
+            long offset = hole.getKey();
+            int holeSize = hole.getValue();
+            if (holeSize >= size) {
+                _holes.remove(offset);
+                if (holeSize > size)
+                    _holes.put(offset + size, holeSize - size);
+                return offset;
+            }
+        }
+        long offset = _end;
+        _end += size;
+        return offset;
+    }
+
+    // merge the freed space with the holes next to it
+    private void free(long offset, int size) {
+        Map.Entry<Long, Integer> before = _holes.floorEntry(offset);
+        if (before != null && before.getKey() + before.getValue() == offset) {
+            offset = before.getKey();
+            size += before.getValue();
+            _holes.remove(offset);
+        }
+        Integer after = _holes.remove(offset + size);
+        if (after != null)
+            size += after;
+        if (offset + size == _end)
+            _end = offset;
+        else
+            _holes.put(offset, size);
+    }
+
+    // The table file itself is forced by the pool, this forces the page map
+    synchronized void force() throws IOException {
+        _map.getChannel().force(false);
+    }
+
+    synchronized void close() throws IOException {
+        _map.close();
+        _deflater.end();
+        _inflater.end();
+    }
+
+    // Delete the map file of a table file that is being deleted or replaced
+    static void deleteMap(String mapPath) {
+        if (mapPath != null)
+            new File(mapPath).delete();
+    }
+}
@@ -3,6 +3,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Scanner;
 import java.util.SortedMap;
@@ -27,31 +28,63 @@ public class DavisBaseBinaryFile {
     static boolean dataStoreInitialized = false;
 
     /*
-     * Page size for all files is 512 bytes by default.
-     * You may choose to make it user modifiable
+     * Default page size of newly created files, 512 bytes unless --page-size is given at startup
+     * or the table is created WITH (page_size = ...).
+     * The page size of an existing file is read from its file header (page 0).
      *
-     * This static variable controls page size.
      * This strategy insures that the page size is always a power of 2.
      */
     static int pageSizePower = 9;
     static int pageSize = (int) Math.pow(2, pageSizePower);
 
+    static void setDefaultPageSize(int size) {
+        if (!FileHeader.isValidPageSize(size))
+            throw new IllegalArgumentException("page size must be a power of 2 between " + FileHeader.minPageSize + " and " + FileHeader.maxPageSize);
+        pageSizePower = Integer.numberOfTrailingZeros(size);
+        pageSize = size;
+    }
+
+    /*
+     * Files grow by extents instead of one page at a time: by extentSizeKB (--extent-kb) or by
+     * extentGrowthPercent of the current length (--extent-percent), whichever is bigger. A small
+     * file doubles until it reaches extentSizeKB, so the catalogs, index files and empty tables
+     * stay a few pages long. The logical number of pages is kept in the file header.
+     */
+    static int extentSizeKB = 1024;
+    static int extentGrowthPercent = 0;
+
+    static long getExtendedLength(long fileLength, long requiredLength, int filePageSize) {
+        long extent = Math.min((long) extentSizeKB * 1024, fileLength);
+        long growth = Math.max(extent, fileLength * extentGrowthPercent / 100);
+        // keep the file a whole number of pages
+        growth = (growth + filePageSize - 1) / filePageSize * filePageSize;
+        return Math.max(requiredLength, fileLength + growth);
+    }
+
+    // Create an empty table file: the file header page followed by an empty leaf page as root
+    public static int createTableFile(RandomAccessFile file, int filePageSize) throws IOException {
+        return createTableFile(file, filePageSize, FileHeader.noCompression, FileHeader.rowLayout);
+    }
+
+    public static int createTableFile(RandomAccessFile file, int filePageSize, byte compression, byte leafLayout) throws IOException {
+        FileHeader.create(file, filePageSize, compression, leafLayout);
+        int rootPageNo = Page.addNewPage(file, PageType.tblLEAF, -1, -1);
+        FileHeader header = BufferPool.getHeader(file);
+        header._rootPageNum = rootPageNo;
+        BufferPool.writeHeader(file);
+        return rootPageNo;
+    }
+
     RandomAccessFile _file;
 
     DavisBaseBinaryFile(RandomAccessFile file) {
         _file = file;
     }
 
-    // Find the root page
+    // Find the root page, it is recorded in the file header
     public static int getRootPageNo(RandomAccessFile tblFile) {
         try {
-            for (int i = 0; i < tblFile.length() / pageSize; i++) {
-                tblFile.seek(i * pageSize + 0x0A);
-                if (tblFile.readInt() == -1) { // 0xFFFFFFFF
-                    return i;
-                }
-            }
-            return 0;
+            return BufferPool.getHeader(tblFile)._rootPageNum;
         } catch (Exception e) {
             out.println("ERROR: unable to get root page number " + e);
         }
@@ -61,28 +94,60 @@ public class DavisBaseBinaryFile {
     // Find the last ID in certain page
     public static int getPageLastID(RandomAccessFile tblFile, int pageNum){
         try{
-            // look for the offset of start of the cell in header and search for row_id in cell header
-            tblFile.seek(pageNum * pageSize + 4);
-            short startOfCell = tblFile.readShort();
-            if (startOfCell == pageSize) // empty page
-                return 0;
-            tblFile.seek(pageNum * pageSize + startOfCell + 2);
-            return tblFile.readInt();
+            ByteBuffer page = BufferPool.pin(tblFile, pageNum);
+            try {
+                return getPageLastID(page);
+            } finally {
+                BufferPool.unpin(tblFile, pageNum, false);
+            }
         }catch (Exception e){
             out.println("ERROR: unable to get page last_ID! " + e);
         }
         return -1;
     }
 
+    // Find the last ID in a page that is already in memory
+    public static int getPageLastID(ByteBuffer page){
+        if (PaxLeaf.isPax(page))
+            return PaxLeaf.getLastRowId(page);
+        // deleted cells may be reused, so look at the row_id of every live cell
+        int lastID = 0;
+        int numCell = page.getShort(2);
+        for (int i = 0; i < numCell; i++) {
+            int startOfCell = Page.getUnsignedShort(page, Page.cellPointerStart + i*2);
+            if (startOfCell != 0)
+                lastID = Math.max(lastID, page.getInt(startOfCell + 2));
+        }
+        return lastID;
+    }
+
+
+    // Copy every live record, in row id order, into an empty file (VACUUM)
+    public void copyRecordsTo(RandomAccessFile dstFile) throws IOException {
+        int rootPageNo = getRootPageNo(_file);
+        FileHeader header = BufferPool.getHeader(_file);
+        int dstRootPageNo = createTableFile(dstFile, header._pageSize, header._compression, header._leafLayout);
+        // the rows of a clustered table come in key order too, the interior cells get their keys
+        BufferPool.getHeader(dstFile)._clusteredKey = header._clusteredKey;
+        BufferPool.writeHeader(dstFile);
+        Page dstPage = new Page(dstRootPageNo, dstFile);
+
+        BPlusTree bPlusTree = new BPlusTree(rootPageNo, "", _file);
+        for (int pageNo = bPlusTree.getLeftMostLeaf(); pageNo != -1; pageNo = Page.getRightPageNo(_file, pageNo)) {
+            Page page = new Page(pageNo, _file);
+            for (TableRow record : page.getPageRows())
+                dstPage.appendRecord(record);
+        }
+    }
 
     public boolean recordExists(TableInfo tableInfo, WhereCondition condition) throws IOException {
         BPlusTree bPlusTree = new BPlusTree(tableInfo._rootPageNum, tableInfo._tableName, _file);
 
-        for(Integer pageNo :  bPlusTree._leavesNum) {
+        for(Integer pageNo :  bPlusTree.getLeaves(condition, null, 0)) {
             Page page = new Page(pageNo,_file);
             for(TableRow record : page.getPageRows()) {
                 if(condition!=null) {
-                    if(!condition.checkCondition(record._fields.get(condition._columnOrdinal)._strValue))
+                    if(!condition.checkCondition(record.getStrValue(condition._columnOrdinal)))
                         continue;
                 }
                 return true;
@@ -115,43 +180,51 @@ public class DavisBaseBinaryFile {
         BPlusTree bPlusTree = new BPlusTree(tableInfo._rootPageNum,tableInfo._tableName, _file);
 
         List<Integer> updateRowids = new ArrayList<>();
-        for(Integer pageNo :  bPlusTree._leavesNum) {
+        // the rows of a clustered table written again go where their key belongs, maybe further on
+        // in the scan, so they are moved once the scan is done
+        List<byte[]> movedKeys = new ArrayList<>();
+        for(Integer pageNo :  bPlusTree.getLeaves(condition_1, condition_2, whereConnect)) {
             short deleteCountPerPage = 0;
             Page page = new Page(pageNo, _file);
             for (TableRow record : page.getPageRows()) {
                 if (whereConnect == 0 || condition_2 == null) {
                     if (condition_1 != null) {
-                        if (!condition_1.checkCondition(record._fields.get(condition_1._columnOrdinal)._strValue))
+                        if (!condition_1.checkCondition(record.getStrValue(condition_1._columnOrdinal)))
                             continue;
                     }
                 }
                 else if (whereConnect == 1){
                     // AND situation
                     if (condition_1 != null) {
-                        if (!condition_1.checkCondition(record._fields.get(condition_1._columnOrdinal)._strValue))
+                        if (!condition_1.checkCondition(record.getStrValue(condition_1._columnOrdinal)))
                             continue;
                     }
                     if (condition_2!=null){
-                        if(!condition_2.checkCondition(record._fields.get(condition_2._columnOrdinal)._strValue))
+                        if(!condition_2.checkCondition(record.getStrValue(condition_2._columnOrdinal)))
                             continue;
                     }
                 }
                 else if (whereConnect == 2){
                     // OR situation
                     if (condition_1 != null && condition_2!=null) {
-                        if (!condition_1.checkCondition(record._fields.get(condition_1._columnOrdinal)._strValue)
-                            && !condition_2.checkCondition(record._fields.get(condition_2._columnOrdinal)._strValue))
+                        if (!condition_1.checkCondition(record.getStrValue(condition_1._columnOrdinal))
+                            && !condition_2.checkCondition(record.getStrValue(condition_2._columnOrdinal)))
                             continue;
                     }
                 }
                 if(!updateRowids.contains(record._rowId))
                     count++;
 
+                if (tableInfo._clusteredKey != null && !canUpdateInPlace(tableInfo, record, newValueMap)) {
+                    movedKeys.add(tableInfo._clusteredKey.encode(record));
+                    continue;
+                }
+
                 List<Field> attrs = record._fields;
                 for(int i :newValueMap.keySet()) {
                     int rowId = record._rowId;
-                    if((record._fields.get(i)._type == Type.TEXT && record._fields.get(i)._strValue.length() == newValueMap.get(i)._strValue.length())
-                            || (record._fields.get(i)._type != Type.NULL && record._fields.get(i)._type != Type.TEXT)){
+                    if(canUpdateInPlace(record.getField(i), newValueMap.get(i))){
+                        TableIndex.updateValue(tableInfo, i, record.getField(i), newValueMap.get(i), record);
                         page.updateRecord(record, i, newValueMap.get(i)._ByteAtt);
                         Field attr = attrs.get(i);
                         attrs.remove(i);
@@ -159,6 +232,8 @@ public class DavisBaseBinaryFile {
                         attrs.add(i, attr);
                     }
                     else{
+                        // the other long values are written again with the row, read them before their pages are freed
+                        record.getFields();
                         page.DeleteTBLRecord(tableInfo._tableName, Integer.valueOf(record._pageHeaderIndex - deleteCountPerPage).shortValue());
                         deleteCountPerPage++;
 
@@ -174,12 +249,60 @@ public class DavisBaseBinaryFile {
                 }
             }
         }
+        count -= moveRecords(tableInfo, movedKeys, newValueMap);
         if(!tableInfo._tableName.equals(tablesTable) && !tableInfo._tableName.equals(columnsTable))
             System.out.println(count+" record(s) updated.");
 
         return count;
     }
 
+    // a value in overflow pages is never overwritten in place
+    private static boolean canUpdateInPlace(Field oldValue, Field newValue) {
+        return (oldValue._type == Type.TEXT && oldValue._overflowPage == -1 && oldValue._strValue.length() == newValue._strValue.length())
+                || (oldValue._type != Type.NULL && oldValue._type != Type.TEXT);
+    }
+
+    // a row of a clustered table stays where it is unless its key changes or a value changes size
+    private static boolean canUpdateInPlace(TableInfo tableInfo, TableRow record, Map<Integer, Field> newValueMap) throws IOException {
+        for (int i : newValueMap.keySet())
+            if (tableInfo._clusteredKey.getColumn(i) != -1 || !canUpdateInPlace(record.getField(i), newValueMap.get(i)))
+                return false;
+        return true;
+    }
+
+    /*
+     * Write the rows of a clustered table again with their new values, each one found by its key.
+     * A new key has to be free, the row is left as it was otherwise. Returns the number of rows
+     * that were not updated.
+     */
+    private int moveRecords(TableInfo tableInfo, List<byte[]> keys, Map<Integer, Field> newValueMap) throws IOException {
+        ClusteredKey clusteredKey = tableInfo._clusteredKey;
+        int failed = 0;
+        for (byte[] key : keys) {
+            int pageNo = ClusteredTable.find(_file, clusteredKey, key);
+            if (pageNo == -1)
+                continue;
+            Page page = new Page(pageNo, _file);
+            TableRow record = null;
+            for (TableRow pageRecord : page.getPageRows())
+                if (Arrays.equals(clusteredKey.encode(pageRecord), key))
+                    record = pageRecord;
+            List<Field> attrs = new ArrayList<>(record.getFields());
+            for (int i : newValueMap.keySet())
+                attrs.set(i, newValueMap.get(i));
+
+            byte[] newKey = clusteredKey.encode(attrs);
+            if (!Arrays.equals(newKey, key) && ClusteredTable.find(_file, clusteredKey, newKey) != -1) {
+                System.out.println("ERROR: Update failed: Primary key " + clusteredKey.toString(newKey) + " should be unique.");
+                failed++;
+                continue;
+            }
+            page.DeleteTBLRecord(tableInfo._tableName, record._pageHeaderIndex);
+            page.addTableRow(tableInfo._tableName, attrs);
+        }
+        return failed;
+    }
+
     public void selectRecords(TableInfo tableInfo, List<String> columnNames, WhereCondition condition_1, WhereCondition condition_2, int whereConnect) throws IOException{
         //The select order might be different from the table ordinal position
         List<Integer> ordinalPostions = tableInfo.getOrdinalPostions(columnNames);
@@ -213,31 +336,31 @@ public class DavisBaseBinaryFile {
 
         String currentValue = "";
         int count = 0;
-        for(Integer pageNo : bPlusTree._leavesNum) {
+        for(Integer pageNo : bPlusTree.getLeaves(condition_1, condition_2, whereConnect)) {
             Page page = new Page(pageNo, _file);
             for(TableRow record : page.getPageRows()) {
                 if (whereConnect == 0 || condition_2 == null) {
                     if (condition_1 != null) {
-                        if (!condition_1.checkCondition(record._fields.get(condition_1._columnOrdinal)._strValue))
+                        if (!condition_1.checkCondition(record.getStrValue(condition_1._columnOrdinal)))
                             continue;
                     }
                 }
                 else if (whereConnect == 1){
                     // AND situation
                     if (condition_1 != null) {
-                        if (!condition_1.checkCondition(record._fields.get(condition_1._columnOrdinal)._strValue))
+                        if (!condition_1.checkCondition(record.getStrValue(condition_1._columnOrdinal)))
                             continue;
                     }
                     if (condition_2 != null){
-                        if(!condition_2.checkCondition(record._fields.get(condition_2._columnOrdinal)._strValue))
+                        if(!condition_2.checkCondition(record.getStrValue(condition_2._columnOrdinal)))
                             continue;
                     }
                 }
                 else if (whereConnect == 2){
                     // OR situation
                     if (condition_1 != null && condition_2 != null) {
-                        if (!condition_1.checkCondition(record._fields.get(condition_1._columnOrdinal)._strValue)
-                                && !condition_2.checkCondition(record._fields.get(condition_2._columnOrdinal)._strValue))
+                        if (!condition_1.checkCondition(record.getStrValue(condition_1._columnOrdinal))
+                                && !condition_2.checkCondition(record.getStrValue(condition_2._columnOrdinal)))
                             continue;
                     }
                 }
@@ -248,7 +371,7 @@ public class DavisBaseBinaryFile {
                     System.out.print(DavisBasePrompt.line(" ",printPosition.get(++columnCount) - currentValue.length()));
                 }
                 for(int i :ordinalPostions) {
-                    currentValue = record._fields.get(i)._strValue;
+                    currentValue = record.getField(i)._strValue;
                     System.out.print(currentValue);
                     System.out.print(DavisBasePrompt.line(" ",printPosition.get(++columnCount) - currentValue.length()));
                 }
@@ -282,6 +405,7 @@ public class DavisBaseBinaryFile {
             oldTableFiles = dataDir.list();
             for (int i = 0; i < oldTableFiles.length; i++) {
                 File anOldFile = new File(dataDir, oldTableFiles[i]);
+                BufferPool.discard(anOldFile.getPath());
                 anOldFile.delete();
             }
         } catch (SecurityException se) {
@@ -291,22 +415,20 @@ public class DavisBaseBinaryFile {
 
         /* Create davisbase_tables system catalog */
         try {
-            int currentPageNo = 0;
-
-            RandomAccessFile davisbaseTablesCatalog = new RandomAccessFile(DavisBasePrompt.getTBLFilePath(tablesTable), "rw");
-            Page.addNewPage(davisbaseTablesCatalog, PageType.tblLEAF, -1, -1);
+            RandomAccessFile davisbaseTablesCatalog = BufferPool.open(DavisBasePrompt.getTBLFilePath(tablesTable), "rw");
+            int currentPageNo = createTableFile(davisbaseTablesCatalog, pageSize);
             Page page = new Page(currentPageNo, davisbaseTablesCatalog);
 
             page.addTableRow(tablesTable,Arrays.asList(new Field(Type.TEXT, DavisBaseBinaryFile.tablesTable),
-                    new Field(Type.SMALLINT, "0"),
+                    new Field(Type.SMALLINT, Integer.toString(currentPageNo)),
                     new Field(Type.INT, "2"),
                     new Field(Type.INT, "2")));
 
             page.addTableRow(tablesTable,Arrays.asList(new Field(Type.TEXT, DavisBaseBinaryFile.columnsTable),
-                    new Field(Type.SMALLINT, "2"),
+                    new Field(Type.SMALLINT, Integer.toString(currentPageNo)),
                     new Field(Type.INT, "11"),
                     new Field(Type.INT, "11")));
-            davisbaseTablesCatalog.close();
+            BufferPool.close(davisbaseTablesCatalog);
         } catch (Exception e) {
             out.println("Unable to create the database_tables file");
             out.println(e.getMessage());
@@ -314,9 +436,8 @@ public class DavisBaseBinaryFile {
 
         /* Create davisbase_columns systems catalog */
         try {
-            RandomAccessFile davisbaseColumnsCatalog = new RandomAccessFile(DavisBasePrompt.getTBLFilePath(columnsTable), "rw");
-            Page.addNewPage(davisbaseColumnsCatalog, PageType.tblLEAF, -1, -1);
-            Page page = new Page(0, davisbaseColumnsCatalog);
+            RandomAccessFile davisbaseColumnsCatalog = BufferPool.open(DavisBasePrompt.getTBLFilePath(columnsTable), "rw");
+            Page page = new Page(createTableFile(davisbaseColumnsCatalog, pageSize), davisbaseColumnsCatalog);
 
             short ordinal_position = 1;
 
@@ -337,8 +458,11 @@ public class DavisBaseBinaryFile {
             page.addNewColumn(new TableCol(columnsTable,Type.SMALLINT, "primary_key", false, true, ordinal_position++));
             page.addNewColumn(new TableCol(columnsTable,Type.SMALLINT, "is_unique", false, false, ordinal_position));
 
-            davisbaseColumnsCatalog.close();
+            BufferPool.close(davisbaseColumnsCatalog);
             dataStoreInitialized = true;
+
+            // the columns catalog has split while it was filled, record its actual root page
+            new TableInfo(columnsTable).updateCatalog();
         } catch (Exception e) {
             out.println("Unable to create the database_columns file");
             out.println(e.getMessage());
@@ -4,7 +4,16 @@ import java.io.IOException;
 import java.util.Scanner;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import static java.lang.System.out;
 
 /**
@@ -18,6 +27,8 @@ public class DavisBasePrompt {
     static String copyright = "Bo-Yu_Huang";
 
     static boolean isExit = false;
+    // the last command as it was typed, before it was lowercased (file paths keep their case)
+    static String typedCommand = "";
     /*
      * The Scanner class is used to collect user commands from the prompt There are
      * many ways to do this. This is just one.
@@ -31,28 +42,99 @@ public class DavisBasePrompt {
      * ******** Main method ******************
      */
     public static void main(String[] args) {
+        parseStartupFlags(args);
+
         /* Display the welcome screen */
         splashScreen();
 
+        /* Redo the statements committed in the log before a crash */
+        WriteAheadLog.recover();
+
         File dataDir = new File("data/catalog/");
 
         if (!new File(dataDir, DavisBaseBinaryFile.tablesTable + ".tbl").exists()
-                || !new File(dataDir, DavisBaseBinaryFile.columnsTable + ".tbl").exists())
+                || !new File(dataDir, DavisBaseBinaryFile.columnsTable + ".tbl").exists()) {
             DavisBaseBinaryFile.initializeDataStore();
+            WriteAheadLog.commit();
+        }
         else
             DavisBaseBinaryFile.dataStoreInitialized = true;
+        WriteAheadLog.startCheckpointer();
 
         /* Variable to collect user input from the prompt */
         String userCommand = "";
 
         while (!isExit) {
             System.out.print(prompt);
-            userCommand = scanner.next().replace("\n", " ").replace("\r", "").trim().toLowerCase();
+            typedCommand = scanner.next().replace("\n", " ").replace("\r", "").trim();
+            userCommand = typedCommand.toLowerCase();
             parseUserCommand(userCommand);
+            // every statement is durable once its changes are in the log
+            WriteAheadLog.commit();
         }
+        // write back every page still dirty in the buffer pool, the log is not needed anymore
+        WriteAheadLog.stopCheckpointer();
+        BufferPool.flushAll();
+        WriteAheadLog.close();
         System.out.println("Exiting from BY_Query");
     }
 
+    /**
+     * Startup flags, e.g. --buffer-pool-mb=16 --storage=mmap
+     */
+    public static void parseStartupFlags(String[] args) {
+        for (String arg : args) {
+            String[] flag = arg.split("=", 2);
+            try {
+                switch (flag[0]) {
+                    case "--buffer-pool-mb":
+                        BufferPool.bufferPoolSizeMB = Integer.parseInt(flag[1]);
+                        break;
+                    case "--checkpoint-interval-ms":
+                        WriteAheadLog.checkpointIntervalMs = Integer.parseInt(flag[1]);
+                        break;
+                    case "--durability":
+                        WriteAheadLog.setDurability(Durability.valueOf(flag[1].toUpperCase()));
+                        break;
+                    case "--flush-interval-ms":
+                        WriteAheadLog.flushIntervalMs = Integer.parseInt(flag[1]);
+                        break;
+                    case "--extent-kb":
+                        DavisBaseBinaryFile.extentSizeKB = Integer.parseInt(flag[1]);
+                        break;
+                    case "--extent-percent":
+                        DavisBaseBinaryFile.extentGrowthPercent = Integer.parseInt(flag[1]);
+                        break;
+                    case "--log-segment-kb":
+                        WriteAheadLog.segmentSizeKB = Integer.parseInt(flag[1]);
+                        break;
+                    case "--page-size":
+                        DavisBaseBinaryFile.setDefaultPageSize(Integer.parseInt(flag[1]));
+                        break;
+                    case "--sort-kb":
+                        SortedRuns.runKB = Integer.parseInt(flag[1]);
+                        break;
+                    case "--read-ahead":
+                        BufferPool.readAheadPages = Integer.parseInt(flag[1]);
+                        break;
+                    case "--storage":
+                        if (flag[1].equals("mmap"))
+                            BufferPool.useMappedIO = true;
+                        else if (flag[1].equals("buffered"))
+                            BufferPool.useMappedIO = false;
+                        else
+                            throw new Exception();
+                        break;
+                    default:
+                        System.out.println("WARNING: unknown startup flag \"" + arg + "\"");
+                        break;
+                }
+            } catch (Exception e) {
+                System.out.println("WARNING: invalid value for startup flag \"" + arg + "\"");
+            }
+        }
+    }
+
     /**
      * ***********************************************************************
      * Static method definitions
@@ -88,8 +170,18 @@ public class DavisBasePrompt {
         out.println("SHOW TABLES;");
         out.println("\tDisplay the names of all tables.\n");
 
-        out.println("CREATE TABLE <table_name> (<column_name> <data_type> <primary key> <not null>, ...);");
-        out.println("\tCreates a table with the given columns.\n");
+        out.println("CREATE TABLE <table_name> (<column_name> <data_type> <primary key> <not null>, ...) [WITH (page_size = <bytes>, compression = deflate, layout = pax)];");
+        out.println("\tCreates a table with the given columns.");
+        out.println("\tpage_size is a power of 2 from 512 to 65536, the default is 512 (see --page-size).");
+        out.println("\tcompression = deflate stores the pages deflated, for tables that are read more than written.");
+        out.println("\tlayout = pax keeps each column together in the leaf pages, for queries that use a few columns of many.");
+        out.println("\tPRIMARY KEY CLUSTERED, or PRIMARY KEY (<column_name>) CLUSTERED after the columns, keeps the rows in");
+        out.println("\tthe order of a TINYINT, SMALLINT or INT key of 0 or more: a condition on it reads only the leaves of its range.\n");
+
+        out.println("CREATE INDEX [<index_name>] ON <table_name> (<column_name>) [USING {BTREE | HASH}];");
+        out.println("\tKeeps the values of the column in a B+ tree of their own, in <table_name>.<column_name>.ndx.");
+        out.println("\tA condition <column_name> =, <, >, <= or >= <value> then reads only the leaves of the rows it finds.");
+        out.println("\tUSING HASH keeps them in a linear hash file (.hdx) instead, for columns only compared with =.\n");
 
         out.println("DROP TABLE <table_name>;");
         out.println("\tRemoves table data (i.e. all records) and its schema as well as any indexes.\n");
@@ -107,7 +199,23 @@ public class DavisBasePrompt {
 
         out.println("SELECT <column_list> FROM <table_name> WHERE <condition>;");
         out.println("\tDisplay table records whose optional <condition>");
-        out.println("\tis <column_name> = <value>.\n");
+        out.println("\tis <column_name> = <value>.");
+        out.println("\tA condition rowid = <value> reads only the leaf that holds the row,");
+        out.println("\trowid > <value> or rowid BETWEEN <a> AND <b> only the leaves of the range.\n");
+
+        out.println("LOAD DATA '<file.csv>' INTO <table_name> [WITH (fill_factor = <percent>, header = true)];");
+        out.println("\tAppends the rows of a CSV file, values in column order, building the tree bottom-up.");
+        out.println("\tLeaves are filled up to fill_factor percent (default 100), header = true skips the first line.\n");
+
+        out.println("COPY <table_name> [WHERE <condition>] TO '<file>' FORMAT {CSV | BINARY};");
+        out.println("\tWrites the records of the table to a file, a CSV file can be read back with LOAD DATA.\n");
+
+        out.println("VACUUM <table_name>;");
+        out.println("\tRebuilds the table file without the space of deleted records and truncates it.\n");
+
+        out.println("SET DURABILITY = {FULL | BATCHED | NONE};");
+        out.println("\tFULL forces the log at the end of every statement (default), BATCHED every");
+        out.println("\t--flush-interval-ms in the background, NONE leaves it to the OS.\n");
 
         out.println("SOURCE <filename>;");
         out.println("\tProcess a batch file of commands.\n");
@@ -172,26 +280,40 @@ public class DavisBasePrompt {
                     System.out.println("ERROR: I didn't understand the command: \"" + userCommand + "\"");
                 break;
             case "select":
-                parseQuery(userCommand);
+                parseQuery(rewriteBetween(userCommand));
                 break;
             case "create":
                 if (commandTokens.get(1).equals("table"))
                     parseCreateTable(userCommand);
+                else if (commandTokens.get(1).equals("index"))
+                    parseCreateIndex(userCommand);
                 else
-                    System.out.println("I only support 'create table' command! I didn't understand the command: \"" + userCommand + "\"");
+                    System.out.println("I only support 'create table' and 'create index' commands! I didn't understand the command: \"" + userCommand + "\"");
                 break;
             case "insert":
                 parseInsert(userCommand);
                 break;
             case "delete":
-                parseDelete(userCommand);
+                parseDelete(rewriteBetween(userCommand));
                 break;
             case "update":
-                parseUpdate(userCommand);
+                parseUpdate(rewriteBetween(userCommand));
                 break;
             case "drop":
                 dropTable(userCommand);
                 break;
+            case "vacuum":
+                parseVacuum(userCommand);
+                break;
+            case "load":
+                parseLoad(userCommand);
+                break;
+            case "copy":
+                parseCopy(rewriteBetween(userCommand));
+                break;
+            case "set":
+                parseSet(userCommand);
+                break;
             case "help":
                 help();
                 break;
@@ -208,6 +330,11 @@ public class DavisBasePrompt {
         }
     }
 
+    // WHERE <column> BETWEEN <a> AND <b> is read as WHERE <column> >= <a> AND <column> <= <b>
+    static String rewriteBetween(String command) {
+        return command.replaceAll(" where (\\w+) between (\\S+) and (\\S+)", " where $1 >= $2 and $1 <= $3");
+    }
+
     /**
      * Stub method for executing queries
      *
@@ -287,10 +414,10 @@ public class DavisBasePrompt {
             column_names = tableInfo._colNames;
 
         try {
-            RandomAccessFile tableFile = new RandomAccessFile(getTBLFilePath(table_name), "r");
+            RandomAccessFile tableFile = BufferPool.open(getTBLFilePath(table_name), "r");
             DavisBaseBinaryFile tableBinaryFile = new DavisBaseBinaryFile(tableFile);
             tableBinaryFile.selectRecords(tableInfo, column_names, condition_1, condition_2, whereConnect);
-            tableFile.close();
+            BufferPool.close(tableFile);
         } catch (IOException exception) {
             System.out.println("Error selecting columns from table");
         }
@@ -317,6 +444,19 @@ public class DavisBasePrompt {
         parseDelete("delete from "+ DavisBaseBinaryFile.tablesTable + " where table_name = '"+tableName+"' ");
         parseDelete("delete from "+ DavisBaseBinaryFile.columnsTable + " where table_name = '"+tableName+"' ");
         File tableFile = new File("data/user_data/"+tableName+".tbl");
+        // the catalog rows are gone for good before the file is
+        WriteAheadLog.commit();
+        BufferPool.discard(tableFile.getPath());
+        try {
+            CompressedFile.deleteMap(CompressedFile.getMapPath(tableFile.getPath()));
+        } catch (IOException e) {
+            // the table file is missing or unreadable, it has no page map to delete either
+        }
+        // and the indexes of the table
+        for (File indexFile : TableIndex.getNDXFiles(tableName)) {
+            BufferPool.discard(indexFile.getPath());
+            indexFile.delete();
+        }
         if(tableFile.delete()){
             System.out.println("Dropped " + tableName);
         }else
@@ -404,11 +544,11 @@ public class DavisBasePrompt {
             }
         }
         try {
-            RandomAccessFile file = new RandomAccessFile(getTBLFilePath(table_name), "rw");
+            RandomAccessFile file = BufferPool.open(getTBLFilePath(table_name), "rw");
             DavisBaseBinaryFile binaryFile = new DavisBaseBinaryFile(file);
             binaryFile.updateRecords(tableInfo, condition_1, condition_2, whereConnect, columnsToUpdate, valueToUpdate);
 
-            file.close();
+            BufferPool.close(file);
         } catch (Exception e) {
             out.println("Unable to update the " + table_name + " file");
             out.println(e);
@@ -440,6 +580,9 @@ public class DavisBasePrompt {
                 System.out.println("ERROR: Table does not exist.");
                 return;
             }
+            // the unique values are looked up in the indexes of their columns (before a NULL value
+            // below changes the type of its column)
+            TableIndex.createUniqueIndexes(tableInfo);
 
             ArrayList<String> columnTokens = new ArrayList<>(Arrays.asList(
                     queryString.substring(queryString.indexOf("(") + 1, queryString.indexOf(") values")).split(",")));
@@ -502,13 +645,13 @@ public class DavisBasePrompt {
             }
 
             // insert attributes to the page
-            RandomAccessFile dstTable = new RandomAccessFile(getTBLFilePath(tableName), "rw");
+            RandomAccessFile dstTable = BufferPool.open(getTBLFilePath(tableName), "rw");
             int dstPageNo = BPlusTree.getPageNoForInsert(dstTable, tableInfo._rootPageNum);
             Page dstPage = new Page(dstPageNo, dstTable);
 
             int rowNo = dstPage.addTableRow(tableName, attributeToInsert);
 
-            dstTable.close();
+            BufferPool.close(dstTable);
             if (rowNo != -1)
                 System.out.println("Record Inserted");
             System.out.println();
@@ -527,7 +670,7 @@ public class DavisBasePrompt {
         // table and () check
         if (!createTableTokens.get(1).equals("table")) {
             System.out.println("Syntax Error");
-            System.out.println("Expected Syntax: CREATE TABLE <table_name>(<col_name> <data_type> [not null] [unique] [primary key] );");
+            System.out.println("Expected Syntax: CREATE TABLE <table_name>(<col_name> <data_type> [not null] [unique] [primary key [clustered]] [, primary key (<col_name> [, <col_name>]) [clustered]]);");
             return;
         }
         String tableName = createTableTokens.get(2);
@@ -540,6 +683,73 @@ public class DavisBasePrompt {
                 tableName = tableName.substring(0, tableName.indexOf("("));
             }
 
+            // split off the table options: CREATE TABLE ... (<columns>) WITH (<option> = <value>, ...)
+            Map<String, String> tableOptions = new HashMap<>();
+            Matcher withClause = Pattern.compile("^(.*\\))\\s*with\\s*\\((.*)\\)\\s*$").matcher(createTableString);
+            if (withClause.matches()) {
+                createTableString = withClause.group(1);
+                try {
+                    tableOptions = parseTableOptions(withClause.group(2));
+                } catch (Exception e) {
+                    System.out.println(e.getMessage());
+                    return;
+                }
+            }
+            int tablePageSize = DavisBaseBinaryFile.pageSize;
+            if (tableOptions.containsKey("page_size")) {
+                tablePageSize = Integer.parseInt(tableOptions.get("page_size"));
+                if (!FileHeader.isValidPageSize(tablePageSize)) {
+                    System.out.println("ERROR: page_size must be a power of 2 between " + FileHeader.minPageSize + " and " + FileHeader.maxPageSize);
+                    return;
+                }
+            }
+            byte compression = FileHeader.noCompression;
+            if (tableOptions.containsKey("compression")) {
+                switch (tableOptions.get("compression")) {
+                    case "none":
+                        break;
+                    case "deflate":
+                        compression = FileHeader.deflateCompression;
+                        break;
+                    case "lz4":
+                        // there is no LZ4 codec in the JDK, deflate is the one at hand
+                        System.out.println("ERROR: lz4 compression is not available, use compression = deflate");
+                        return;
+                    default:
+                        System.out.println("ERROR: unknown compression \"" + tableOptions.get("compression") + "\", expected none or deflate");
+                        return;
+                }
+            }
+            byte leafLayout = FileHeader.rowLayout;
+            if (tableOptions.containsKey("layout")) {
+                switch (tableOptions.get("layout")) {
+                    case "row":
+                        break;
+                    case "pax":
+                        leafLayout = FileHeader.paxLayout;
+                        break;
+                    default:
+                        System.out.println("ERROR: unknown layout \"" + tableOptions.get("layout") + "\", expected row or pax");
+                        return;
+                }
+            }
+
+            // the primary key may come after the columns: ..., PRIMARY KEY (<column> [, <column>]) [CLUSTERED])
+            List<String> keyColumnNames = new ArrayList<>();
+            boolean isClustered = false;
+            Matcher primaryKeyClause = Pattern.compile("^(.*?)\\s*,\\s*primary key\\s*\\(([^)]*)\\)(\\s*clustered)?\\s*\\)$").matcher(createTableString);
+            if (primaryKeyClause.matches()) {
+                createTableString = primaryKeyClause.group(1) + ")";
+                for (String keyColumnName : primaryKeyClause.group(2).split(","))
+                    keyColumnNames.add(keyColumnName.trim());
+                isClustered = primaryKeyClause.group(3) != null;
+                if (keyColumnNames.size() > 1 && !isClustered) {
+                    // only the table tree checks a key of several columns, an index has a single column
+                    System.out.println("ERROR: A primary key of several columns has to be CLUSTERED");
+                    return;
+                }
+            }
+
             List<TableCol> lstcolumnInformation = new ArrayList<>();
             ArrayList<String> columnTokens = new ArrayList<>(Arrays.asList(createTableString
                     .substring(createTableString.indexOf("(") + 1, createTableString.length() - 1).split(",")));
@@ -571,14 +781,66 @@ public class DavisBasePrompt {
                         colInfo._isUnique = true;
                         colInfo._isNullable = false;
                         i++;
+                        if (i + 1 < colInfoToken.size() && colInfoToken.get(i + 1).equals("clustered")) {
+                            isClustered = true;
+                            i++;
+                        }
                     }
                 }
                 colInfo._ordinalPosition = ordinalPosition++;
                 lstcolumnInformation.add(colInfo);
+                if (keyColumnNames.contains(colInfo._columnName)) {
+                    // a column of a key of several columns repeats, only the whole key is unique
+                    colInfo._isPrimaryKey = true;
+                    colInfo._isUnique = keyColumnNames.size() == 1;
+                    colInfo._isNullable = false;
+                }
+            }
+
+            // the columns of the key, in the order PRIMARY KEY (...) lists them
+            List<TableCol> primaryKey = new ArrayList<>();
+            for (String keyColumnName : keyColumnNames) {
+                TableCol keyColumn = null;
+                for (TableCol column : lstcolumnInformation)
+                    if (column._columnName.equals(keyColumnName))
+                        keyColumn = column;
+                if (keyColumn == null) {
+                    System.out.println("ERROR: Invalid column name " + keyColumnName);
+                    return;
+                }
+                primaryKey.add(keyColumn);
+            }
+            if (keyColumnNames.isEmpty())
+                for (TableCol column : lstcolumnInformation)
+                    if (column._isPrimaryKey)
+                        primaryKey.add(column);
+            ClusteredKey clusteredKey = null;
+            if (isClustered) {
+                // the table tree is ordered by the key, see ClusteredTable
+                if (primaryKey.size() != 1 && keyColumnNames.isEmpty()) {
+                    System.out.println("ERROR: A clustered key of several columns is listed in PRIMARY KEY (<col_name>, <col_name>) CLUSTERED");
+                    return;
+                }
+                if (primaryKey.size() > ClusteredKey.maxColumns) {
+                    System.out.println("ERROR: A clustered key has at most " + ClusteredKey.maxColumns + " columns");
+                    return;
+                }
+                int[] ordinals = new int[primaryKey.size()];
+                Type[] types = new Type[primaryKey.size()];
+                for (int i = 0; i < primaryKey.size(); i++) {
+                    if (!ClusteredKey.isKeyType(primaryKey.get(i)._type)) {
+                        System.out.println("ERROR: The clustered key column " + primaryKey.get(i)._columnName + " is " + primaryKey.get(i)._type
+                                + ", a clustered key is made of TINYINT, SMALLINT, INT, LONG, YEAR, DATE or DATETIME columns");
+                        return;
+                    }
+                    ordinals[i] = primaryKey.get(i)._ordinalPosition - 1;
+                    types[i] = primaryKey.get(i)._type;
+                }
+                clusteredKey = new ClusteredKey(ordinals, types);
             }
 
             // update meta data
-            RandomAccessFile davisbaseTablesCatalog = new RandomAccessFile(
+            RandomAccessFile davisbaseTablesCatalog = BufferPool.open(
                     getTBLFilePath(DavisBaseBinaryFile.tablesTable), "rw");
             TableInfo davisbaseTableMetaData = new TableInfo(DavisBaseBinaryFile.tablesTable);
 
@@ -588,21 +850,25 @@ public class DavisBasePrompt {
             // update davisbase_tables manually
             int rowNo = page.addTableRow(DavisBaseBinaryFile.tablesTable,
                     Arrays.asList(new Field(Type.TEXT, tableName),
-                            new Field(Type.SMALLINT, "0"), new Field(Type.INT, "0"),
+                            new Field(Type.SMALLINT, "1"), new Field(Type.INT, "0"),
                             new Field(Type.INT, "0")));
-            davisbaseTablesCatalog.close();
+            BufferPool.close(davisbaseTablesCatalog);
 
             if (rowNo == -1) {
                 System.out.println("ERROR: Duplicate table Name");
                 return;
             }
 
-            RandomAccessFile tableFile = new RandomAccessFile(getTBLFilePath(tableName), "rw");
+            RandomAccessFile tableFile = BufferPool.open(getTBLFilePath(tableName), "rw");
 
-            Page.addNewPage(tableFile, PageType.tblLEAF, -1, -1);
-            tableFile.close();
+            DavisBaseBinaryFile.createTableFile(tableFile, tablePageSize, compression, leafLayout);
+            if (clusteredKey != null) {
+                BufferPool.getHeader(tableFile)._clusteredKey = clusteredKey;
+                BufferPool.writeHeader(tableFile);
+            }
+            BufferPool.close(tableFile);
 
-            RandomAccessFile davisbaseColumnsCatalog = new RandomAccessFile(getTBLFilePath(DavisBaseBinaryFile.columnsTable), "rw");
+            RandomAccessFile davisbaseColumnsCatalog = BufferPool.open(getTBLFilePath(DavisBaseBinaryFile.columnsTable), "rw");
             TableInfo davisbaseColumnsMetaData = new TableInfo(DavisBaseBinaryFile.columnsTable);
             pageNo = BPlusTree.getPageNoForInsert(davisbaseColumnsCatalog, davisbaseColumnsMetaData._rootPageNum);
 
@@ -611,7 +877,10 @@ public class DavisBasePrompt {
             for (TableCol column : lstcolumnInformation)
                 page_1.addNewColumn(column);
 
-            davisbaseColumnsCatalog.close();
+            BufferPool.close(davisbaseColumnsCatalog);
+
+            // an empty index for each UNIQUE or PRIMARY KEY column
+            TableIndex.createUniqueIndexes(new TableInfo(tableName));
 
             System.out.println("Table created");
 
@@ -623,6 +892,305 @@ public class DavisBasePrompt {
         }
     }
 
+    /**
+     * CREATE INDEX [<index_name>] ON <table_name> (<column_name>) [USING {BTREE | HASH}], see TableIndex
+     *
+     * @param createIndexString is a String of the user input
+     */
+    public static void parseCreateIndex(String createIndexString) {
+        // the index is named after its table and column, a name given is only accepted
+        Matcher matcher = Pattern.compile("^create index (?:\\w+ )?on (\\w+) ?\\( ?(\\w+) ?\\)(?: using (btree|hash))?$").matcher(createIndexString.trim());
+        if (!matcher.matches()) {
+            System.out.println("Syntax Error");
+            System.out.println("Expected Syntax: CREATE INDEX [<index_name>] ON <table_name> (<column_name>) [USING {BTREE | HASH}];");
+            return;
+        }
+        String tableName = matcher.group(1);
+        String columnName = matcher.group(2);
+        boolean isHash = "hash".equals(matcher.group(3));
+        if (tableName.equals(DavisBaseBinaryFile.tablesTable) || tableName.equals(DavisBaseBinaryFile.columnsTable)) {
+            System.out.println("ERROR: The catalog tables can't be indexed");
+            return;
+        }
+        TableInfo tableInfo = new TableInfo(tableName);
+        if (!tableInfo._tableExist) {
+            System.out.println("ERROR: Table does not exist");
+            return;
+        }
+        int columnOrdinal = tableInfo._colNames.indexOf(columnName);
+        if (columnOrdinal == -1) {
+            System.out.println("ERROR: Invalid column name " + columnName);
+            return;
+        }
+        if (tableInfo._clusteredKey != null && tableInfo._clusteredKey.isLeadingColumn(columnOrdinal)) {
+            System.out.println("ERROR: " + tableName + " is clustered on " + columnName + ", the table itself is ordered by it");
+            return;
+        }
+        if (TableIndex.exists(tableName, columnName)) {
+            System.out.println("ERROR: " + tableName + " (" + columnName + ") is already indexed");
+            return;
+        }
+
+        try {
+            int keyCount = TableIndex.build(tableInfo, columnOrdinal, isHash);
+            System.out.println((isHash ? "Hash index" : "Index") + " created on " + tableName + " (" + columnName + "), " + keyCount + " key(s)");
+        } catch (IOException e) {
+            System.out.println("ERROR: unable to create the index on " + tableName + " (" + columnName + ") " + e.getMessage());
+        }
+    }
+
+    /**
+     * Rebuild a table file with only its live records, the free pages at the tail are gone
+     *
+     * @param vacuumString is a String of the user input
+     */
+    public static void parseVacuum(String vacuumString) {
+        String[] tokens = vacuumString.trim().split(" ");
+        if (tokens.length != 2) {
+            System.out.println("Syntax Error");
+            System.out.println("Expected Syntax: VACUUM <table_name>;");
+            return;
+        }
+        String tableName = tokens[1];
+        TableInfo tableInfo = new TableInfo(tableName);
+        if (!tableInfo._tableExist) {
+            System.out.println("ERROR: Table does not exist");
+            return;
+        }
+
+        String tablePath = getTBLFilePath(tableName);
+        String vacuumPath = tablePath + ".vacuum";
+        try {
+            RandomAccessFile tableFile = BufferPool.open(tablePath, "rw");
+            new File(vacuumPath).delete();
+            RandomAccessFile vacuumFile = BufferPool.open(vacuumPath, "rw");
+            long pagesBefore = BufferPool.getHeader(tableFile)._pageCount;
+
+            new DavisBaseBinaryFile(tableFile).copyRecordsTo(vacuumFile);
+            long pagesAfter = BufferPool.getHeader(vacuumFile)._pageCount;
+            // drop the preallocated tail of the new file, a compressed one has none
+            if (!BufferPool.getHeader(vacuumFile).isCompressed())
+                vacuumFile.setLength(pagesAfter * BufferPool.getPageSize(vacuumFile));
+
+            // the file is replaced outside the log, so the new one must be complete on disk first
+            WriteAheadLog.commit();
+            BufferPool.flushFile(vacuumPath);
+            BufferPool.forceFile(vacuumPath);
+
+            BufferPool.close(vacuumFile);
+            BufferPool.close(tableFile);
+            BufferPool.discard(vacuumPath);
+            BufferPool.discard(tablePath);
+            // the new file comes with its own page map, the old one goes with the old file
+            String oldMapPath = CompressedFile.getMapPath(tablePath);
+            Files.move(Paths.get(vacuumPath), Paths.get(tablePath), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            CompressedFile.deleteMap(oldMapPath);
+
+            // the root page has moved
+            new TableInfo(tableName).updateCatalog();
+            System.out.println("Vacuumed " + tableName + ": " + pagesBefore + " pages -> " + pagesAfter + " pages");
+        } catch (IOException e) {
+            System.out.println("ERROR: unable to vacuum " + tableName + " " + e);
+            new File(vacuumPath).delete();
+        }
+    }
+
+    /**
+     * LOAD DATA '<file.csv>' INTO <table_name> [WITH (fill_factor = <percent>, header = true)]
+     * Adds the rows of the CSV file to the table, see BulkLoader.
+     *
+     * @param loadString is a String of the user input
+     */
+    public static void parseLoad(String loadString) {
+        Matcher matcher = Pattern.compile("^load data '([^']+)' into (\\w+)(?:\\s*with\\s*\\((.*)\\))?$").matcher(loadString.trim());
+        if (!matcher.matches()) {
+            System.out.println("Syntax Error");
+            System.out.println("Expected Syntax: LOAD DATA '<file.csv>' INTO <table_name> [WITH (fill_factor = <percent>, header = true)];");
+            return;
+        }
+        String csvPath = asTyped(loadString.trim(), matcher.start(1), matcher.end(1));
+        String tableName = matcher.group(2);
+        int fillFactor = 100;
+        boolean hasHeader = false;
+        try {
+            if (matcher.group(3) != null) {
+                Map<String, String> options = parseOptions(matcher.group(3), "load option", "fill_factor", "header");
+                if (options.containsKey("fill_factor")) {
+                    fillFactor = Integer.parseInt(options.get("fill_factor"));
+                    if (fillFactor < 10 || fillFactor > 100) {
+                        System.out.println("ERROR: fill_factor must be a percent between 10 and 100");
+                        return;
+                    }
+                }
+                hasHeader = options.containsKey("header") && options.get("header").equals("true");
+            }
+        } catch (Exception e) {
+            System.out.println(e instanceof NumberFormatException ? "ERROR: fill_factor must be a number" : e.getMessage());
+            return;
+        }
+
+        TableInfo tableInfo = new TableInfo(tableName);
+        if (!tableInfo._tableExist) {
+            System.out.println("ERROR: Table does not exist");
+            return;
+        }
+        if (!new File(csvPath).isFile()) {
+            System.out.println("ERROR: no such file " + csvPath);
+            return;
+        }
+        String tablePath = getTBLFilePath(tableName);
+        BulkLoader loader = null;
+        RandomAccessFile tableFile = null;
+        try {
+            // the values of a UNIQUE column are looked up in its index, a table created before them gets it now
+            TableIndex.createUniqueIndexes(tableInfo);
+            tableFile = BufferPool.open(tablePath, "rw");
+            loader = new BulkLoader(tableFile, tableInfo, fillFactor);
+            int rowsLoaded = loader.loadCsv(csvPath, hasHeader);
+            loader.finish();
+            BufferPool.close(tableFile);
+            tableFile = null;
+
+            if (loader._path != null) {
+                // the file of a clustered table was built again, it is replaced outside the log like VACUUM does
+                WriteAheadLog.commit();
+                BufferPool.discard(tablePath);
+                String oldMapPath = CompressedFile.getMapPath(tablePath);
+                Files.move(Paths.get(loader._path), Paths.get(tablePath), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                CompressedFile.deleteMap(oldMapPath);
+            }
+
+            // the catalog is written once for the whole load
+            tableInfo._rowCount += rowsLoaded;
+            tableInfo._last_id = Math.max(tableInfo._last_id, loader._lastRowId);
+            tableInfo.updateCatalog();
+            // the indexes are built again from the table, the same way
+            TableIndex.rebuildAll(tableInfo);
+            System.out.println(rowsLoaded + " record(s) loaded into " + tableName + ", " + loader._header._pageCount + " pages");
+        } catch (Exception e) {
+            System.out.println(e.getMessage() != null && e.getMessage().startsWith("ERROR") ? e.getMessage()
+                    : "ERROR: unable to load " + csvPath + " into " + tableName + " " + e);
+            if (loader != null)
+                loader.abort();
+            try {
+                if (tableFile != null)
+                    BufferPool.close(tableFile);
+            } catch (IOException closeError) {
+                // nothing of the load reached the table
+            }
+        }
+    }
+
+    /**
+     * COPY <table_name> [WHERE <condition>] TO '<file>' FORMAT {CSV | BINARY}, see TableExporter
+     *
+     * @param copyString is a String of the user input
+     */
+    public static void parseCopy(String copyString) {
+        Matcher matcher = Pattern.compile("^copy (\\w+)( where .*)? to '([^']+)' format (csv|binary)$").matcher(copyString.trim());
+        if (!matcher.matches()) {
+            System.out.println("Syntax Error");
+            System.out.println("Expected Syntax: COPY <table_name> [WHERE <condition>] TO '<file>' FORMAT {CSV | BINARY};");
+            return;
+        }
+        String tableName = matcher.group(1);
+        String path = asTyped(copyString.trim(), matcher.start(3), matcher.end(3));
+        TableInfo tableInfo = new TableInfo(tableName);
+        if (!tableInfo._tableExist) {
+            System.out.println("ERROR: Table does not exist");
+            return;
+        }
+
+        /// get AND(1), OR(2)
+        int whereConnect = 0;
+        String condstring_1 = matcher.group(2) == null ? "" : matcher.group(2).trim();
+        String condstring_2 = "where ";
+        List<String> whereTokens = Arrays.asList(condstring_1.split(" "));
+        if (whereTokens.contains("and")) {
+            condstring_2 += condstring_1.substring(condstring_1.indexOf(" and ") + 5);
+            condstring_1 = condstring_1.substring(0, condstring_1.indexOf(" and "));
+            whereConnect = 1;
+        }
+        else if (whereTokens.contains("or")) {
+            condstring_2 += condstring_1.substring(condstring_1.indexOf(" or ") + 4);
+            condstring_1 = condstring_1.substring(0, condstring_1.indexOf(" or "));
+            whereConnect = 2;
+        }
+
+        WhereCondition condition_1 = null;
+        WhereCondition condition_2 = null;
+        try {
+            condition_1 = WhereCondition.extractConditionFromQuery(tableInfo, condstring_1);
+            if (whereConnect != 0)
+                condition_2 = WhereCondition.extractConditionFromQuery(tableInfo, condstring_2);
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+
+        try {
+            RandomAccessFile tableFile = BufferPool.open(getTBLFilePath(tableName), "r");
+            int count = new TableExporter(tableFile, tableInfo, matcher.group(4).equals("binary"))
+                    .export(path, condition_1, condition_2, whereConnect);
+            BufferPool.close(tableFile);
+            System.out.println(count + " record(s) copied to " + path);
+        } catch (IOException e) {
+            System.out.println("ERROR: unable to copy " + tableName + " to " + path + " " + e);
+        }
+    }
+
+    // The part of a command as it was typed, when the command is the last one typed
+    static String asTyped(String command, int start, int end) {
+        String typed = typedCommand.replaceAll("\n", " ").replaceAll("( )+", " ").trim();
+        if (typed.toLowerCase().equals(command))
+            return typed.substring(start, end);
+        return command.substring(start, end);
+    }
+
+    /**
+     * SET DURABILITY = {FULL | BATCHED | NONE}
+     *
+     * @param setString is a String of the user input
+     */
+    public static void parseSet(String setString) {
+        Matcher matcher = Pattern.compile("^set durability\\s*=\\s*(\\w+)$").matcher(setString.trim());
+        if (!matcher.matches()) {
+            System.out.println("Syntax Error");
+            System.out.println("Expected Syntax: SET DURABILITY = {FULL | BATCHED | NONE};");
+            return;
+        }
+        try {
+            WriteAheadLog.setDurability(Durability.valueOf(matcher.group(1).toUpperCase()));
+            System.out.println("Durability set to " + matcher.group(1));
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR: unknown durability level \"" + matcher.group(1) + "\"");
+        }
+    }
+
+    /**
+     * Parse the options of CREATE TABLE ... WITH (<option> = <value>, ...)
+     */
+    public static Map<String, String> parseTableOptions(String optionString) throws Exception {
+        return parseOptions(optionString, "table option", "page_size", "compression", "layout");
+    }
+
+    /**
+     * Parse a WITH (<option> = <value>, ...) list, only the given option names are allowed
+     */
+    public static Map<String, String> parseOptions(String optionString, String kind, String... names) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String option : optionString.split(",")) {
+            String[] pair = option.split("=");
+            if (pair.length != 2)
+                throw new Exception("ERROR: " + kind + " should be <option> = <value>: " + option.trim());
+            String name = pair[0].trim();
+            if (!Arrays.asList(names).contains(name))
+                throw new Exception("ERROR: unknown " + kind + " " + name);
+            options.put(name, pair[1].trim());
+        }
+        return options;
+    }
+
     /**
      * Delete records from table
      *
@@ -679,28 +1247,29 @@ public class DavisBasePrompt {
                 }
             }
             //////
-            RandomAccessFile tblFile = new RandomAccessFile(getTBLFilePath(tableName), "rw");
+            RandomAccessFile tblFile = BufferPool.open(getTBLFilePath(tableName), "rw");
 
             BPlusTree tree = new BPlusTree(metaData._rootPageNum, metaData._tableName, tblFile);
             int count = 0;
-            for (int pageNo : tree._leavesNum) {
+            Set<Integer> emptyLeaves = new HashSet<>();
+            for (int pageNo : tree.getLeaves(condition_1, condition_2, whereConnect)) {
                 short deleteCountPerPage = 0;
                 Page page = new Page(pageNo, tblFile);
                 for (TableRow record : page.getPageRows()) {
                     if (whereConnect == 0 || condition_2 == null) {
                         if (condition_1 != null) {
-                            if (!condition_1.checkCondition(record._fields.get(condition_1._columnOrdinal)._strValue))
+                            if (!condition_1.checkCondition(record.getStrValue(condition_1._columnOrdinal)))
                                 continue;
                         }
                     }
                     else if (whereConnect == 1){
                         // AND situation
                         if (condition_1 != null) {
-                            if (!condition_1.checkCondition(record._fields.get(condition_1._columnOrdinal)._strValue))
+                            if (!condition_1.checkCondition(record.getStrValue(condition_1._columnOrdinal)))
                                 continue;
                         }
                         if (condition_2!=null){
-                            if(!condition_2.checkCondition(record._fields.get(condition_2._columnOrdinal)._strValue))
+                            if(!condition_2.checkCondition(record.getStrValue(condition_2._columnOrdinal)))
                                 continue;
                         }
                     }
@@ -708,10 +1277,14 @@ public class DavisBasePrompt {
                     deleteCountPerPage++;
                     count++;
                 }
+                if (page._numCell == 0)
+                    emptyLeaves.add(pageNo);
             }
+            // give the emptied leaves back to the file so scans don't walk them
+            tree.removeEmptyLeaves(emptyLeaves);
 
             System.out.println();
-            tblFile.close();
+            BufferPool.close(tblFile);
             System.out.println(count + " record(s) deleted!");
 
         } catch (Exception e) {
@@ -15,67 +15,64 @@ public class Field{
     public byte[] _byteAtt;
     public Byte[] _ByteAtt;
     public String _strValue;
+    // a long TEXT value kept in overflow pages: its first page and length, see TableRow.getField
+    public int _overflowPage = -1;
+    public int _overflowLength;
     
     Field(Type type, byte[] value) throws Exception{
         _type = type;
         _byteAtt = value;
         
         try{
-            switch(_type)
-            {
-                case NULL: 
-                    _strValue = "NULL";
-                    break;
-                case TINYINT:
-                    _strValue = Byte.valueOf(LoadByte.byteFromByteArray(_byteAtt)).toString();
-                    break;
-                case SMALLINT:
-                    _strValue = Short.valueOf(LoadByte.shortFromByteArray(_byteAtt)).toString();
-                    break;
-                case INT:
-                    _strValue = Integer.valueOf(LoadByte.intFromByteArray(_byteAtt)).toString();
-                    break;
-                case LONG:
-                    _strValue = Long.valueOf(LoadByte.longFromByteArray(_byteAtt)).toString();
-                    break;
-                case FLOAT:
-                    _strValue = Float.valueOf(LoadByte.floatFromByteArray(_byteAtt)).toString();
-                    break;
-                case DOUBLE:
-                    _strValue = Double.valueOf(LoadByte.doubleFromByteArray(_byteAtt)).toString();
-                    break;
-                case YEAR:
-                    _strValue = Integer.valueOf((int)LoadByte.byteFromByteArray(_byteAtt)+2000).toString();
-                    break;
-                case TIME:
-                    int millisSinceMidnight = LoadByte.intFromByteArray(_byteAtt) % 86400000;
-                    int seconds = millisSinceMidnight / 1000;
-                    int hours = seconds / 3600;
-                    int remHourSeconds = seconds % 3600;
-                    int minutes = remHourSeconds / 60;
-                    int remSeconds = remHourSeconds % 60;
-                    _strValue = String.format("%02d", hours) + ":" + String.format("%02d", minutes) + ":" + String.format("%02d", remSeconds);
-                    break;
-                case DATETIME:
-                    Date rawdatetime = new Date(LoadByte.longFromByteArray(_byteAtt));
-                    _strValue = String.format("%02d", rawdatetime.getYear()+1900) + "-" + String.format("%02d", rawdatetime.getMonth()+1)
-                        + "-" + String.format("%02d", rawdatetime.getDate()) + "_" + String.format("%02d", rawdatetime.getHours()) + ":"
-                        + String.format("%02d", rawdatetime.getMinutes()) + ":" + String.format("%02d", rawdatetime.getSeconds());
-                    break;
-                case DATE:
-                    Date rawdate = new Date(Long.valueOf(LoadByte.longFromByteArray(_byteAtt)));
-                    _strValue = String.format("%02d", rawdate.getYear()+1900) + "-" + String.format("%02d", rawdate.getMonth()+1)
-                        + "-" + String.format("%02d", rawdate.getDate());
-                    break;
-                case TEXT:
-                    _strValue = new String(_byteAtt,UTF_8);
-                    break;
-            }
+            _strValue = toStrValue(_type, _byteAtt);
             _ByteAtt = LoadByte.byteToBytes(_byteAtt);
         } catch(Exception e) {
             throw new Exception("ERROR: Formatting exception",e);
         }
     }
+
+    // The value as it is printed, from its bytes as they are stored in a record
+    static String toStrValue(Type type, byte[] value) {
+        switch(type)
+        {
+            case NULL: 
+                return "NULL";
+            case TINYINT:
+                return Byte.valueOf(LoadByte.byteFromByteArray(value)).toString();
+            case SMALLINT:
+                return Short.valueOf(LoadByte.shortFromByteArray(value)).toString();
+            case INT:
+                return Integer.valueOf(LoadByte.intFromByteArray(value)).toString();
+            case LONG:
+                return Long.valueOf(LoadByte.longFromByteArray(value)).toString();
+            case FLOAT:
+                return Float.valueOf(LoadByte.floatFromByteArray(value)).toString();
+            case DOUBLE:
+                return Double.valueOf(LoadByte.doubleFromByteArray(value)).toString();
+            case YEAR:
+                return Integer.valueOf((int)LoadByte.byteFromByteArray(value)+2000).toString();
+            case TIME:
+                int millisSinceMidnight = LoadByte.intFromByteArray(value) % 86400000;
+                int seconds = millisSinceMidnight / 1000;
+                int hours = seconds / 3600;
+                int remHourSeconds = seconds % 3600;
+                int minutes = remHourSeconds / 60;
+                int remSeconds = remHourSeconds % 60;
+                return String.format("%02d", hours) + ":" + String.format("%02d", minutes) + ":" + String.format("%02d", remSeconds);
+            case DATETIME:
+                Date rawdatetime = new Date(LoadByte.longFromByteArray(value));
+                return String.format("%02d", rawdatetime.getYear()+1900) + "-" + String.format("%02d", rawdatetime.getMonth()+1)
+                    + "-" + String.format("%02d", rawdatetime.getDate()) + "_" + String.format("%02d", rawdatetime.getHours()) + ":"
+                    + String.format("%02d", rawdatetime.getMinutes()) + ":" + String.format("%02d", rawdatetime.getSeconds());
+            case DATE:
+                Date rawdate = new Date(Long.valueOf(LoadByte.longFromByteArray(value)));
+                return String.format("%02d", rawdate.getYear()+1900) + "-" + String.format("%02d", rawdate.getMonth()+1)
+                    + "-" + String.format("%02d", rawdate.getDate());
+            case TEXT:
+                return new String(value,UTF_8);
+        }
+        return null;
+    }
     
     Field(Type type, String strVal) throws Exception {
         _type = type;
@@ -164,6 +161,17 @@ enum Type{
     
     public byte _value;
     Type(byte value){ _value = value;}
+
+    /*
+     * The type code of a TEXT value is TEXT + its length, so it is stored in the record only up to
+     * maxInlineText bytes. A longer value goes to a chain of overflow pages (Page.writeOverflow):
+     * its type code is textOverflow and the record holds its length, the first overflow page and
+     * the first overflowPrefixLength bytes of the value.
+     */
+    static final int maxInlineText = 115;
+    static final byte textOverflow = (byte)0x80;
+    static final int overflowPrefixLength = 16;
+    static final int overflowRefSize = 8 + overflowPrefixLength;
     
     static HashMap<Byte,Type> byteToTypeMap = new HashMap<>();
     static HashMap<Byte, Integer> typeSizeMap = new HashMap<>();
@@ -201,13 +209,15 @@ enum Type{
         }   
     }
     static Type get(byte value){
-        if (value > 12)
+        if (value > 12 || value == textOverflow)
             return Type.TEXT;
         return byteToTypeMap.get(value);
     }
     
     static Type get(String str){ return stringToTypeMap.get(str);}
     static int getTypeSize(byte value){
+        if (value == textOverflow)
+            return overflowRefSize;
         if (get(value) == Type.TEXT)
             return value - 12;
         return typeSizeMap.get(value);
@@ -0,0 +1,174 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Author: Bo-Yu Huang
+ * Date: 8/6/20
+ */
+
+/*
+ * Page 0 of every .tbl file is the file header, the B+1 tree pages start at page 1.
+ *
+ *  0x00  16 bytes  magic string "DavisBase format"
+ *  0x10  short     format version
+ *  0x12  int       page size in bytes, a power of 2 from 512 up to 65536
+ *  0x16  int       root page of the B+1 tree
+ *  0x1A  int       number of pages in the file, the header page included
+ *  0x1E  int       first page of the free page list, -1 if there is none
+ *  0x22  long      LSN of the last write-ahead log record of the header
+ *  0x2A  long      checkpoint LSN: every change of the file logged before it is in the file
+ *  0x32  byte      page compression, 0 none or 1 deflate (CompressedFile)
+ *  0x33  int       id of the page map file of a compressed table
+ *  0x37  byte      leaf layout, 0 row or 1 PAX (PaxLeaf)
+ *  0x38  byte      number of columns of the clustered key, 0 when the tree is keyed by row id
+ *  0x39  4 x 2     ordinal and type code of each column of the clustered key (ClusteredKey)
+ *
+ * The header is much smaller than a disk sector, so it is always rewritten with a single write.
+ */
+public class FileHeader {
+    static final byte[] magic = "DavisBase format".getBytes(UTF_8);
+    static final short formatVersion = 2;
+    static final int headerLength = 0x41;
+    static final int lsnOffset = 0x22;
+    static final int checkpointLSNOffset = 0x2A;
+
+    static final byte noCompression = 0;
+    static final byte deflateCompression = 1;
+
+    static final byte rowLayout = 0;
+    static final byte paxLayout = 1;
+
+    static final int minPageSize = 512;
+    static final int maxPageSize = 65536;
+
+    short _formatVersion;
+    int _pageSize;
+    int _rootPageNum;
+    int _pageCount;
+    int _freeListHead;
+    long _lsn;
+    long _checkpointLSN;
+    byte _compression;
+    int _mapId;
+    byte _leafLayout;
+    // null for a table in row id order
+    ClusteredKey _clusteredKey;
+
+    FileHeader(int pageSize) {
+        _formatVersion = formatVersion;
+        _pageSize = pageSize;
+        _rootPageNum = -1;
+        _pageCount = 1;
+        _freeListHead = -1;
+    }
+
+    static boolean isValidPageSize(int pageSize) {
+        return pageSize >= minPageSize && pageSize <= maxPageSize && Integer.bitCount(pageSize) == 1;
+    }
+
+    boolean isCompressed() {
+        return _compression != noCompression;
+    }
+
+    // Write the header page of a brand new (empty) table file
+    static FileHeader create(RandomAccessFile file, int pageSize, byte compression, byte leafLayout) throws IOException {
+        FileHeader header = new FileHeader(pageSize);
+        header._compression = compression;
+        header._leafLayout = leafLayout;
+        if (header.isCompressed())
+            header._mapId = new Random().nextInt() & Integer.MAX_VALUE;
+        file.setLength(pageSize);
+        header.write(file);
+        return header;
+    }
+
+    static FileHeader read(RandomAccessFile file) throws IOException {
+        byte[] raw = new byte[headerLength];
+        readFully(file, 0, ByteBuffer.wrap(raw));
+        ByteBuffer buffer = ByteBuffer.wrap(raw);
+
+        if (!Arrays.equals(Arrays.copyOfRange(raw, 0, magic.length), magic))
+            throw new IOException("not a DavisBase " + formatVersion + " table file (missing file header)");
+
+        FileHeader header = new FileHeader(buffer.getInt(0x12));
+        header._formatVersion = buffer.getShort(0x10);
+        header._rootPageNum = buffer.getInt(0x16);
+        header._pageCount = buffer.getInt(0x1A);
+        header._freeListHead = buffer.getInt(0x1E);
+        header._lsn = buffer.getLong(lsnOffset);
+        header._checkpointLSN = buffer.getLong(checkpointLSNOffset);
+        header._compression = buffer.get(0x32);
+        header._mapId = buffer.getInt(0x33);
+        header._leafLayout = buffer.get(0x37);
+        // version 1 files have no page LSN, their cell pointers start at 0x10
+        if (header._formatVersion != formatVersion || !isValidPageSize(header._pageSize))
+            throw new IOException("unsupported table file: version " + header._formatVersion + ", page size " + header._pageSize);
+        if (header._compression != noCompression && header._compression != deflateCompression)
+            throw new IOException("unsupported table file: compression " + header._compression);
+        if (header._leafLayout != rowLayout && header._leafLayout != paxLayout)
+            throw new IOException("unsupported table file: leaf layout " + header._leafLayout);
+        int keyColumns = buffer.get(0x38);
+        if (keyColumns < 0 || keyColumns > ClusteredKey.maxColumns)
+            throw new IOException("unsupported table file: clustered key of " + keyColumns + " columns");
+        if (keyColumns > 0) {
+            int[] ordinals = new int[keyColumns];
+            Type[] types = new Type[keyColumns];
+            for (int i = 0; i < keyColumns; i++) {
+                ordinals[i] = buffer.get(0x39 + i*2);
+                types[i] = Type.get(buffer.get(0x3A + i*2));
+                if (!ClusteredKey.isKeyType(types[i]))
+                    throw new IOException("unsupported table file: clustered key of type " + types[i]);
+            }
+            header._clusteredKey = new ClusteredKey(ordinals, types);
+        }
+        return header;
+    }
+
+    void write(RandomAccessFile file) throws IOException {
+        writeFully(file, 0, ByteBuffer.wrap(toBytes()));
+    }
+
+    /*
+     * The read-ahead threads read a table file while the pool and the checkpointer write it, so the
+     * table files are read and written at a position and the file pointer is never moved.
+     */
+    static void readFully(RandomAccessFile file, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            if (file.getChannel().read(buffer, position + buffer.position()) < 0)
+                throw new EOFException();
+    }
+
+    static void writeFully(RandomAccessFile file, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            file.getChannel().write(buffer, position + buffer.position());
+    }
+
+    byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(headerLength);
+        buffer.put(magic);
+        buffer.putShort(0x10, _formatVersion);
+        buffer.putInt(0x12, _pageSize);
+        buffer.putInt(0x16, _rootPageNum);
+        buffer.putInt(0x1A, _pageCount);
+        buffer.putInt(0x1E, _freeListHead);
+        buffer.putLong(lsnOffset, _lsn);
+        buffer.putLong(checkpointLSNOffset, _checkpointLSN);
+        buffer.put(0x32, _compression);
+        buffer.putInt(0x33, _mapId);
+        buffer.put(0x37, _leafLayout);
+        if (_clusteredKey != null) {
+            buffer.put(0x38, (byte) _clusteredKey._ordinals.length);
+            for (int i = 0; i < _clusteredKey._ordinals.length; i++) {
+                buffer.put(0x39 + i*2, (byte) _clusteredKey._ordinals[i]);
+                buffer.put(0x3A + i*2, _clusteredKey._types[i]._value);
+            }
+        }
+        return buffer.array();
+    }
+}
@@ -0,0 +1,356 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Author: Bo-Yu Huang
+ * Date: 8/19/20
+ */
+
+public class HashIndex {
+    /*
+     * CREATE INDEX ... USING HASH keeps the values of a column in a linear hash file,
+     * data/user_data/<table>.<column>.hdx, for a column only looked up with =. The cells are those
+     * of an index leaf (see TableIndex), the file header and page header those of a table file.
+     *
+     *  meta page       the root page of the file header
+     *    0x18  int     level: there are initialBuckets * 2^level buckets, and the ones split past them
+     *    0x1C  int     the next bucket to split
+     *    0x20  long    bytes the cells take in the buckets, their cell pointers included
+     *    0x28  int     number of directory pages n
+     *    0x2C  n ints  the directory pages
+     *  directory page  from 0x18, the page of each bucket, in bucket order
+     *  bucket page     cells in no order; 0x06 is the overflow page of the bucket, -1 at its end
+     *
+     * A value goes to bucket hash mod (initialBuckets * 2^level), or mod twice that when the bucket
+     * was already split. Once the cells fill the buckets past loadFactor, the next bucket is split
+     * into itself and a new bucket at the end, so a lookup reads the meta page, one directory page
+     * and the pages of one bucket. The buckets are never merged back.
+     */
+    static final int initialBuckets = 4;
+    static final double loadFactor = 0.75;
+
+    static final int levelOffset = 0x18;
+    static final int nextOffset = 0x1C;
+    static final int usedBytesOffset = 0x20;
+    static final int directoryCountOffset = 0x28;
+    static final int directoryStart = 0x2C;
+
+    TableIndex _index;
+    RandomAccessFile _file;
+    int _metaPageNo;
+    int _pageSize;
+
+    HashIndex(TableIndex index) throws IOException {
+        _index = index;
+        _file = index._file;
+        FileHeader header = BufferPool.getHeader(_file);
+        _metaPageNo = header._rootPageNum;
+        _pageSize = header._pageSize;
+    }
+
+    static int getBucketsPerDirectory(int pageSize) {
+        return (pageSize - Page.cellPointerStart) / 4;
+    }
+
+    // the directory pages the meta page has room for bound the number of buckets
+    static int getMaxBuckets(int pageSize) {
+        return (pageSize - directoryStart) / 4 * getBucketsPerDirectory(pageSize);
+    }
+
+    // The hash of a value, the same for the values a WHERE condition finds equal
+    static int hash(IndexCell cell, Type type) {
+        long hash;
+        if (cell._strValue == null)
+            hash = 0;
+        else {
+            switch (type) {
+                case TINYINT:
+                case SMALLINT:
+                case INT:
+                case LONG:
+                case YEAR:
+                    hash = Long.hashCode(Long.parseLong(cell._strValue));
+                    break;
+                case FLOAT:
+                case DOUBLE:
+                    // + 0.0 makes -0.0 the same value as 0.0
+                    hash = Double.hashCode(Double.parseDouble(cell._strValue) + 0.0);
+                    break;
+                default:
+                    hash = cell._strValue.hashCode();
+            }
+        }
+        // spread the bits, the low ones choose the bucket
+        hash *= 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 33);
+    }
+
+    static int getBucket(int hash, int level, int next) {
+        int bucket = hash % (initialBuckets << level);
+        if (bucket < next)
+            bucket = hash % (initialBuckets << (level + 1));
+        return bucket;
+    }
+
+    // The page of a bucket, looked up in the directory
+    private int getBucketPage(ByteBuffer meta, int bucket) throws IOException {
+        int perDirectory = getBucketsPerDirectory(_pageSize);
+        int directoryPageNo = meta.getInt(directoryStart + bucket / perDirectory * 4);
+        ByteBuffer directory = BufferPool.pin(_file, directoryPageNo);
+        int pageNo = directory.getInt(Page.cellPointerStart + bucket % perDirectory * 4);
+        BufferPool.unpin(_file, directoryPageNo, false);
+        return pageNo;
+    }
+
+    // the first page of the bucket of the value
+    private int getBucketPage(IndexCell cell) throws IOException {
+        ByteBuffer meta = BufferPool.pin(_file, _metaPageNo);
+        try {
+            return getBucketPage(meta, getBucket(hash(cell, _index._type), meta.getInt(levelOffset), meta.getInt(nextOffset)));
+        } finally {
+            BufferPool.unpin(_file, _metaPageNo, false);
+        }
+    }
+
+    // The cells of the value, in no order
+    List<IndexCell> find(IndexCell value) throws IOException {
+        List<IndexCell> found = new ArrayList<>();
+        int pageNo = getBucketPage(value);
+        while (pageNo != -1) {
+            ByteBuffer page = BufferPool.pin(_file, pageNo);
+            for (IndexCell cell : TableIndex.readCells(page, _index._keyLength))
+                if (_index.compareValues(cell._strValue, value._strValue) == 0)
+                    found.add(cell);
+            int nextPageNo = page.getInt(6);
+            BufferPool.unpin(_file, pageNo, false);
+            pageNo = nextPageNo;
+        }
+        return found;
+    }
+
+    void insert(IndexCell key) throws IOException {
+        // the first page of the bucket with room for the cell, or a new overflow page at its end
+        int pageNo = getBucketPage(key);
+        int roomPageNo = -1;
+        while (true) {
+            ByteBuffer page = BufferPool.pin(_file, pageNo);
+            List<IndexCell> cells = TableIndex.readCells(page, _index._keyLength);
+            int nextPageNo = page.getInt(6);
+            BufferPool.unpin(_file, pageNo, false);
+            for (IndexCell cell : cells)
+                if (_index.compareKeys(cell, key) == 0)
+                    return;
+            cells.add(key);
+            if (roomPageNo == -1 && TableIndex.getSize(cells, false) <= _pageSize)
+                roomPageNo = pageNo;
+            if (nextPageNo == -1)
+                break;
+            pageNo = nextPageNo;
+        }
+        if (roomPageNo == -1) {
+            roomPageNo = Page.addNewPage(_file, PageType.hashBUCKET, -1, -1);
+            ByteBuffer last = BufferPool.pin(_file, pageNo);
+            last.putInt(6, roomPageNo);
+            BufferPool.unpin(_file, pageNo, true);
+        }
+        ByteBuffer page = BufferPool.pin(_file, roomPageNo);
+        List<IndexCell> cells = TableIndex.readCells(page, _index._keyLength);
+        cells.add(key);
+        TableIndex.writeCells(page, cells);
+        BufferPool.unpin(_file, roomPageNo, true);
+
+        ByteBuffer meta = BufferPool.pin(_file, _metaPageNo);
+        long usedBytes = meta.getLong(usedBytesOffset) + 2 + key.getSize(false);
+        meta.putLong(usedBytesOffset, usedBytes);
+        int bucketCount = (initialBuckets << meta.getInt(levelOffset)) + meta.getInt(nextOffset);
+        BufferPool.unpin(_file, _metaPageNo, true);
+        if (usedBytes > bucketCount * (_pageSize - Page.cellPointerStart) * loadFactor && bucketCount < getMaxBuckets(_pageSize))
+            split();
+    }
+
+    void delete(IndexCell key) throws IOException {
+        int pageNo = getBucketPage(key);
+        while (pageNo != -1) {
+            ByteBuffer page = BufferPool.pin(_file, pageNo);
+            List<IndexCell> cells = TableIndex.readCells(page, _index._keyLength);
+            for (int i = 0; i < cells.size(); i++) {
+                if (_index.compareKeys(cells.get(i), key) == 0) {
+                    cells.remove(i);
+                    TableIndex.writeCells(page, cells);
+                    BufferPool.unpin(_file, pageNo, true);
+                    ByteBuffer meta = BufferPool.pin(_file, _metaPageNo);
+                    meta.putLong(usedBytesOffset, meta.getLong(usedBytesOffset) - 2 - key.getSize(false));
+                    BufferPool.unpin(_file, _metaPageNo, true);
+                    return;
+                }
+            }
+            int nextPageNo = page.getInt(6);
+            BufferPool.unpin(_file, pageNo, false);
+            pageNo = nextPageNo;
+        }
+    }
+
+    // Split the next bucket: the cells whose hash falls in the new bucket at the end move there
+    private void split() throws IOException {
+        ByteBuffer meta = BufferPool.pin(_file, _metaPageNo);
+        int level = meta.getInt(levelOffset);
+        int next = meta.getInt(nextOffset);
+        int directoryCount = meta.getInt(directoryCountOffset);
+        int splitPageNo = getBucketPage(meta, next);
+        BufferPool.unpin(_file, _metaPageNo, false);
+
+        // the page of the new bucket, and a directory page for it when the last one is full
+        int newBucket = (initialBuckets << level) + next;
+        int perDirectory = getBucketsPerDirectory(_pageSize);
+        int newPageNo = Page.addNewPage(_file, PageType.hashBUCKET, -1, -1);
+        if (newBucket / perDirectory == directoryCount) {
+            int directoryPageNo = Page.addNewPage(_file, PageType.hashDIRECTORY, -1, -1);
+            meta = BufferPool.pin(_file, _metaPageNo);
+            meta.putInt(directoryStart + directoryCount * 4, directoryPageNo);
+            meta.putInt(directoryCountOffset, directoryCount + 1);
+            BufferPool.unpin(_file, _metaPageNo, true);
+        }
+        meta = BufferPool.pin(_file, _metaPageNo);
+        int directoryPageNo = meta.getInt(directoryStart + newBucket / perDirectory * 4);
+        BufferPool.unpin(_file, _metaPageNo, false);
+        ByteBuffer directory = BufferPool.pin(_file, directoryPageNo);
+        directory.putInt(Page.cellPointerStart + newBucket % perDirectory * 4, newPageNo);
+        BufferPool.unpin(_file, directoryPageNo, true);
+
+        List<IndexCell> stay = new ArrayList<>();
+        List<IndexCell> move = new ArrayList<>();
+        for (int pageNo = splitPageNo; pageNo != -1; ) {
+            ByteBuffer page = BufferPool.pin(_file, pageNo);
+            for (IndexCell cell : TableIndex.readCells(page, _index._keyLength))
+                (getBucket(hash(cell, _index._type), level, next + 1) == next ? stay : move).add(cell);
+            int nextPageNo = page.getInt(6);
+            BufferPool.unpin(_file, pageNo, false);
+            pageNo = nextPageNo;
+        }
+        writeBucket(splitPageNo, stay);
+        writeBucket(newPageNo, move);
+
+        meta = BufferPool.pin(_file, _metaPageNo);
+        if (next + 1 == initialBuckets << level) {
+            meta.putInt(levelOffset, level + 1);
+            meta.putInt(nextOffset, 0);
+        } else
+            meta.putInt(nextOffset, next + 1);
+        BufferPool.unpin(_file, _metaPageNo, true);
+    }
+
+    // Write the cells into the pages of a bucket, overflow pages are added or freed as needed
+    private void writeBucket(int pageNo, List<IndexCell> cells) throws IOException {
+        int first = 0;
+        while (true) {
+            int end = first;
+            List<IndexCell> pageCells = new ArrayList<>();
+            while (end < cells.size()) {
+                pageCells.add(cells.get(end));
+                if (TableIndex.getSize(pageCells, false) > _pageSize) {
+                    pageCells.remove(pageCells.size() - 1);
+                    break;
+                }
+                end++;
+            }
+            ByteBuffer page = BufferPool.pin(_file, pageNo);
+            TableIndex.writeCells(page, pageCells);
+            int nextPageNo = page.getInt(6);
+            if (end == cells.size())
+                page.putInt(6, -1);
+            else if (nextPageNo == -1) {
+                nextPageNo = Page.addNewPage(_file, PageType.hashBUCKET, -1, -1);
+                page.putInt(6, nextPageNo);
+            }
+            BufferPool.unpin(_file, pageNo, true);
+
+            if (end == cells.size()) {
+                // the overflow pages left over go to the free page list
+                while (nextPageNo != -1) {
+                    int freePageNo = nextPageNo;
+                    nextPageNo = Page.getRightPageNo(_file, freePageNo);
+                    Page.freePage(_file, freePageNo);
+                }
+                return;
+            }
+            first = end;
+            pageNo = nextPageNo;
+        }
+    }
+
+    /*
+     * Lay out the pages of a hash file holding the keys into a file being built (TableIndex.build),
+     * from its page 1: the meta page, the directory pages, then each bucket with its overflow pages.
+     * There are as many buckets as fill them up to loadFactor.
+     */
+    static void write(RandomAccessFile file, FileHeader header, List<IndexCell> keys, Type type, long lsn) throws IOException {
+        int pageSize = header._pageSize;
+        long usedBytes = 0;
+        for (IndexCell key : keys)
+            usedBytes += 2 + key.getSize(false);
+        long wanted = (long) Math.ceil(usedBytes / ((pageSize - Page.cellPointerStart) * loadFactor));
+        int bucketCount = (int) Math.min(Math.max(initialBuckets, wanted), getMaxBuckets(pageSize));
+        int level = 31 - Integer.numberOfLeadingZeros(bucketCount / initialBuckets);
+        int next = bucketCount - (initialBuckets << level);
+
+        List<List<IndexCell>> buckets = new ArrayList<>();
+        for (int i = 0; i < bucketCount; i++)
+            buckets.add(new ArrayList<>());
+        for (IndexCell key : keys)
+            buckets.get(getBucket(hash(key, type), level, next)).add(key);
+
+        // the cells of each page of each bucket, to know where every bucket starts
+        List<List<List<IndexCell>>> bucketPages = new ArrayList<>();
+        for (List<IndexCell> bucket : buckets) {
+            List<List<IndexCell>> pages = new ArrayList<>();
+            List<IndexCell> pageCells = new ArrayList<>();
+            for (IndexCell key : bucket) {
+                pageCells.add(key);
+                if (TableIndex.getSize(pageCells, false) > pageSize) {
+                    pageCells.remove(pageCells.size() - 1);
+                    pages.add(pageCells);
+                    pageCells = new ArrayList<>();
+                    pageCells.add(key);
+                }
+            }
+            pages.add(pageCells);
+            bucketPages.add(pages);
+        }
+
+        int perDirectory = getBucketsPerDirectory(pageSize);
+        int directoryCount = (bucketCount + perDirectory - 1) / perDirectory;
+        int metaPageNo = header._pageCount;
+        int pageNo = metaPageNo + 1 + directoryCount;
+
+        ByteBuffer meta = TableIndex.newPage(PageType.hashMETA, pageSize, lsn, -1);
+        meta.putInt(levelOffset, level);
+        meta.putInt(nextOffset, next);
+        meta.putLong(usedBytesOffset, usedBytes);
+        meta.putInt(directoryCountOffset, directoryCount);
+        List<ByteBuffer> directories = new ArrayList<>();
+        for (int i = 0; i < directoryCount; i++) {
+            meta.putInt(directoryStart + i * 4, metaPageNo + 1 + i);
+            directories.add(TableIndex.newPage(PageType.hashDIRECTORY, pageSize, lsn, -1));
+        }
+        for (int bucket = 0; bucket < bucketCount; bucket++) {
+            directories.get(bucket / perDirectory).putInt(Page.cellPointerStart + bucket % perDirectory * 4, pageNo);
+            pageNo += bucketPages.get(bucket).size();
+        }
+
+        TableIndex.writePage(file, header._pageCount++, meta);
+        for (ByteBuffer directory : directories)
+            TableIndex.writePage(file, header._pageCount++, directory);
+        for (List<List<IndexCell>> pages : bucketPages) {
+            for (int i = 0; i < pages.size(); i++) {
+                boolean isLast = i == pages.size() - 1;
+                ByteBuffer page = TableIndex.newPage(PageType.hashBUCKET, pageSize, lsn, isLast ? -1 : header._pageCount + 1);
+                TableIndex.writeCells(page, pages.get(i));
+                TableIndex.writePage(file, header._pageCount++, page);
+            }
+        }
+        header._rootPageNum = metaPageNo;
+    }
+}
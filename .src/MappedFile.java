@@ -0,0 +1,62 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Author: Bo-Yu Huang
+ * Date: 8/4/20
+ */
+
+public class MappedFile {
+    /*
+     * A table file is mapped in extents of 1 MB. The extent size is a multiple of every page size,
+     * so a page never straddles two extents. When the file grows (Page.addNewPage) only the last
+     * extent has to be mapped again.
+     */
+    static int extentSize = 1 << 20;
+
+    FileChannel _channel;
+    List<MappedByteBuffer> _extents = new ArrayList<>();
+
+    MappedFile(RandomAccessFile file) {
+        _channel = file.getChannel();
+    }
+
+    // Returns a view of the page directly on the mapped memory, nothing is copied
+    public ByteBuffer mapPage(long pageStart, int pageSize) throws IOException {
+        int extentNo = (int) (pageStart / extentSize);
+        long extentStart = (long) extentNo * extentSize;
+        int offset = (int) (pageStart - extentStart);
+
+        if (pageStart + pageSize > _channel.size())
+            throw new EOFException("page at " + pageStart + " is beyond the end of file");
+
+        while (_extents.size() <= extentNo)
+            _extents.add(null);
+
+        MappedByteBuffer extent = _extents.get(extentNo);
+        if (extent == null || extent.capacity() < offset + pageSize) {
+            // never mapped, or the file grew since the extent was mapped: map it up to the current end of file
+            long length = Math.min(extentSize, _channel.size() - extentStart);
+            extent = _channel.map(FileChannel.MapMode.READ_WRITE, extentStart, length);
+            _extents.set(extentNo, extent);
+        }
+
+        ByteBuffer view = extent.duplicate();
+        view.position(offset);
+        view.limit(offset + pageSize);
+        return view.slice();
+    }
+
+    // Forces the mapped extents to the storage device
+    public void force() {
+        for (MappedByteBuffer extent : _extents)
+            if (extent != null)
+                extent.force();
+    }
+}
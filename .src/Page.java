@@ -1,5 +1,6 @@
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -8,8 +9,15 @@ import java.util.*;
  */
 
 enum PageType{
+    tblFREE((byte)0),
+    idxINTERIOR((byte)2),
+    tblOVERFLOW((byte)3),
     tblINTERIOR((byte)5),
-    tblLEAF((byte)13);
+    idxLEAF((byte)10),
+    hashMETA((byte)11),
+    hashDIRECTORY((byte)12),
+    tblLEAF((byte)13),
+    hashBUCKET((byte)14);
 
     public byte _value;
     PageType(byte value){
@@ -17,16 +25,23 @@ enum PageType{
     }
 
     static HashMap<Byte, PageType> pageTypeHashMap= new HashMap<>(){{
+        put((byte)0,PageType.tblFREE);
+        put((byte)2,PageType.idxINTERIOR);
+        put((byte)3,PageType.tblOVERFLOW);
         put((byte)5,PageType.tblINTERIOR);
+        put((byte)10,PageType.idxLEAF);
+        put((byte)11,PageType.hashMETA);
+        put((byte)12,PageType.hashDIRECTORY);
         put((byte)13,PageType.tblLEAF);
+        put((byte)14,PageType.hashBUCKET);
     }};
 
     static PageType byteToPageType(byte value) { return pageTypeHashMap.get(value);}
 
     static PageType getPageType(RandomAccessFile file, int pageNum) throws IOException{
         try{
-            file.seek(DavisBaseBinaryFile.pageSize * pageNum);
-            Byte type = file.readByte();
+            Byte type = BufferPool.pin(file, pageNum).get(0);
+            BufferPool.unpin(file, pageNum, false);
             return byteToPageType(type);
         }catch (IOException e){
             System.out.println("ERROR: unable to obtain page type" + e.getMessage());
@@ -36,18 +51,34 @@ enum PageType{
 }
 
 public class Page {
+    /*
+     * Page header: 0x00 page type, 0x02 number of cells, 0x04 start of the cell content,
+     * 0x06 right page, 0x0A parent page, 0x0E first free block (see freeCellSpace),
+     * 0x10 LSN of the last write-ahead log record of the page (8 bytes).
+     * The array of 2-byte cell pointers follows the header.
+     */
+    static final int pageLSN = 0x10;
+    static final int cellPointerStart = 0x18;
+
     RandomAccessFile _tblFile;
 
     // page header information
     int _pageNum;
     PageType _pageType;
     short _numCell;
-    short _offsetForContent;
+    int _offsetForContent;
     int _NumOfRight;
     int _NumOfParent;
+    // a leaf of a table created WITH (layout = pax), see PaxLeaf
+    boolean _isPax;
+    // the key of an interior cell: a 4-byte row id, or the clustered key of a clustered table
+    ClusteredKey _clusteredKey;
+    int _keyLength = 4;
 
     // help class members for easy accessing
-    HashMap<Integer, Integer> _leftChildrenMap; // <lastRowIdInPage, leftChildrenPageNum>
+    // <lastRowIdInPage, leftChildrenPageNum>, in row id order; the cells of a clustered table are in
+    // key order, listed by their position (see ClusteredTable)
+    TreeMap<Integer, Integer> _leftChildrenMap;
     List<TableRow> _records;
     long _pageStart;
     int _lastID;
@@ -59,84 +90,104 @@ public class Page {
             _tblFile = tblFile;
             // locate the corresponding page number in a huge table file
             _pageNum = pageNum;
-            _pageStart = DavisBaseBinaryFile.pageSize * _pageNum;
-            _tblFile.seek(_pageStart);
-            _pageType = PageType.byteToPageType(_tblFile.readByte());
-            _tblFile.seek(_pageStart+2);
-            _numCell = _tblFile.readShort();
-            _offsetForContent = _tblFile.readShort();
-            _NumOfRight = _tblFile.readInt();
-            _NumOfParent = _tblFile.readInt();
-            _spaceLeft = _offsetForContent - 16 - _numCell*2;
-
-            if (_pageType == PageType.tblLEAF)
-                getPageRows();
-
-            if (_pageType == PageType.tblINTERIOR) {
-                try {
-                    _leftChildrenMap = new HashMap<>();
+            // the page is decoded from its buffer pool frame, it is only read from disk on a miss
+            ByteBuffer page = BufferPool.pin(_tblFile, _pageNum);
+            try {
+                _pageStart = (long) page.capacity() * _pageNum;
+                _pageType = PageType.byteToPageType(page.get(0));
+                _numCell = page.getShort(2);
+                _offsetForContent = getContentStart(page);
+                _NumOfRight = page.getInt(6);
+                _NumOfParent = page.getInt(0x0A);
+                _spaceLeft = _offsetForContent - cellPointerStart - _numCell*2;
+                _isPax = PaxLeaf.isPax(page);
+                _clusteredKey = BufferPool.getHeader(_tblFile)._clusteredKey;
+                if (_clusteredKey != null)
+                    _keyLength = _clusteredKey._length;
+
+                if (_pageType == PageType.tblLEAF)
+                    getPageRows(page);
+
+                if (_pageType == PageType.tblINTERIOR) {
+                    _leftChildrenMap = new TreeMap<>();
 
                     int leftChildPageNo = 0;
                     int rowId = 0;
                     for (int i = 0; i < _numCell; i++) {
-                        _tblFile.seek(_pageStart + 0x10 + (i * 2));
-                        short cellStart = _tblFile.readShort();
+                        int cellStart = getUnsignedShort(page, cellPointerStart + (i * 2));
                         if (cellStart == 0)//ignore deleted cells
                             continue;
-                        _tblFile.seek(_pageStart + cellStart);
 
-                        leftChildPageNo = _tblFile.readInt();
-                        rowId = _tblFile.readInt();
+                        leftChildPageNo = page.getInt(cellStart);
+                        rowId = _clusteredKey != null ? i : page.getInt(cellStart + 4);
                         _leftChildrenMap.put(rowId, leftChildPageNo);
                     }
-                } catch(IOException e){
-                    System.out.println("Error: unable to obtain all left children from the interior page " + e.getMessage());
                 }
+            } finally {
+                BufferPool.unpin(_tblFile, _pageNum, false);
             }
-
         }catch(IOException e){
             System.out.println("Error: unable to read the page " + e.getMessage());
         }
     }
 
     public List<TableRow> getPageRows() {
-        short payLoadSize = 0;
+        try {
+            ByteBuffer page = BufferPool.pin(_tblFile, _pageNum);
+            try {
+                return getPageRows(page);
+            } finally {
+                BufferPool.unpin(_tblFile, _pageNum, false);
+            }
+        } catch (IOException ex) {
+            System.out.println("Error while filling records from the page " + ex.getMessage());
+            return _records;
+        }
+    }
+
+    // decode the cell pointer array and every record from the page buffer, no further I/O
+    private List<TableRow> getPageRows(ByteBuffer page) {
+        int payLoadSize = 0;
         byte noOfcolumns = 0;
         _records = new ArrayList<>();
         _recordsMap = new HashMap<>();
+        if (_isPax) {
+            // only the row ids are read here, the values when a row asks for them
+            PaxLeaf leaf = new PaxLeaf(page);
+            for (short i = 0; i < leaf._rowCount; i++) {
+                TableRow record = new TableRow(_tblFile, i, leaf, leaf.getRowId(i));
+                if (_lastID < record._rowId)
+                    _lastID = record._rowId;
+                _records.add(record);
+                _recordsMap.put(record._rowId, record);
+            }
+            return _records;
+        }
         try {
             for (short i = 0; i < _numCell; i++) {
-                _tblFile.seek(_pageStart + 0x10 + (i *2) );
-                short cellStart = _tblFile.readShort();
+                int cellStart = getUnsignedShort(page, cellPointerStart + (i *2));
                 if(cellStart == 0)
                     continue;
-                _tblFile.seek(_pageStart + cellStart);
 
-                payLoadSize = _tblFile.readShort();
-                int rowId = _tblFile.readInt();
-                noOfcolumns = _tblFile.readByte();
+                payLoadSize = getUnsignedShort(page, cellStart);
+                int rowId = page.getInt(cellStart + 2);
+                noOfcolumns = page.get(cellStart + 6);
 
                 // if the record was deleted, it won't appear in the 2xcell header.
                 // But it can be found in the cellStartOffset, and it should be greater or equal to _numCell
                 if(_lastID < rowId)
                     _lastID = rowId;
 
-                byte[] colDatatypes = new byte[noOfcolumns];
-                byte[] recordBody = new byte[payLoadSize - noOfcolumns - 1];
+                // the column types and the record body are contiguous in the cell, copy them in one go
+                byte[] cell = new byte[payLoadSize - 1];
+                readBytes(page, cellStart + 7, cell);
+                byte[] colDatatypes = Arrays.copyOfRange(cell, 0, noOfcolumns);
+                byte[] recordBody = Arrays.copyOfRange(cell, noOfcolumns, cell.length);
 
-                _tblFile.read(colDatatypes);
-                _tblFile.read(recordBody);
-
-                TableRow record = new TableRow(i, cellStart, colDatatypes, recordBody, rowId);
+                TableRow record = new TableRow(_tblFile, i, cellStart, colDatatypes, recordBody, rowId);
                 _records.add(record);
                 _recordsMap.put(rowId, record);
             }
-            // In case the last record is deleted, find the last row ID in current page
-            //System.out.println("Current last ID: " + _lastID);
-            _lastID = DavisBaseBinaryFile.getPageLastID(_tblFile, _pageNum);
-            //System.out.println("New Current last ID: " + _lastID);
-        } catch (IOException ex) {
-            System.out.println("Error while filling records from the page " + ex.getMessage());
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -155,19 +206,41 @@ public class Page {
         _pageStart = page._pageStart;
         _leftChildrenMap = page._leftChildrenMap;
         _spaceLeft = page._spaceLeft;
+        _isPax = page._isPax;
+        _clusteredKey = page._clusteredKey;
+        _keyLength = page._keyLength;
     }
 
     static int addNewPage(RandomAccessFile file, PageType pagetype, int rightPage, int parentPage){
         try{
-            int pageNum = Long.valueOf((file.length()/DavisBaseBinaryFile.pageSize)).intValue();
-            file.setLength(file.length() + DavisBaseBinaryFile.pageSize);
-            file.seek(DavisBaseBinaryFile.pageSize * pageNum);
-            file.writeByte(pagetype._value);
-            file.skipBytes(1);
-            file.writeShort(0);
-            file.writeShort((short)DavisBaseBinaryFile.pageSize);
-            file.writeInt(rightPage);
-            file.writeInt(parentPage);
+            FileHeader header = BufferPool.getHeader(file);
+            int pageSize = header._pageSize;
+            int pageNum;
+            if (header._freeListHead != -1) {
+                // reuse a freed page before extending the file
+                pageNum = header._freeListHead;
+                header._freeListHead = BufferPool.pin(file, pageNum).getInt(6);
+                BufferPool.unpin(file, pageNum, false);
+            } else {
+                pageNum = header._pageCount;
+                // the file grows by whole extents, pages past the page count are preallocated
+                // (a compressed file grows as its pages are written back, see CompressedFile)
+                long pageEnd = (long) (pageNum + 1) * pageSize;
+                if (!header.isCompressed() && pageEnd > file.length())
+                    file.setLength(DavisBaseBinaryFile.getExtendedLength(file.length(), pageEnd, pageSize));
+                header._pageCount++;
+            }
+            BufferPool.writeHeader(file);
+            // the new page header is written into its frame and goes to disk with the write-back
+            ByteBuffer page = BufferPool.pinNew(file, pageNum);
+            page.put(0, pagetype._value);
+            page.putShort(2, (short)0);
+            page.putShort(4, (short)pageSize);
+            page.putInt(6, rightPage);
+            page.putInt(0x0A, parentPage);
+            if (pagetype == PageType.tblLEAF && header._leafLayout == FileHeader.paxLayout)
+                PaxLeaf.write(page, new ArrayList<>());
+            BufferPool.unpin(file, pageNum, true);
 
             return pageNum;
         }catch(IOException e){
@@ -176,13 +249,45 @@ public class Page {
         }
     }
 
+    // puts a page that is no longer linked in the tree on the free page list, the list goes through 0x06
+    static void freePage(RandomAccessFile file, int pageNum) throws IOException{
+        FileHeader header = BufferPool.getHeader(file);
+        ByteBuffer page = BufferPool.pinNew(file, pageNum);
+        page.put(0, PageType.tblFREE._value);
+        page.putInt(6, header._freeListHead);
+        BufferPool.unpin(file, pageNum, true);
+        header._freeListHead = pageNum;
+        BufferPool.writeHeader(file);
+    }
+
+    static int getRightPageNo(RandomAccessFile file, int pageNum) throws IOException{
+        int rightPageNo = BufferPool.pin(file, pageNum).getInt(6);
+        BufferPool.unpin(file, pageNum, false);
+        return rightPageNo;
+    }
+
     public void updateRecord(TableRow record, int ordinalPos, Byte[] value) throws IOException{
-        _tblFile.seek(_pageStart + record._recordOffset + 7);  // start of the "List of the column data type" in record header
+        if (_isPax) {
+            ByteBuffer page = BufferPool.pin(_tblFile, _pageNum);
+            List<PaxRow> rows = PaxLeaf.getRows(page);
+            for (PaxRow row : rows)
+                if (row._rowId == record._rowId)
+                    System.arraycopy(LoadByte.Bytestobytes(value), 0, row._recordBody, row.getValueStart(ordinalPos), value.length);
+            PaxLeaf.write(page, rows);
+            BufferPool.unpin(_tblFile, _pageNum, true);
+            return;
+        }
+        int typeStart = record._recordOffset + 7;  // start of the "List of the column data type" in record header
         int loc = 0;
         for (int i = 0; i < ordinalPos; i++)
-            loc += Type.getTypeSize(_tblFile.readByte());
-        _tblFile.seek(_pageStart + record._recordOffset + 7 + record._colDatatypes.length + loc);
-        _tblFile.write(LoadByte.Bytestobytes(value));
+            loc += Type.getTypeSize(record._colDatatypes[i]);
+        ByteBuffer page = BufferPool.pin(_tblFile, _pageNum);
+        // the cell may have been moved by a defragmentation since the record was read
+        int cellStart = _clusteredKey != null ? scanCell(page, record._rowId) : findCell(page, record._rowId);
+        if (cellStart != 0)
+            typeStart = cellStart + 7;
+        writeBytes(page, typeStart + record._colDatatypes.length + loc, LoadByte.Bytestobytes(value));
+        BufferPool.unpin(_tblFile, _pageNum, true);
     }
 
     public void addNewColumn(TableCol colInfo) throws IOException{
@@ -215,6 +320,13 @@ public class Page {
         }
 
         for(Field field : fields){
+            // a long TEXT value goes to overflow pages, the record only refers to them
+            if(field._type == Type.TEXT && field._byteAtt.length > Type.maxInlineText){
+                recordBody.addAll(Arrays.asList(LoadByte.byteToBytes(writeOverflow(_tblFile, field._byteAtt))));
+                colDataTypes.add(Type.textOverflow);
+                continue;
+            }
+
             //add value for the record body
             recordBody.addAll(Arrays.asList(field._ByteAtt));
 
@@ -225,7 +337,10 @@ public class Page {
                 colDataTypes.add(field._type._value);
         }
 
-        // guarantee the right-most page, but not promised to be the last row ID
+        // guarantee the right-most page, but not promised to be the last row ID:
+        // the catalog keeps the last row id ever given, so ids of deleted rows are never reused
+        if(metaData != null && metaData._last_id > _lastID)
+            _lastID = metaData._last_id;
         _lastID++;
 
         //calculate pay load size
@@ -239,7 +354,15 @@ public class Page {
         recordHeader.add(Integer.valueOf(colDataTypes.size()).byteValue()); //number of columns
         recordHeader.addAll(colDataTypes); //column data types
 
-        addNewPageRecord(recordHeader.toArray(new Byte[recordHeader.size()]), recordBody.toArray(new Byte[recordBody.size()]));
+        // a row of a clustered table goes where its key belongs, see ClusteredTable
+        if (metaData != null && metaData._clusteredKey != null)
+            ClusteredTable.insert(_tblFile, metaData._clusteredKey, new PaxRow(_lastID, LoadByte.Bytestobytes(colDataTypes.toArray(new Byte[colDataTypes.size()])),
+                    LoadByte.Bytestobytes(recordBody.toArray(new Byte[recordBody.size()]))));
+        else
+            addNewPageRecord(recordHeader.toArray(new Byte[recordHeader.size()]), recordBody.toArray(new Byte[recordBody.size()]));
+
+        if(metaData != null)
+            TableIndex.insertRow(metaData, fields, _lastID);
 
         if(DavisBaseBinaryFile.dataStoreInitialized){
             // update the catalog: both total number of row and row id will rise by one
@@ -253,24 +376,33 @@ public class Page {
     public void DeleteRecord(short recordIndex){
         // after deletion, the record won't exist in 2xcells section in page header, move everything after the deleted record one step ahead
         try{
-            for (int i = recordIndex + 1; i < _numCell; i++){
-                _tblFile.seek(_pageStart + 16 + i*2);
-                short cellOffset = _tblFile.readShort();
-
-                if (cellOffset == 0)
-                    continue;
-                _tblFile.seek(_pageStart + 16 + (i-1)*2);
-                _tblFile.writeShort(cellOffset);
+            ByteBuffer page = BufferPool.pin(_tblFile, _pageNum);
+            if (_isPax) {
+                List<PaxRow> rows = PaxLeaf.getRows(page);
+                if (recordIndex < rows.size())
+                    rows.remove(recordIndex);
+                PaxLeaf.write(page, rows);
+                _numCell = (short)rows.size();
+                BufferPool.unpin(_tblFile, _pageNum, true);
+                return;
+            }
+            // the space of the deleted cell goes to the free block list to be reused
+            int cellStart = getUnsignedShort(page, cellPointerStart + recordIndex*2);
+            if (recordIndex < _numCell && cellStart != 0)
+                freeCellSpace(page, cellStart, getCellSize(page, cellStart));
+
+            if (recordIndex + 1 < _numCell) {
+                byte[] cellPointers = new byte[(_numCell - recordIndex - 1) * 2];
+                readBytes(page, cellPointerStart + (recordIndex + 1) * 2, cellPointers);
+                writeBytes(page, cellPointerStart + recordIndex * 2, cellPointers);
             }
 
             // if there is only one record (either the only first record or the last record)
-            if (_numCell == 1){
-                _tblFile.seek(_pageStart + 16);
-                _tblFile.writeShort(0);
-            }
+            if (_numCell == 1)
+                page.putShort(cellPointerStart, (short)0);
 
-            _tblFile.seek(_pageStart + 2);
-            _tblFile.writeShort(--_numCell);
+            page.putShort(2, --_numCell);
+            BufferPool.unpin(_tblFile, _pageNum, true);
             // last_ID doesn't change
         }catch(IOException e){
             System.out.println("ERROR: unable to delete record!");
@@ -278,156 +410,487 @@ public class Page {
     }
 
     public void DeleteTBLRecord(String tableName, short recordIndex){
-        // delete certain record in certain page
+        TableInfo metaData = new TableInfo(tableName);
+        // the values of the row leave the indexes of the table, read them before their pages are freed
+        try {
+            for (TableRow record : getPageRows())
+                if (record._pageHeaderIndex == recordIndex)
+                    TableIndex.deleteRow(metaData, record);
+        } catch (IOException e) {
+            System.out.println("ERROR: unable to update the indexes " + e.getMessage());
+        }
+        // delete certain record in certain page, and the overflow pages of its long values
+        try {
+            for (int overflowPage : getOverflowPages(recordIndex))
+                freeOverflow(_tblFile, overflowPage);
+        } catch (IOException e) {
+            System.out.println("ERROR: unable to free the overflow pages " + e.getMessage());
+        }
         DeleteRecord(recordIndex);
 
         // update the catalog: total number of row would diminish, but row id won't
-        TableInfo metaData = new TableInfo(tableName);
         metaData._rowCount--;
         metaData.updateCatalog();
         getPageRows();
     }
 
+    // appends a record that keeps its own row id (used to rebuild a table file)
+    public void appendRecord(TableRow record) throws IOException{
+        // long values are copied into overflow pages of this file
+        Byte[] colDatatypes = record.getColDatatypes();
+        Byte[] recordBody = record.getRecordBody().clone();
+        int pointer = 0;
+        for (int i = 0; i < colDatatypes.length; i++) {
+            if (colDatatypes[i] == Type.textOverflow) {
+                byte[] reference = writeOverflow(_tblFile, record.getField(i)._byteAtt);
+                System.arraycopy(LoadByte.byteToBytes(reference), 0, recordBody, pointer, reference.length);
+            }
+            pointer += Type.getTypeSize(colDatatypes[i]);
+        }
+
+        List<Byte> recordHeader = new ArrayList<>();
+        recordHeader.addAll(Arrays.asList(LoadByte.shortToBytes((short)(recordBody.length + colDatatypes.length + 1))));
+        recordHeader.addAll(Arrays.asList(LoadByte.intToBytes(record._rowId)));
+        recordHeader.add(Integer.valueOf(colDatatypes.length).byteValue());
+        recordHeader.addAll(Arrays.asList(colDatatypes));
+
+        _lastID = record._rowId;
+        addNewPageRecord(recordHeader.toArray(new Byte[recordHeader.size()]), recordBody);
+    }
+
+    // removes the cell of an interior page that points to the left child page
+    public boolean removeLeftChild(int childPageNo) throws IOException{
+        ByteBuffer page = BufferPool.pin(_tblFile, _pageNum);
+        int recordIndex = -1;
+        for (int i = 0; i < _numCell && recordIndex == -1; i++) {
+            int cellStart = getUnsignedShort(page, cellPointerStart + i*2);
+            if (cellStart != 0 && page.getInt(cellStart) == childPageNo)
+                recordIndex = i;
+        }
+        BufferPool.unpin(_tblFile, _pageNum, false);
+        if (recordIndex == -1)
+            return false;
+
+        DeleteRecord((short)recordIndex);
+        _leftChildrenMap.values().remove(childPageNo);
+        return true;
+    }
+
     private void addNewPageRecord(Byte[] recordHeader, Byte[] recordBody) throws IOException {
+        if (_isPax) {
+            addPaxRecord(recordHeader, recordBody);
+            return;
+        }
+        int cellLength = recordHeader.length + recordBody.length;
+        int newCellStart = 0;
+
+        //if there is no contiguous space in the current page, reuse the space of deleted cells before splitting
+        if(cellLength + 4 > _spaceLeft){
+            ByteBuffer page = BufferPool.pin(_tblFile, _pageNum);
+            if (_spaceLeft >= 2)
+                newCellStart = allocateFromFreeBlocks(page, cellLength);
+            boolean defragmented = newCellStart == 0 && getFreeSpace(page) >= cellLength + 4;
+            if (defragmented)
+                defragment(page);
+            BufferPool.unpin(_tblFile, _pageNum, newCellStart != 0 || defragmented);
+        }
+
         //if there is no space in the current page
-        if(recordHeader.length + recordBody.length + 4 > _spaceLeft){
+        if(newCellStart == 0 && cellLength + 4 > _spaceLeft){
             try{
-                if(_pageType == PageType.tblLEAF || _pageType == PageType.tblINTERIOR)
+                // an interior page is split by addToParent before a cell is added to it
+                if(_pageType == PageType.tblLEAF)
                     handleTableOverFlow();
             }
             catch(IOException e){
                 System.out.println("Error while handleTableOverFlow");
             }
         }
-        // no need to left 2 byte space??
-        short newCellStart = Integer.valueOf((_offsetForContent - recordBody.length - recordHeader.length - 2)).shortValue();
-        _tblFile.seek(_pageNum * DavisBaseBinaryFile.pageSize + newCellStart);
-
-        //record head
-        _tblFile.write(LoadByte.Bytestobytes(recordHeader));
+        ByteBuffer page = BufferPool.pin(_tblFile, _pageNum);
+        if (newCellStart == 0) {
+            // no need to left 2 byte space??
+            newCellStart = _offsetForContent - recordBody.length - recordHeader.length - 2;
+            _offsetForContent = newCellStart;
+            page.putShort(4, (short)_offsetForContent);
+        }
 
-        //record body
-        _tblFile.write(LoadByte.Bytestobytes(recordBody));
+        //record head and record body are written as one cell
+        byte[] cell = new byte[recordHeader.length + recordBody.length];
+        System.arraycopy(LoadByte.Bytestobytes(recordHeader), 0, cell, 0, recordHeader.length);
+        System.arraycopy(LoadByte.Bytestobytes(recordBody), 0, cell, recordHeader.length, recordBody.length);
+        writeBytes(page, newCellStart, cell);
         // _numCell is different from lastRowId
         // update the page header
-        _tblFile.seek(_pageStart + 0x10 + (_numCell * 2));
-        _tblFile.writeShort(newCellStart);
+        page.putShort(cellPointerStart + (_numCell * 2), (short)newCellStart);
 
-        _offsetForContent = newCellStart;
+        _numCell++;
+        page.putShort(2, _numCell);
+        BufferPool.unpin(_tblFile, _pageNum, true);
 
-        _tblFile.seek(_pageStart + 4); _tblFile.writeShort(_offsetForContent);
+        _spaceLeft = _offsetForContent - cellPointerStart - (_numCell*2);
+    }
 
-        _numCell++;
-        _tblFile.seek(_pageStart + 2); _tblFile.writeShort(_numCell);
+    // a PAX leaf is written again with the new row, or the row starts a new leaf if it does not fit
+    private void addPaxRecord(Byte[] recordHeader, Byte[] recordBody) throws IOException {
+        ByteBuffer cellHeader = ByteBuffer.wrap(LoadByte.Bytestobytes(recordHeader));
+        byte[] colDatatypes = new byte[cellHeader.get(6)];
+        Page.readBytes(cellHeader, 7, colDatatypes);
+        PaxRow newRow = new PaxRow(cellHeader.getInt(2), colDatatypes, LoadByte.Bytestobytes(recordBody));
+
+        ByteBuffer page = BufferPool.pin(_tblFile, _pageNum);
+        List<PaxRow> rows = PaxLeaf.getRows(page);
+        BufferPool.unpin(_tblFile, _pageNum, false);
+        rows.add(newRow);
+        if (PaxLeaf.getSize(rows) > page.capacity()) {
+            handleTableOverFlow();
+            rows = new ArrayList<>(Collections.singletonList(newRow));
+        }
 
-        _spaceLeft = _offsetForContent - 0x10 - (_numCell*2);
+        page = BufferPool.pin(_tblFile, _pageNum);
+        PaxLeaf.write(page, rows);
+        BufferPool.unpin(_tblFile, _pageNum, true);
+        _numCell = (short)rows.size();
     }
 
+    /*
+     * Split of the full right-most leaf. Row ids only grow and every insert goes to the right-most
+     * leaf, so the full leaf keeps all its rows and a new empty right sibling takes the next ones,
+     * the split B+ trees do for ascending keys (a split in the middle would leave every leaf half
+     * empty for good). The full leaf goes into its parent as a cell keyed by its last row id and
+     * the new leaf becomes the right-most child, see addToParent. A clustered table only gets here
+     * when VACUUM appends its rows in key order, the cell is keyed by the last key of the leaf.
+     */
     private void handleTableOverFlow() throws IOException {
-        if(_pageType == PageType.tblLEAF) {
-            //create a new leaf page
-            int newRightLeafPageNo = addNewPage(_tblFile,_pageType,-1,-1);
-
-            //if the current leaf page is root (the only page)
-            if(_NumOfParent == -1){
-                //create new parent page
-                int newParentPageNo = addNewPage(_tblFile, PageType.tblINTERIOR, newRightLeafPageNo, -1);
-
-                //(write in page) set the new leaf page as right sibling to the current page
-                //set the newly created parent page as parent to the current page
-                setRightPageNo(newRightLeafPageNo);
-                setParent(newParentPageNo);
-
-                //Add the current page as left child for the parent
-                Page newParentPage = new Page(newParentPageNo, _tblFile);
-                newParentPageNo = newParentPage.addLeftTableChild(_pageNum, _lastID);
-                //(write in page) set the newly created leaf page as rightmost child of the parent
-                newParentPage.setRightPageNo(newRightLeafPageNo);
-
-                // add the newly created parent page as parent to newly created right page
-                Page newLeafPage = new Page(newRightLeafPageNo, _tblFile);
-                newLeafPage.setParent(newParentPageNo);
-
-                // change the current page as newly created(empty) page
-                copyPage(newLeafPage);
-            }
-            else
-            {
-                // if the leaf page is not root (multiple pages exist)
-                // Add the current page as left child for the parent
-                Page parentPage = new Page(_NumOfParent, _tblFile);
-                _NumOfParent = parentPage.addLeftTableChild(_pageNum, _lastID);
+        byte[] lastKey;
+        if (_clusteredKey != null) {
+            ByteBuffer page = BufferPool.pin(_tblFile, _pageNum);
+            lastKey = ClusteredTable.getLastKey(_clusteredKey, page);
+            BufferPool.unpin(_tblFile, _pageNum, false);
+        } else
+            lastKey = LoadByte.Bytestobytes(LoadByte.intToBytes(DavisBaseBinaryFile.getPageLastID(_tblFile, _pageNum)));
+        int newRightLeafPageNo = addNewPage(_tblFile, PageType.tblLEAF, -1, -1);
+
+        // set the new leaf page as right sibling to the current page
+        setRightPageNo(newRightLeafPageNo);
+
+        int parentPageNo = addToParent(_tblFile, _NumOfParent, _pageNum, lastKey, newRightLeafPageNo);
+        if (_NumOfParent == -1)
+            setParent(parentPageNo);
+        Page newLeafPage = new Page(newRightLeafPageNo, _tblFile);
+        newLeafPage.setParent(parentPageNo);
+
+        // change the current page as newly created(empty) page
+        copyPage(newLeafPage);
+    }
 
-                // add the newly created leaf page as rightmost child of the parent
-                parentPage.setRightPageNo(newRightLeafPageNo);
+    /*
+     * Add the cell <leftChildPageNo, key> to an interior page whose right-most child is
+     * leftChildPageNo, and make newRightPageNo its right-most child instead. A full interior page
+     * is split the same way as a leaf: it keeps its cells, goes into its own parent as a cell and
+     * a new interior page takes newRightPageNo. The split goes up until a page has room, only a
+     * root split adds a level, so the height stays logarithmic. Returns the page newRightPageNo is
+     * a child of.
+     */
+    static int addToParent(RandomAccessFile file, int parentPageNo, int leftChildPageNo, byte[] key, int newRightPageNo) throws IOException{
+        if (parentPageNo == -1) {
+            // the root was split, the new root has the old one as its only cell
+            int newRootPageNo = addNewPage(file, PageType.tblINTERIOR, newRightPageNo, -1);
+            new Page(newRootPageNo, file).addLeftTableChild(leftChildPageNo, key);
+            BufferPool.getHeader(file)._rootPageNum = newRootPageNo;
+            BufferPool.writeHeader(file);
+            return newRootPageNo;
+        }
+
+        Page parentPage = new Page(parentPageNo, file);
+        if (parentPage.hasRoomFor(4 + key.length)) {
+            parentPage.addLeftTableChild(leftChildPageNo, key);
+            parentPage.setRightPageNo(newRightPageNo);
+            return parentPageNo;
+        }
+
+        int newInteriorPageNo = addNewPage(file, PageType.tblINTERIOR, newRightPageNo, -1);
+        int grandParentPageNo = addToParent(file, parentPage._NumOfParent, parentPageNo, key, newInteriorPageNo);
+        if (parentPage._NumOfParent == -1)
+            parentPage.setParent(grandParentPageNo);
+        new Page(newInteriorPageNo, file).setParent(grandParentPageNo);
+        return newInteriorPageNo;
+    }
 
-                // set the new leaf page as right sibling to the current page
-                setRightPageNo(newRightLeafPageNo);
+    // whether a cell fits in the page, in the free space or in the space of deleted cells
+    private boolean hasRoomFor(int cellLength) throws IOException{
+        if (cellLength + 4 <= _spaceLeft)
+            return true;
+        ByteBuffer page = BufferPool.pin(_tblFile, _pageNum);
+        try {
+            return getFreeSpace(page) >= cellLength + 4;
+        } finally {
+            BufferPool.unpin(_tblFile, _pageNum, false);
+        }
+    }
+
+    private void addLeftTableChild(int leftChildPageNo, byte[] key) throws IOException{
+        List<Byte> recordHeader= new ArrayList<>();
+        List<Byte> recordBody= new ArrayList<>();
+
+        recordHeader.addAll(Arrays.asList(LoadByte.intToBytes(leftChildPageNo)));
+        recordBody.addAll(Arrays.asList(LoadByte.byteToBytes(key)));
+
+        // update the record in the interior page
+        addNewPageRecord(recordHeader.toArray(new Byte[recordHeader.size()]), recordBody.toArray(new Byte[recordBody.size()]));
+    }
+
+    //sets the parentPageNo as parent for the current page
+    public void setParent(int parentPageNo) throws IOException{
+        BufferPool.pin(_tblFile, _pageNum).putInt(0x0A, parentPageNo);
+        BufferPool.unpin(_tblFile, _pageNum, true);
+        _NumOfParent = parentPageNo;
+    }
+
+    //sets the rightPageNo as rightPageNo (right sibling or right most child) for the current page
+    public void setRightPageNo(int rightPageNo) throws IOException{
+        BufferPool.pin(_tblFile, _pageNum).putInt(0x06, rightPageNo);
+        BufferPool.unpin(_tblFile, _pageNum, true);
+        _NumOfRight = rightPageNo;
+    }
+
+    /*
+     * Overflow page: 0x02 number of value bytes in the page, 0x06 next overflow page (-1 for the
+     * last one), the bytes of the value follow the page header. Returns the reference kept in the
+     * record instead of the value: its length, the first overflow page and a prefix.
+     */
+    static byte[] writeOverflow(RandomAccessFile file, byte[] value) throws IOException{
+        int pageCapacity = BufferPool.getPageSize(file) - cellPointerStart;
+        int pageCount = (value.length + pageCapacity - 1) / pageCapacity;
+        int[] overflowPages = new int[pageCount];
+        for (int i = 0; i < pageCount; i++)
+            overflowPages[i] = addNewPage(file, PageType.tblOVERFLOW, -1, -1);
+
+        for (int i = 0; i < pageCount; i++) {
+            int start = i * pageCapacity;
+            int length = Math.min(pageCapacity, value.length - start);
+            ByteBuffer page = BufferPool.pin(file, overflowPages[i]);
+            page.putShort(2, (short)length);
+            page.putInt(6, i + 1 < pageCount ? overflowPages[i + 1] : -1);
+            writeBytes(page, cellPointerStart, Arrays.copyOfRange(value, start, start + length));
+            BufferPool.unpin(file, overflowPages[i], true);
+        }
+
+        ByteBuffer reference = ByteBuffer.allocate(Type.overflowRefSize);
+        reference.putInt(value.length);
+        reference.putInt(overflowPages[0]);
+        reference.put(value, 0, Type.overflowPrefixLength);
+        return reference.array();
+    }
+
+    static byte[] readOverflow(RandomAccessFile file, int overflowPage, int length) throws IOException{
+        byte[] value = new byte[length];
+        int position = 0;
+        while (overflowPage != -1 && position < length) {
+            ByteBuffer page = BufferPool.pin(file, overflowPage);
+            int pageLength = getUnsignedShort(page, 2);
+            byte[] chunk = new byte[pageLength];
+            readBytes(page, cellPointerStart, chunk);
+            int nextPage = page.getInt(6);
+            BufferPool.unpin(file, overflowPage, false);
+
+            System.arraycopy(chunk, 0, value, position, Math.min(pageLength, length - position));
+            position += pageLength;
+            overflowPage = nextPage;
+        }
+        if (position < length)
+            throw new IOException("overflow chain is shorter than " + length + " bytes");
+        return value;
+    }
 
-                // add the parent page as parent to newly created right page
-                Page newLeafPage = new Page(newRightLeafPageNo, _tblFile);
-                newLeafPage.setParent(_NumOfParent);
+    static void freeOverflow(RandomAccessFile file, int overflowPage) throws IOException{
+        while (overflowPage != -1) {
+            int nextPage = getRightPageNo(file, overflowPage);
+            freePage(file, overflowPage);
+            overflowPage = nextPage;
+        }
+    }
 
-                // change the current page as newly created(empty) page
-                copyPage(newLeafPage);
+    // first overflow page of every long value of the record
+    private List<Integer> getOverflowPages(short recordIndex) throws IOException{
+        List<Integer> overflowPages = new ArrayList<>();
+        ByteBuffer page = BufferPool.pin(_tblFile, _pageNum);
+        try {
+            if (_isPax) {
+                List<PaxRow> rows = PaxLeaf.getRows(page);
+                if (recordIndex < rows.size()) {
+                    PaxRow row = rows.get(recordIndex);
+                    for (int i = 0; i < row._colDatatypes.length; i++)
+                        if (row._colDatatypes[i] == Type.textOverflow)
+                            overflowPages.add(ByteBuffer.wrap(row._recordBody).getInt(row.getValueStart(i) + 4));
+                }
+                return overflowPages;
+            }
+            int cellStart = getUnsignedShort(page, cellPointerStart + recordIndex*2);
+            if (_pageType != PageType.tblLEAF || recordIndex >= _numCell || cellStart == 0)
+                return overflowPages;
+            int noOfcolumns = page.get(cellStart + 6);
+            int fieldStart = cellStart + 7 + noOfcolumns;
+            for (int i = 0; i < noOfcolumns; i++) {
+                byte colDataType = page.get(cellStart + 7 + i);
+                if (colDataType == Type.textOverflow)
+                    overflowPages.add(page.getInt(fieldStart + 4));
+                fieldStart += Type.getTypeSize(colDataType);
             }
+        } finally {
+            BufferPool.unpin(_tblFile, _pageNum, false);
         }
-        else if (_pageType == PageType.tblINTERIOR){
-            // create a new left page on the right-most
-            int newRightLeafPageNo = addNewPage(_tblFile, _pageType,-1,-1);
+        return overflowPages;
+    }
 
-            //create new parent page
-            int newParentPageNo = addNewPage(_tblFile, _pageType, newRightLeafPageNo, -1);
+    /*
+     * Cell offsets are unsigned 2-byte values so they can address pages bigger than 32KB.
+     * The content start of an empty 64KB page (65536) does not fit in 2 bytes and is stored as 0.
+     */
+    static int getUnsignedShort(ByteBuffer page, int index){
+        return page.getShort(index) & 0xFFFF;
+    }
 
-            //set the new leaf page as right sibling to the current page
-            setRightPageNo(newRightLeafPageNo);
+    static int getContentStart(ByteBuffer page){
+        int contentStart = getUnsignedShort(page, 4);
+        return contentStart == 0 ? page.capacity() : contentStart;
+    }
 
-            //set the newly created parent page as parent to the current page
-            setParent(newParentPageNo);
+    /*
+     * Free space inside a page. The space of deleted cells is kept in a list of free blocks sorted
+     * by offset, the first one is at 0x0E of the page header. Each free block starts with the offset
+     * of the next block (0 for the last one) and its own size, 2 bytes each. Left-overs under 4 bytes
+     * can't be listed and are only recovered when the page is defragmented.
+     */
+    static final int freeBlockHead = 0x0E;
+
+    int getCellSize(ByteBuffer page, int cellStart){
+        if (PageType.byteToPageType(page.get(0)) == PageType.tblINTERIOR)
+            return 4 + _keyLength;   // left child page number and row id (or clustered key)
+        return 6 + getUnsignedShort(page, cellStart);   // payload size and row id, then the payload
+    }
 
-            //Add the current page as left child for the parent
-            Page newParentPage = new Page(newParentPageNo, _tblFile);
-            newParentPageNo = newParentPage.addLeftTableChild(_pageNum, _lastID);
-            //add the newly created leaf page as rightmost child of the parent
-            newParentPage.setRightPageNo(newRightLeafPageNo);
+    // offset of the live cell of the row id, 0 if it is not in the page
+    static int findCell(ByteBuffer page, int rowId){
+        int numCell = page.getShort(2);
+        // the cell pointers are in row id order, a binary search finds the row
+        int low = 0;
+        int high = numCell - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int cellStart = getUnsignedShort(page, cellPointerStart + middle*2);
+            if (cellStart == 0)
+                break;  // a deleted cell, look at every pointer below
+            int middleRowId = page.getInt(cellStart + 2);
+            if (middleRowId == rowId)
+                return cellStart;
+            if (middleRowId < rowId)
+                low = middle + 1;
+            else
+                high = middle - 1;
+        }
+        if (low > high)
+            return 0;
+        return scanCell(page, rowId);
+    }
 
-            //add the newly created parent page as parent to newly created right page
-            Page newLeafPage = new Page(newRightLeafPageNo, _tblFile);
-            newLeafPage.setParent(newParentPageNo);
+    // the same by looking at every cell, for a leaf of a clustered table whose cells are in key order
+    static int scanCell(ByteBuffer page, int rowId){
+        int numCell = page.getShort(2);
+        for (int i = 0; i < numCell; i++) {
+            int cellStart = getUnsignedShort(page, cellPointerStart + i*2);
+            if (cellStart != 0 && page.getInt(cellStart + 2) == rowId)
+                return cellStart;
+        }
+        return 0;
+    }
 
-            // change the current page as newly created(empty) page
-            copyPage(newLeafPage);
+    // total free bytes: the gap between cell pointers and content, free blocks and fragments
+    int getFreeSpace(ByteBuffer page){
+        int used = cellPointerStart + _numCell*2;
+        for (int i = 0; i < _numCell; i++) {
+            int cellStart = getUnsignedShort(page, cellPointerStart + i*2);
+            if (cellStart != 0)
+                used += getCellSize(page, cellStart);
         }
+        return page.capacity() - used;
     }
-    private int addLeftTableChild(int leftChildPageNo, int rowId) throws IOException{
-        for (int lastRowIdInPage: _leftChildrenMap.keySet())
-            if (lastRowIdInPage == rowId)
-                return _pageNum;
 
-        if(_pageType == PageType.tblINTERIOR){
-            List<Byte> recordHeader= new ArrayList<>();
-            List<Byte> recordBody= new ArrayList<>();
+    static void freeCellSpace(ByteBuffer page, int start, int size){
+        int previous = 0;
+        int next = getUnsignedShort(page, freeBlockHead);
+        while (next != 0 && next < start) {
+            previous = next;
+            next = getUnsignedShort(page, next);
+        }
+        // merge with the following block, a gap under 4 bytes can't hold a live cell
+        if (next != 0 && next - (start + size) < 4) {
+            size = next + getUnsignedShort(page, next + 2) - start;
+            next = getUnsignedShort(page, next);
+        }
+        // merge with the preceding block
+        if (previous != 0 && start - (previous + getUnsignedShort(page, previous + 2)) < 4) {
+            page.putShort(previous + 2, (short)(start + size - previous));
+            page.putShort(previous, (short)next);
+            return;
+        }
+        page.putShort(start, (short)next);
+        page.putShort(start + 2, (short)size);
+        page.putShort(previous == 0 ? freeBlockHead : previous, (short)start);
+    }
 
-            recordHeader.addAll(Arrays.asList(LoadByte.intToBytes(leftChildPageNo)));
-            recordBody.addAll(Arrays.asList(LoadByte.intToBytes(rowId)));
+    // first fit: take the cell out of the end of the first free block big enough, 0 if there is none
+    static int allocateFromFreeBlocks(ByteBuffer page, int size){
+        int previous = 0;
+        int block = getUnsignedShort(page, freeBlockHead);
+        while (block != 0) {
+            int next = getUnsignedShort(page, block);
+            int blockSize = getUnsignedShort(page, block + 2);
+            if (blockSize >= size) {
+                int remaining = blockSize - size;
+                if (remaining < 4)
+                    page.putShort(previous == 0 ? freeBlockHead : previous, (short)next);
+                else
+                    page.putShort(block + 2, (short)remaining);
+                return block + remaining;
+            }
+            previous = block;
+            block = next;
+        }
+        return 0;
+    }
 
-            // update the record in the interior page
-            addNewPageRecord(recordHeader.toArray(new Byte[recordHeader.size()]), recordBody.toArray(new Byte[recordBody.size()]));
+    // move all live cells to the end of the page so the free space is contiguous again
+    void defragment(ByteBuffer page){
+        byte[] original = new byte[page.capacity()];
+        readBytes(page, 0, original);
+        ByteBuffer source = ByteBuffer.wrap(original);
+
+        int contentStart = page.capacity();
+        for (int i = 0; i < _numCell; i++) {
+            int cellStart = getUnsignedShort(source, cellPointerStart + i*2);
+            if (cellStart == 0)
+                continue;
+            int cellSize = getCellSize(source, cellStart);
+            contentStart -= cellSize;
+            writeBytes(page, contentStart, Arrays.copyOfRange(original, cellStart, cellStart + cellSize));
+            page.putShort(cellPointerStart + i*2, (short)contentStart);
         }
-        return _pageNum;
+        page.putShort(freeBlockHead, (short)0);
+        page.putShort(4, (short)contentStart);
+        _offsetForContent = contentStart;
+        _spaceLeft = _offsetForContent - cellPointerStart - (_numCell*2);
     }
 
-    //sets the parentPageNo as parent for the current page
-    public void setParent(int parentPageNo) throws IOException{
-        _tblFile.seek(DavisBaseBinaryFile.pageSize * _pageNum + 0x0A);
-        _tblFile.writeInt(parentPageNo);
-        _NumOfParent = parentPageNo;
+    // copy bytes out of / into a page frame without moving its position
+    static void readBytes(ByteBuffer page, int offset, byte[] dst){
+        ByteBuffer view = page.duplicate();
+        view.position(offset);
+        view.get(dst);
     }
 
-    //sets the rightPageNo as rightPageNo (right sibling or right most child) for the current page
-    public void setRightPageNo(int rightPageNo) throws IOException{
-        _tblFile.seek(DavisBaseBinaryFile.pageSize * _pageNum + 0x06);
-        _tblFile.writeInt(rightPageNo);
-        _NumOfRight = rightPageNo;
+    static void writeBytes(ByteBuffer page, int offset, byte[] src){
+        ByteBuffer view = page.duplicate();
+        view.position(offset);
+        view.put(src);
     }
 }
@@ -0,0 +1,189 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Author: Bo-Yu Huang
+ * Date: 8/14/20
+ */
+
+// A row of a PAX leaf, with its column types and body as they would be in a row-format cell
+class PaxRow{
+    int _rowId;
+    byte[] _colDatatypes;
+    byte[] _recordBody;
+
+    PaxRow(int rowId, byte[] colDatatypes, byte[] recordBody){
+        _rowId = rowId;
+        _colDatatypes = colDatatypes;
+        _recordBody = recordBody;
+    }
+
+    // where the value of the column starts in the record body
+    int getValueStart(int column){
+        int start = 0;
+        for (int i = 0; i < column; i++)
+            start += Type.getTypeSize(_colDatatypes[i]);
+        return start;
+    }
+}
+
+public class PaxLeaf {
+    /*
+     * Leaf pages of a table created WITH (layout = pax) keep the values of each column together in
+     * a minipage, so a scan only decodes the columns it uses. 0x01 of the page header is 1, the rest
+     * of the header is the same as a row-format leaf. After the header:
+     *
+     *  0x18  short      number of columns n (0 in an empty page)
+     *  0x1A  n+1 shorts start of each column minipage, then the end of the last one
+     *        int[]      row ids, one per row in row id order
+     *        minipage   for each column: the type of every row (1 byte each), then the values
+     *
+     * A PAX leaf is written whole: a change decodes its rows, changes them and writes the page again.
+     */
+    static final int columnCountOffset = Page.cellPointerStart;
+    static final int minipageTable = Page.cellPointerStart + 2;
+
+    // a copy of the page taken when it was decoded, the frame may change after it is unpinned
+    ByteBuffer _page;
+    int _rowCount;
+    int _columnCount;
+    int[] _minipageStart;
+    int _rowIdStart;
+    // decoded columns, null until a row asks for a value of the column, and decoded rows
+    Field[][] _columns;
+    List<PaxRow> _rows;
+
+    PaxLeaf(ByteBuffer page){
+        byte[] copy = new byte[page.capacity()];
+        Page.readBytes(page, 0, copy);
+        _page = ByteBuffer.wrap(copy);
+        _rowCount = _page.getShort(2);
+        _columnCount = _page.getShort(columnCountOffset);
+        _minipageStart = new int[_columnCount + 1];
+        for (int i = 0; i <= _columnCount; i++)
+            _minipageStart[i] = Page.getUnsignedShort(_page, minipageTable + i*2);
+        _rowIdStart = minipageTable + (_columnCount + 1) * 2;
+        _columns = new Field[_columnCount][];
+    }
+
+    static boolean isPax(ByteBuffer page){
+        return page.get(0) == PageType.tblLEAF._value && page.get(1) == FileHeader.paxLayout;
+    }
+
+    int getRowId(int row){
+        return _page.getInt(_rowIdStart + row*4);
+    }
+
+    // The value of a row in a column, the whole column is decoded the first time
+    Field getField(int column, int row) throws Exception{
+        if (_columns[column] == null) {
+            Field[] fields = new Field[_rowCount];
+            int typeStart = _minipageStart[column];
+            int valueStart = typeStart + _rowCount;
+            for (int i = 0; i < _rowCount; i++) {
+                byte colDataType = _page.get(typeStart + i);
+                byte[] byteValue = new byte[Type.getTypeSize(colDataType)];
+                Page.readBytes(_page, valueStart, byteValue);
+                fields[i] = TableRow.toField(colDataType, byteValue);
+                valueStart += byteValue.length;
+            }
+            _columns[column] = fields;
+        }
+        return _columns[column][row];
+    }
+
+    // Every row of the leaf, to be changed and written back with write()
+    List<PaxRow> getRows(){
+        List<PaxRow> rows = new ArrayList<>();
+        for (int i = 0; i < _rowCount; i++) {
+            byte[] colDatatypes = new byte[_columnCount];
+            int bodySize = 0;
+            for (int column = 0; column < _columnCount; column++) {
+                colDatatypes[column] = _page.get(_minipageStart[column] + i);
+                bodySize += Type.getTypeSize(colDatatypes[column]);
+            }
+            rows.add(new PaxRow(getRowId(i), colDatatypes, new byte[bodySize]));
+        }
+        // then the values, one minipage after the other
+        for (int column = 0; column < _columnCount; column++) {
+            int valueStart = _minipageStart[column] + _rowCount;
+            for (PaxRow row : rows) {
+                int size = Type.getTypeSize(row._colDatatypes[column]);
+                _page.position(valueStart);
+                _page.get(row._recordBody, row.getValueStart(column), size);
+                valueStart += size;
+            }
+        }
+        return rows;
+    }
+
+    PaxRow getRow(int row){
+        if (_rows == null)
+            _rows = getRows();
+        return _rows.get(row);
+    }
+
+    static List<PaxRow> getRows(ByteBuffer page){
+        return new PaxLeaf(page).getRows();
+    }
+
+    // index of the row id in the leaf, -1 if it is not there. The row ids are in order, a binary search finds it
+    static int findRow(ByteBuffer page, int rowId){
+        // read in place, without the copy a decoded leaf takes
+        int rowIdStart = minipageTable + (page.getShort(columnCountOffset) + 1) * 2;
+        int low = 0;
+        int high = page.getShort(2) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int middleRowId = page.getInt(rowIdStart + middle*4);
+            if (middleRowId == rowId)
+                return middle;
+            if (middleRowId < rowId)
+                low = middle + 1;
+            else
+                high = middle - 1;
+        }
+        return -1;
+    }
+
+    static int getLastRowId(ByteBuffer page){
+        PaxLeaf leaf = new PaxLeaf(page);
+        int lastID = 0;
+        for (int i = 0; i < leaf._rowCount; i++)
+            lastID = Math.max(lastID, leaf.getRowId(i));
+        return lastID;
+    }
+
+    // bytes the rows take in a PAX leaf, the page header included
+    static int getSize(List<PaxRow> rows){
+        int columnCount = rows.isEmpty() ? 0 : rows.get(0)._colDatatypes.length;
+        int size = minipageTable + (columnCount + 1) * 2;
+        for (PaxRow row : rows)
+            size += 4 + row._colDatatypes.length + row._recordBody.length;
+        return size;
+    }
+
+    // Write the rows into the leaf, after the page header, column by column
+    static void write(ByteBuffer page, List<PaxRow> rows){
+        int columnCount = rows.isEmpty() ? 0 : rows.get(0)._colDatatypes.length;
+        ByteBuffer content = ByteBuffer.wrap(new byte[page.capacity() - Page.cellPointerStart]);
+        content.putShort((short)columnCount);
+        int rowIdStart = 2 + (columnCount + 1) * 2;
+        content.position(rowIdStart);
+        for (PaxRow row : rows)
+            content.putInt(row._rowId);
+        for (int column = 0; column < columnCount; column++) {
+            content.putShort(2 + column*2, (short)(Page.cellPointerStart + content.position()));
+            for (PaxRow row : rows)
+                content.put(row._colDatatypes[column]);
+            for (PaxRow row : rows)
+                content.put(row._recordBody, row.getValueStart(column), Type.getTypeSize(row._colDatatypes[column]));
+        }
+        content.putShort(2 + columnCount*2, (short)(Page.cellPointerStart + content.position()));
+
+        page.put(1, FileHeader.paxLayout);
+        page.putShort(2, (short)rows.size());
+        Page.writeBytes(page, Page.cellPointerStart, content.array());
+    }
+}
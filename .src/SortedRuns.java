@@ -0,0 +1,179 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Author: Bo-Yu Huang
+ * Date: 8/16/20
+ */
+
+// A run file being merged, with the record it is at
+class RunReader{
+    int _runNo;
+    DataInputStream _in;
+    byte[] _key;
+    byte[] _value;
+
+    RunReader(int runNo, String path) throws IOException {
+        _runNo = runNo;
+        _in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), SortedRuns.streamBuffer));
+    }
+
+    // move on to the next record of the run, false at its end
+    boolean advance() throws IOException {
+        try {
+            _key = new byte[_in.readInt()];
+            _in.readFully(_key);
+            _value = new byte[_in.readInt()];
+            _in.readFully(_value);
+            return true;
+        } catch (EOFException e) {
+            _in.close();
+            return false;
+        }
+    }
+}
+
+public class SortedRuns {
+    /*
+     * An external merge sort of records, a key and a value each, ordered by the key as unsigned bytes
+     * (see ClusteredKey) and then in the order they were added. LOAD DATA sorts more rows than fit in
+     * memory with it: the records are collected up to runKB (--sort-kb), sorted and written to a run file,
+     * <path>.<run number>, and reading them back merges the runs. At most mergeFanIn runs are merged
+     * at a time, the oldest ones are merged into a longer run first.
+     *
+     * Run file: the records one after the other, each an int length and the bytes of its key, then
+     * an int length and the bytes of its value.
+     */
+    static int runKB = 16 * 1024;
+    static final int mergeFanIn = 64;
+    static final int streamBuffer = 64 * 1024;
+
+    String _path;
+    List<byte[][]> _records = new ArrayList<>();
+    long _bytes;
+    List<String> _runs = new ArrayList<>();
+    int _runCount;
+
+    // the runs being merged, by their current record, and the records read back when none was spilled
+    PriorityQueue<RunReader> _merge;
+    int _next;
+
+    SortedRuns(String path) {
+        _path = path;
+    }
+
+    void add(byte[] key, byte[] value) throws IOException {
+        _records.add(new byte[][]{key, value});
+        // the arrays and their references as well
+        _bytes += key.length + value.length + 64;
+        if (_bytes >= (long) runKB * 1024)
+            spill();
+    }
+
+    // Sort the records in memory and write them out as a run
+    private void spill() throws IOException {
+        _records.sort((record1, record2) -> ClusteredKey.compare(record1[0], record2[0]));
+        String runPath = _path + "." + _runCount++;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runPath), streamBuffer))) {
+            for (byte[][] record : _records)
+                write(out, record[0], record[1]);
+        }
+        _runs.add(runPath);
+        _records.clear();
+        _bytes = 0;
+    }
+
+    private static void write(DataOutputStream out, byte[] key, byte[] value) throws IOException {
+        out.writeInt(key.length);
+        out.write(key);
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    /*
+     * Done adding, the records can be read back in order with next(). Records that all fit in memory
+     * are only sorted there.
+     */
+    void sort() throws IOException {
+        if (_runs.isEmpty()) {
+            _records.sort((record1, record2) -> ClusteredKey.compare(record1[0], record2[0]));
+            return;
+        }
+        if (!_records.isEmpty())
+            spill();
+        while (_runs.size() > mergeFanIn) {
+            List<String> oldest = new ArrayList<>(_runs.subList(0, mergeFanIn));
+            _runs.subList(0, mergeFanIn).clear();
+            PriorityQueue<RunReader> merge = open(oldest);
+            String runPath = _path + "." + _runCount++;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runPath), streamBuffer))) {
+                byte[][] record;
+                while ((record = next(merge)) != null)
+                    write(out, record[0], record[1]);
+            }
+            for (String path : oldest)
+                new File(path).delete();
+            // the merged run holds the oldest records, it stays in front of the newer ones
+            _runs.add(0, runPath);
+        }
+        _merge = open(_runs);
+    }
+
+    // ties go to the older run, so records with the same key keep the order they were added in
+    private PriorityQueue<RunReader> open(List<String> runs) throws IOException {
+        PriorityQueue<RunReader> merge = new PriorityQueue<>((run1, run2) -> {
+            int result = ClusteredKey.compare(run1._key, run2._key);
+            return result != 0 ? result : Integer.compare(run1._runNo, run2._runNo);
+        });
+        for (int i = 0; i < runs.size(); i++) {
+            RunReader run = new RunReader(i, runs.get(i));
+            if (run.advance())
+                merge.add(run);
+        }
+        return merge;
+    }
+
+    private static byte[][] next(PriorityQueue<RunReader> merge) throws IOException {
+        RunReader run = merge.poll();
+        if (run == null)
+            return null;
+        byte[][] record = {run._key, run._value};
+        if (run.advance())
+            merge.add(run);
+        return record;
+    }
+
+    // The next record in order, {key, value}, null after the last one
+    byte[][] next() throws IOException {
+        if (_merge != null)
+            return next(_merge);
+        return _next < _records.size() ? _records.get(_next++) : null;
+    }
+
+    // Delete the run files, whether they were read to the end or not
+    void close() {
+        if (_merge != null) {
+            for (RunReader run : _merge) {
+                try {
+                    run._in.close();
+                } catch (IOException e) {
+                    // the file is deleted anyway
+                }
+            }
+        }
+        for (String path : _runs)
+            new File(path).delete();
+        _runs.clear();
+        _records.clear();
+    }
+}
@@ -0,0 +1,283 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Author: Bo-Yu Huang
+ * Date: 8/17/20
+ */
+
+public class TableExporter {
+    /*
+     * COPY <table> [WHERE ...] TO '<path>' FORMAT csv|binary. The leaves are read in row id order
+     * along their sibling chain, and every row is encoded from its page straight into the output
+     * buffer, without a TableRow or a Field per row, so the memory used does not grow with the table.
+     *
+     * csv     one line per row with the values in column order, as LOAD DATA reads them: NULL is
+     *         an empty value, a value with a comma, a quote, a line break or an edge space is
+     *         quoted with " (a quote in it doubled), so is an empty TEXT value
+     * binary  "DavisBase copy 1", short number of columns, then for each column its type code and
+     *         its name (short length, UTF-8 bytes). Then each row: int row id and for each column
+     *         its type code and value, a TEXT value as int length and UTF-8 bytes, any other value
+     *         as it is stored in a record (big-endian). An int -1 ends the rows.
+     */
+    static final byte[] binaryMagic = "DavisBase copy 1".getBytes(UTF_8);
+    static final int bufferSize = 64 * 1024;
+
+    RandomAccessFile _tblFile;
+    TableInfo _tableInfo;
+    boolean _isBinary;
+    FileChannel _channel;
+    ByteBuffer _buffer = ByteBuffer.allocate(bufferSize);
+
+    // where the values of the row being written are: their type codes and their offsets in the page
+    byte[] _types;
+    int[] _offsets;
+
+    TableExporter(RandomAccessFile tblFile, TableInfo tableInfo, boolean isBinary) {
+        _tblFile = tblFile;
+        _tableInfo = tableInfo;
+        _isBinary = isBinary;
+        _types = new byte[tableInfo._colData.size()];
+        _offsets = new int[tableInfo._colData.size()];
+    }
+
+    // Write the rows that match the conditions (see DavisBaseBinaryFile.selectRecords), returns how many
+    int export(String path, WhereCondition condition_1, WhereCondition condition_2, int whereConnect) throws IOException {
+        int count = 0;
+        _channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            if (_isBinary)
+                writeBinaryHeader();
+
+            // follow the leaf sibling chain from the first leaf of the rowid range to its last one (of
+            // the key range for a clustered table), the next leaf is read while this one is encoded
+            ClusteredKey clusteredKey = _tableInfo._clusteredKey;
+            long[] range = BPlusTree.getRowIdRange(condition_1, condition_2, whereConnect);
+            byte[][] keyRange = null;
+            int pageNo;
+            if (clusteredKey != null) {
+                keyRange = clusteredKey.getRange(condition_1, condition_2, whereConnect);
+                if (keyRange == null)
+                    pageNo = BPlusTree.getLeftMostLeaf(_tblFile, _tableInfo._rootPageNum);
+                else
+                    pageNo = ClusteredKey.compare(keyRange[0], keyRange[1]) > 0 ? -1 : ClusteredTable.findLeaf(_tblFile, clusteredKey, keyRange[0]);
+            } else
+                pageNo = range[0] > range[1] ? -1 : BPlusTree.findLeaf(_tblFile, _tableInfo._rootPageNum, (int) range[0]);
+            while (pageNo != -1) {
+                ByteBuffer page = BufferPool.pin(_tblFile, pageNo);
+                int nextPageNo = page.getInt(6);
+                if (clusteredKey != null ? keyRange != null && ClusteredTable.reaches(clusteredKey, page, keyRange[1])
+                        : range[1] < Integer.MAX_VALUE && page.getShort(2) > 0 && DavisBaseBinaryFile.getPageLastID(page) >= range[1])
+                    nextPageNo = -1;
+                try {
+                    if (nextPageNo != -1)
+                        BufferPool.prefetch(_tblFile, Collections.singletonList(nextPageNo));
+                    if (PaxLeaf.isPax(page))
+                        count += exportPaxLeaf(new PaxLeaf(page), condition_1, condition_2, whereConnect);
+                    else
+                        count += exportLeaf(page, condition_1, condition_2, whereConnect);
+                } finally {
+                    BufferPool.unpin(_tblFile, pageNo, false);
+                }
+                pageNo = nextPageNo;
+            }
+
+            if (_isBinary)
+                putInt(-1);
+            flush();
+        } finally {
+            _channel.close();
+        }
+        return count;
+    }
+
+    private int exportLeaf(ByteBuffer page, WhereCondition condition_1, WhereCondition condition_2, int whereConnect) throws IOException {
+        int count = 0;
+        int numCell = page.getShort(2);
+        for (int i = 0; i < numCell; i++) {
+            int cellStart = Page.getUnsignedShort(page, Page.cellPointerStart + i*2);
+            if (cellStart == 0)
+                continue;
+            int columnCount = Math.min(page.get(cellStart + 6), _types.length);
+            int valueStart = cellStart + 7 + page.get(cellStart + 6);
+            for (int column = 0; column < columnCount; column++) {
+                _types[column] = page.get(cellStart + 7 + column);
+                _offsets[column] = valueStart;
+                valueStart += Type.getTypeSize(_types[column]);
+            }
+            int rowId = page.getInt(cellStart + 2);
+            if (matches(page, rowId, condition_1, condition_2, whereConnect)) {
+                writeRow(page, rowId);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int exportPaxLeaf(PaxLeaf leaf, WhereCondition condition_1, WhereCondition condition_2, int whereConnect) throws IOException {
+        // the values of a column are one after the other in its minipage, find where each one starts
+        int columnCount = Math.min(leaf._columnCount, _types.length);
+        int[][] valueStarts = new int[columnCount][leaf._rowCount];
+        for (int column = 0; column < columnCount; column++) {
+            int valueStart = leaf._minipageStart[column] + leaf._rowCount;
+            for (int row = 0; row < leaf._rowCount; row++) {
+                valueStarts[column][row] = valueStart;
+                valueStart += Type.getTypeSize(leaf._page.get(leaf._minipageStart[column] + row));
+            }
+        }
+
+        int count = 0;
+        for (int row = 0; row < leaf._rowCount; row++) {
+            for (int column = 0; column < columnCount; column++) {
+                _types[column] = leaf._page.get(leaf._minipageStart[column] + row);
+                _offsets[column] = valueStarts[column][row];
+            }
+            if (matches(leaf._page, leaf.getRowId(row), condition_1, condition_2, whereConnect)) {
+                writeRow(leaf._page, leaf.getRowId(row));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private boolean matches(ByteBuffer page, int rowId, WhereCondition condition_1, WhereCondition condition_2, int whereConnect) throws IOException {
+        if (whereConnect == 0 || condition_2 == null)
+            return condition_1 == null || condition_1.checkCondition(getStrValue(page, rowId, condition_1._columnOrdinal));
+        if (whereConnect == 1)
+            return condition_1.checkCondition(getStrValue(page, rowId, condition_1._columnOrdinal))
+                    && condition_2.checkCondition(getStrValue(page, rowId, condition_2._columnOrdinal));
+        return condition_1.checkCondition(getStrValue(page, rowId, condition_1._columnOrdinal))
+                || condition_2.checkCondition(getStrValue(page, rowId, condition_2._columnOrdinal));
+    }
+
+    private String getStrValue(ByteBuffer page, int rowId, int column) throws IOException {
+        if (column == WhereCondition.rowIdOrdinal)
+            return Integer.toString(rowId);
+        return Field.toStrValue(Type.get(_types[column]), getValue(page, column));
+    }
+
+    // the bytes of a value, a long TEXT value is read from its overflow pages
+    private byte[] getValue(ByteBuffer page, int column) throws IOException {
+        if (_types[column] == Type.textOverflow)
+            return Page.readOverflow(_tblFile, page.getInt(_offsets[column] + 4), page.getInt(_offsets[column]));
+        byte[] value = new byte[Type.getTypeSize(_types[column])];
+        Page.readBytes(page, _offsets[column], value);
+        return value;
+    }
+
+    private void writeRow(ByteBuffer page, int rowId) throws IOException {
+        if (_isBinary) {
+            putInt(rowId);
+            for (int column = 0; column < _types.length; column++) {
+                Type type = Type.get(_types[column]);
+                put(type._value);
+                if (type == Type.TEXT) {
+                    byte[] value = getValue(page, column);
+                    putInt(value.length);
+                    put(value, 0, value.length);
+                } else
+                    putFromPage(page, _offsets[column], Type.getTypeSize(_types[column]));
+            }
+            return;
+        }
+
+        for (int column = 0; column < _types.length; column++) {
+            if (column > 0)
+                put((byte) ',');
+            Type type = Type.get(_types[column]);
+            if (type == Type.NULL)
+                continue;
+            if (type != Type.TEXT) {
+                byte[] text = Field.toStrValue(type, getValue(page, column)).getBytes(UTF_8);
+                put(text, 0, text.length);
+            } else if (_types[column] != Type.textOverflow && !needsQuotes(page, _offsets[column], Type.getTypeSize(_types[column])))
+                putFromPage(page, _offsets[column], Type.getTypeSize(_types[column]));
+            else
+                putQuoted(getValue(page, column));
+        }
+        put((byte) '\n');
+    }
+
+    private static boolean needsQuotes(ByteBuffer page, int start, int length) {
+        if (length == 0 || page.get(start) == ' ' || page.get(start + length - 1) == ' ')
+            return true;
+        for (int i = start; i < start + length; i++) {
+            byte b = page.get(i);
+            if (b == ',' || b == '"' || b == '\n' || b == '\r')
+                return true;
+        }
+        return false;
+    }
+
+    private void putQuoted(byte[] value) throws IOException {
+        put((byte) '"');
+        for (byte b : value) {
+            if (b == '"')
+                put(b);
+            put(b);
+        }
+        put((byte) '"');
+    }
+
+    private void put(byte b) throws IOException {
+        if (!_buffer.hasRemaining())
+            flush();
+        _buffer.put(b);
+    }
+
+    private void putInt(int value) throws IOException {
+        if (_buffer.remaining() < 4)
+            flush();
+        _buffer.putInt(value);
+    }
+
+    private void put(byte[] src, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!_buffer.hasRemaining())
+                flush();
+            int chunk = Math.min(length, _buffer.remaining());
+            _buffer.put(src, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    // copy the bytes of a value from the page, the page itself is not moved
+    private void putFromPage(ByteBuffer page, int start, int length) throws IOException {
+        if (_buffer.remaining() < length)
+            flush();
+        ByteBuffer value = page.duplicate();
+        value.limit(start + length).position(start);
+        _buffer.put(value);
+    }
+
+    private void writeBinaryHeader() throws IOException {
+        put(binaryMagic, 0, binaryMagic.length);
+        List<TableCol> columns = _tableInfo._colData;
+        _buffer.putShort((short) columns.size());
+        for (TableCol column : columns) {
+            byte[] name = column._columnName.getBytes(UTF_8);
+            put(column._type._value);
+            if (_buffer.remaining() < 2)
+                flush();
+            _buffer.putShort((short) name.length);
+            put(name, 0, name.length);
+        }
+    }
+
+    private void flush() throws IOException {
+        _buffer.flip();
+        while (_buffer.hasRemaining())
+            _channel.write(_buffer);
+        _buffer.clear();
+    }
+}
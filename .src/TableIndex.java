@@ -0,0 +1,693 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Author: Bo-Yu Huang
+ * Date: 8/18/20
+ */
+
+// A cell of an index page: a column value (null for NULL) and a row id, the key of the cell.
+// In an interior page it also has the child whose keys are not above it, in a leaf of an index of
+// a clustered table the clustered key of the row.
+class IndexCell{
+    byte _typeCode;
+    byte[] _value;
+    String _strValue;
+    int _rowId;
+    int _leftChild;
+    byte[] _clusteredKey;
+
+    IndexCell(byte typeCode, byte[] value, int rowId){
+        _typeCode = typeCode;
+        _value = value;
+        _strValue = typeCode == Type.NULL._value ? null : Field.toStrValue(Type.get(typeCode), value);
+        _rowId = rowId;
+    }
+
+    int getSize(boolean isInterior){
+        return (isInterior ? 4 : (_clusteredKey == null ? 0 : _clusteredKey.length)) + 1 + _value.length + 4;
+    }
+}
+
+public class TableIndex {
+    /*
+     * CREATE INDEX ON <table> (<column>) keeps the values of a column in a B+ tree of their own, in
+     * data/user_data/<table>.<column>.ndx. The file header and the page header are those of a table
+     * file, the page types are the index ones of the file format (0x02 interior, 0x0A leaf). The key
+     * of a cell is the value and then the row id, so the rows sharing a value are in row id order:
+     *
+     *   leaf cell      1-byte type code and the value as a record stores them, 4-byte row id
+     *   interior cell  4-byte left child, then the largest key under it, written the same way
+     *
+     * A leaf cell of an index of a clustered table ends with the clustered key of its row (see
+     * ClusteredKey), the rows it finds are looked up by their key; the file header of the index
+     * has the clustered key of the table.
+     *
+     * 0x06 is the right-most child of an interior page and the right sibling of a leaf, as in a table
+     * tree. A TEXT value is lowercased, like a WHERE condition compares it, and cut to maxKeyText
+     * bytes: a cut key only narrows the rows down, each row found is still checked against the
+     * condition. NULL, and a 'null' text, comes before every value as in WhereCondition.compare.
+     *
+     * The pages go through the buffer pool and the log like table pages. A change decodes the cells
+     * of the page and writes them all back. Pages are never merged; a split goes up the path taken
+     * from the root, so the parent pointer at 0x0A is not kept.
+     *
+     * CREATE INDEX ... USING HASH keeps the same cells in a hash file instead, <table>.<column>.hdx
+     * (see HashIndex), only used for = conditions.
+     */
+    static final int maxKeyText = 48;
+
+    String _tableName;
+    String _columnName;
+    int _columnOrdinal;
+    Type _type;
+    boolean _isHash;
+    RandomAccessFile _file;
+    // the length of the clustered key at the end of a leaf cell, 0 for a table in row id order
+    int _keyLength;
+
+    TableIndex(String tableName, String columnName, int columnOrdinal, Type type) {
+        _tableName = tableName;
+        _columnName = columnName;
+        _columnOrdinal = columnOrdinal;
+        _type = type;
+    }
+
+    // The index of the column, its file opened
+    static TableIndex open(String tableName, String columnName, int columnOrdinal, Type type) throws IOException {
+        TableIndex index = new TableIndex(tableName, columnName, columnOrdinal, type);
+        index._isHash = isHash(tableName, columnName);
+        index._file = BufferPool.open(index._isHash ? getHDXFilePath(tableName, columnName)
+                : getNDXFilePath(tableName, columnName), "rw");
+        ClusteredKey clusteredKey = BufferPool.getHeader(index._file)._clusteredKey;
+        index._keyLength = clusteredKey == null ? 0 : clusteredKey._length;
+        return index;
+    }
+
+    void close() throws IOException {
+        BufferPool.close(_file);
+    }
+
+    static String getNDXFilePath(String tableName, String columnName) {
+        return "data/user_data/" + tableName + "." + columnName + ".ndx";
+    }
+
+    static boolean isCatalog(String tableName) {
+        return tableName.equals(DavisBaseBinaryFile.tablesTable) || tableName.equals(DavisBaseBinaryFile.columnsTable);
+    }
+
+    static String getHDXFilePath(String tableName, String columnName) {
+        return "data/user_data/" + tableName + "." + columnName + ".hdx";
+    }
+
+    // whether the column has an index, of either kind
+    static boolean exists(String tableName, String columnName) {
+        return !isCatalog(tableName) && (new File(getNDXFilePath(tableName, columnName)).isFile() || isHash(tableName, columnName));
+    }
+
+    // whether the index of the column is a hash one (see HashIndex), for = conditions only
+    static boolean isHash(String tableName, String columnName) {
+        return !isCatalog(tableName) && new File(getHDXFilePath(tableName, columnName)).isFile();
+    }
+
+    // The index files of a table, whatever their column
+    static File[] getNDXFiles(String tableName) {
+        File[] files = new File("data/user_data").listFiles((dir, name) -> name.startsWith(tableName + ".")
+                && (name.endsWith(".ndx") || name.endsWith(".hdx")));
+        return files == null ? new File[0] : files;
+    }
+
+    // The indexes of the table, opened
+    static List<TableIndex> open(TableInfo tableInfo) throws IOException {
+        List<TableIndex> indexes = new ArrayList<>();
+        for (int i = 0; i < tableInfo._colData.size(); i++) {
+            TableCol column = tableInfo._colData.get(i);
+            if (exists(tableInfo._tableName, column._columnName))
+                indexes.add(open(tableInfo._tableName, column._columnName, i, column._type));
+        }
+        return indexes;
+    }
+
+    // A row was added to the table (Page.addTableRow)
+    static void insertRow(TableInfo tableInfo, List<Field> fields, int rowId) throws IOException {
+        for (TableIndex index : open(tableInfo)) {
+            IndexCell cell = index.toCell(fields.get(index._columnOrdinal), rowId);
+            if (tableInfo._clusteredKey != null)
+                cell._clusteredKey = tableInfo._clusteredKey.encode(fields);
+            index.insert(cell);
+            index.close();
+        }
+    }
+
+    // A row is about to be deleted from the table (Page.DeleteTBLRecord)
+    static void deleteRow(TableInfo tableInfo, TableRow record) throws IOException {
+        for (TableIndex index : open(tableInfo)) {
+            index.delete(index.toCell(record.getField(index._columnOrdinal), record._rowId));
+            index.close();
+        }
+    }
+
+    // A value of a row was overwritten in place (DavisBaseBinaryFile.updateRecords)
+    static void updateValue(TableInfo tableInfo, int columnOrdinal, Field oldValue, Field newValue, TableRow record) throws IOException {
+        TableCol column = tableInfo._colData.get(columnOrdinal);
+        if (!exists(tableInfo._tableName, column._columnName))
+            return;
+        TableIndex index = open(tableInfo._tableName, column._columnName, columnOrdinal, column._type);
+        index.delete(index.toCell(oldValue, record._rowId));
+        IndexCell cell = index.toCell(newValue, record._rowId);
+        // the row stays where it is, a value of the clustered key is never written in place
+        if (tableInfo._clusteredKey != null)
+            cell._clusteredKey = tableInfo._clusteredKey.encode(record);
+        index.insert(cell);
+        index.close();
+    }
+
+    /*
+     * The row ids the WHERE conditions can match, in order, found through the indexes of the table;
+     * null when no index helps. A condition that every matching row must meet is enough, the
+     * first = one preferred; an OR needs an index on both sides. The rows are checked against the
+     * conditions once they are read, so more row ids than matches may come back.
+     */
+    static List<Integer> findRowIds(String tableName, WhereCondition condition_1, WhereCondition condition_2, int whereConnect) throws IOException {
+        List<IndexCell> cells = findCells(tableName, condition_1, condition_2, whereConnect);
+        if (cells == null)
+            return null;
+        List<Integer> rowIds = new ArrayList<>();
+        for (IndexCell cell : cells)
+            rowIds.add(cell._rowId);
+        Collections.sort(rowIds);
+        return rowIds;
+    }
+
+    // The same for a clustered table: the clustered keys of the rows, in key order
+    static List<byte[]> findKeys(String tableName, WhereCondition condition_1, WhereCondition condition_2, int whereConnect) throws IOException {
+        List<IndexCell> cells = findCells(tableName, condition_1, condition_2, whereConnect);
+        if (cells == null)
+            return null;
+        List<byte[]> keys = new ArrayList<>();
+        for (IndexCell cell : cells)
+            keys.add(cell._clusteredKey);
+        keys.sort(ClusteredKey::compare);
+        return keys;
+    }
+
+    private static List<IndexCell> findCells(String tableName, WhereCondition condition_1, WhereCondition condition_2, int whereConnect) throws IOException {
+        if (whereConnect == 2 && condition_2 != null) {
+            List<IndexCell> cells_1 = findCells(tableName, condition_1);
+            List<IndexCell> cells_2 = cells_1 == null ? null : findCells(tableName, condition_2);
+            if (cells_2 == null)
+                return null;
+            cells_1.addAll(cells_2);
+            return cells_1;
+        }
+
+        List<WhereCondition> conditions = new ArrayList<>();
+        if (condition_1 != null)
+            conditions.add(condition_1);
+        if (condition_2 != null && whereConnect == 1)
+            conditions.add(condition_2);
+        for (WhereCondition condition : conditions)
+            if (condition.getOperation() == OperatorType.EQUAL && isUsable(tableName, condition))
+                return findCells(tableName, condition);
+        for (WhereCondition condition : conditions)
+            if (isUsable(tableName, condition))
+                return findCells(tableName, condition);
+        return null;
+    }
+
+    private static boolean isUsable(String tableName, WhereCondition condition) {
+        if (condition == null || condition._columnOrdinal < 0)
+            return false;
+        OperatorType operation = condition.getOperation();
+        if (operation == OperatorType.NOTEQUAL || operation == OperatorType.INVALID)
+            return false;
+        if (operation != OperatorType.EQUAL && isHash(tableName, condition._columnName))
+            return false;
+        return exists(tableName, condition._columnName);
+    }
+
+    private static List<IndexCell> findCells(String tableName, WhereCondition condition) throws IOException {
+        if (!isUsable(tableName, condition))
+            return null;
+        TableIndex index = open(tableName, condition._columnName, condition._columnOrdinal, condition._type);
+        try {
+            // a condition on NULL only matches the rows whose value is NULL, the first keys of the index
+            IndexCell value = new IndexCell(Type.NULL._value, new byte[0], 0);
+            try {
+                if (!condition._comparedValue.equalsIgnoreCase("null"))
+                    value = index.toCell(new Field(condition._type, condition._comparedValue), 0);
+            } catch (Exception e) {
+                return null;    // not a value of the column, let the scan report it
+            }
+            if (index._isHash)
+                return new HashIndex(index).find(value);
+            switch (condition.getOperation()) {
+                case EQUAL:
+                    return index.find(value, value);
+                case GREATER:
+                case GREATEROREQUAL:
+                    return index.find(value, null);
+                default:
+                    return index.find(null, value);
+            }
+        } finally {
+            index.close();
+        }
+    }
+
+    // The key of a value of the column
+    IndexCell toCell(Field field, int rowId) throws IOException {
+        if (field._type == Type.NULL || field._strValue == null || field._strValue.equalsIgnoreCase("null"))
+            return new IndexCell(Type.NULL._value, new byte[0], rowId);
+        if (_type == Type.TEXT) {
+            String text = field._strValue.toLowerCase();
+            byte[] value = text.getBytes(UTF_8);
+            // cut on a character, so the key is still a prefix of the value
+            int length = text.length();
+            while (value.length > maxKeyText)
+                value = text.substring(0, --length).getBytes(UTF_8);
+            return new IndexCell((byte)(Type.TEXT._value + value.length), value, rowId);
+        }
+        return new IndexCell(field._type._value, field._byteAtt, rowId);
+    }
+
+    // Compare two values (null is NULL) the way a WHERE condition on the column does
+    int compareValues(String value1, String value2) {
+        if (value1 == null || value2 == null)
+            return value1 == null ? (value2 == null ? 0 : -1) : 1;
+        switch (_type) {
+            case TINYINT:
+            case SMALLINT:
+            case INT:
+            case LONG:
+            case YEAR:
+                return Long.compare(Long.parseLong(value1), Long.parseLong(value2));
+            case FLOAT:
+            case DOUBLE:
+                double difference = Double.parseDouble(value1) - Double.parseDouble(value2);
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            default:
+                // TEXT, and dates and times whose printed form sorts like their value
+                return value1.compareTo(value2);
+        }
+    }
+
+    int compareKeys(IndexCell cell1, IndexCell cell2) {
+        int result = compareValues(cell1._strValue, cell2._strValue);
+        return result != 0 ? result : Integer.compare(cell1._rowId, cell2._rowId);
+    }
+
+    // the position of the first cell whose key is not below the key
+    private int lowerBound(List<IndexCell> cells, IndexCell key) {
+        int low = 0;
+        int high = cells.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareKeys(cells.get(middle), key) < 0)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    // The leaf the key belongs in, the interior pages above it are added to path from the root down
+    private int findLeaf(IndexCell key, List<Integer> path) throws IOException {
+        int pageNo = BufferPool.getHeader(_file)._rootPageNum;
+        while (true) {
+            ByteBuffer page = BufferPool.pin(_file, pageNo);
+            boolean isInterior = page.get(0) == PageType.idxINTERIOR._value;
+            int childPageNo = -1;
+            if (isInterior) {
+                List<IndexCell> cells = readCells(page, _keyLength);
+                int position = lowerBound(cells, key);
+                childPageNo = position < cells.size() ? cells.get(position)._leftChild : page.getInt(6);
+            }
+            BufferPool.unpin(_file, pageNo, false);
+            if (!isInterior)
+                return pageNo;
+            path.add(pageNo);
+            pageNo = childPageNo;
+        }
+    }
+
+    void insert(IndexCell key) throws IOException {
+        if (_isHash) {
+            new HashIndex(this).insert(key);
+            return;
+        }
+        List<Integer> path = new ArrayList<>();
+        int pageNo = findLeaf(key, path);
+        ByteBuffer page = BufferPool.pin(_file, pageNo);
+        List<IndexCell> cells = readCells(page, _keyLength);
+        int position = lowerBound(cells, key);
+        if (position < cells.size() && compareKeys(cells.get(position), key) == 0) {
+            BufferPool.unpin(_file, pageNo, false);
+            return;
+        }
+        cells.add(position, key);
+        if (getSize(cells, false) <= page.capacity()) {
+            writeCells(page, cells);
+            BufferPool.unpin(_file, pageNo, true);
+            return;
+        }
+
+        // split the leaf, the upper half goes to a new right sibling
+        int middle = getSplitPoint(cells, false);
+        int newPageNo = Page.addNewPage(_file, PageType.idxLEAF, page.getInt(6), -1);
+        ByteBuffer newPage = BufferPool.pin(_file, newPageNo);
+        writeCells(newPage, cells.subList(middle, cells.size()));
+        BufferPool.unpin(_file, newPageNo, true);
+        writeCells(page, cells.subList(0, middle));
+        page.putInt(6, newPageNo);
+        BufferPool.unpin(_file, pageNo, true);
+        addToParent(path, pageNo, cells.get(middle - 1), newPageNo);
+    }
+
+    /*
+     * The page leftPageNo was split, its keys now end at separator and the ones above went to
+     * newPageNo: the parent cell that led to the page leads to the new one and a cell for the page
+     * comes before it. A full parent splits in turn and the middle key goes up.
+     */
+    private void addToParent(List<Integer> path, int leftPageNo, IndexCell separator, int newPageNo) throws IOException {
+        IndexCell cell = new IndexCell(separator._typeCode, separator._value, separator._rowId);
+        cell._leftChild = leftPageNo;
+        if (path.isEmpty()) {
+            int rootPageNo = Page.addNewPage(_file, PageType.idxINTERIOR, newPageNo, -1);
+            ByteBuffer root = BufferPool.pin(_file, rootPageNo);
+            writeCells(root, Collections.singletonList(cell));
+            BufferPool.unpin(_file, rootPageNo, true);
+            BufferPool.getHeader(_file)._rootPageNum = rootPageNo;
+            BufferPool.writeHeader(_file);
+            return;
+        }
+
+        int parentPageNo = path.remove(path.size() - 1);
+        ByteBuffer page = BufferPool.pin(_file, parentPageNo);
+        List<IndexCell> cells = readCells(page, _keyLength);
+        int position = lowerBound(cells, cell);
+        if (position < cells.size())
+            cells.get(position)._leftChild = newPageNo;
+        else
+            page.putInt(6, newPageNo);
+        cells.add(position, cell);
+        if (getSize(cells, true) <= page.capacity()) {
+            writeCells(page, cells);
+            BufferPool.unpin(_file, parentPageNo, true);
+            return;
+        }
+
+        int middle = getSplitPoint(cells, true);
+        IndexCell up = cells.get(middle);
+        int newParentPageNo = Page.addNewPage(_file, PageType.idxINTERIOR, page.getInt(6), -1);
+        ByteBuffer newPage = BufferPool.pin(_file, newParentPageNo);
+        writeCells(newPage, cells.subList(middle + 1, cells.size()));
+        BufferPool.unpin(_file, newParentPageNo, true);
+        writeCells(page, cells.subList(0, middle));
+        page.putInt(6, up._leftChild);
+        BufferPool.unpin(_file, parentPageNo, true);
+        addToParent(path, parentPageNo, up, newParentPageNo);
+    }
+
+    void delete(IndexCell key) throws IOException {
+        if (_isHash) {
+            new HashIndex(this).delete(key);
+            return;
+        }
+        int pageNo = findLeaf(key, new ArrayList<>());
+        ByteBuffer page = BufferPool.pin(_file, pageNo);
+        List<IndexCell> cells = readCells(page, _keyLength);
+        int position = lowerBound(cells, key);
+        boolean found = position < cells.size() && compareKeys(cells.get(position), key) == 0;
+        if (found) {
+            cells.remove(position);
+            writeCells(page, cells);
+        }
+        BufferPool.unpin(_file, pageNo, found);
+    }
+
+    // The cells of the values from low to high, both included, in key order; a null bound is no bound
+    List<IndexCell> find(IndexCell low, IndexCell high) throws IOException {
+        // NULL comes first, so the smallest key is NULL with the smallest row id
+        IndexCell start = new IndexCell(Type.NULL._value, new byte[0], Integer.MIN_VALUE);
+        if (low != null)
+            start = new IndexCell(low._typeCode, low._value, Integer.MIN_VALUE);
+        List<IndexCell> found = new ArrayList<>();
+        int pageNo = findLeaf(start, new ArrayList<>());
+        while (pageNo != -1) {
+            ByteBuffer page = BufferPool.pin(_file, pageNo);
+            List<IndexCell> cells = readCells(page, _keyLength);
+            int nextPageNo = page.getInt(6);
+            BufferPool.unpin(_file, pageNo, false);
+            for (int i = lowerBound(cells, start); i < cells.size(); i++) {
+                if (high != null && compareValues(cells.get(i)._strValue, high._strValue) > 0)
+                    return found;
+                found.add(cells.get(i));
+            }
+            pageNo = nextPageNo;
+        }
+        return found;
+    }
+
+    static List<IndexCell> readCells(ByteBuffer page, int keyLength) {
+        boolean isInterior = page.get(0) == PageType.idxINTERIOR._value;
+        List<IndexCell> cells = new ArrayList<>();
+        int numCell = page.getShort(2);
+        for (int i = 0; i < numCell; i++) {
+            int cellStart = Page.getUnsignedShort(page, Page.cellPointerStart + i*2);
+            int leftChild = isInterior ? page.getInt(cellStart) : 0;
+            if (isInterior)
+                cellStart += 4;
+            byte typeCode = page.get(cellStart);
+            byte[] value = new byte[Type.getTypeSize(typeCode)];
+            Page.readBytes(page, cellStart + 1, value);
+            IndexCell cell = new IndexCell(typeCode, value, page.getInt(cellStart + 1 + value.length));
+            cell._leftChild = leftChild;
+            if (!isInterior && keyLength > 0) {
+                cell._clusteredKey = new byte[keyLength];
+                Page.readBytes(page, cellStart + 1 + value.length + 4, cell._clusteredKey);
+            }
+            cells.add(cell);
+        }
+        return cells;
+    }
+
+    // Write the cells into the page after its header, from the end of the page down
+    static void writeCells(ByteBuffer page, List<IndexCell> cells) {
+        boolean isInterior = page.get(0) == PageType.idxINTERIOR._value;
+        Page.writeBytes(page, Page.cellPointerStart, new byte[page.capacity() - Page.cellPointerStart]);
+        int contentStart = page.capacity();
+        for (int i = 0; i < cells.size(); i++) {
+            IndexCell cell = cells.get(i);
+            contentStart -= cell.getSize(isInterior);
+            int position = contentStart;
+            if (isInterior) {
+                page.putInt(position, cell._leftChild);
+                position += 4;
+            }
+            page.put(position, cell._typeCode);
+            Page.writeBytes(page, position + 1, cell._value);
+            page.putInt(position + 1 + cell._value.length, cell._rowId);
+            if (!isInterior && cell._clusteredKey != null)
+                Page.writeBytes(page, position + 1 + cell._value.length + 4, cell._clusteredKey);
+            page.putShort(Page.cellPointerStart + i*2, (short) contentStart);
+        }
+        page.putShort(2, (short) cells.size());
+        page.putShort(4, (short) contentStart);
+        page.putShort(Page.freeBlockHead, (short) 0);
+    }
+
+    // bytes the cells take in a page, the page header included
+    static int getSize(List<IndexCell> cells, boolean isInterior) {
+        int size = Page.cellPointerStart;
+        for (IndexCell cell : cells)
+            size += 2 + cell.getSize(isInterior);
+        return size;
+    }
+
+    // where to split cells that overflow a page: the first position past half of their bytes
+    private static int getSplitPoint(List<IndexCell> cells, boolean isInterior) {
+        int half = (getSize(cells, isInterior) - Page.cellPointerStart) / 2;
+        int size = 0;
+        for (int i = 0; i < cells.size() - 1; i++) {
+            size += 2 + cells.get(i).getSize(isInterior);
+            if (size >= half)
+                return Math.max(i, 1);
+        }
+        return cells.size() - 1;
+    }
+
+    /*
+     * Build the index of a column from the rows of the table, returns the number of keys. Like
+     * LOAD DATA, the keys are sorted in memory and packed into leaves from left to right, then
+     * each level of interior pages is built above the one below (a hash index lays out its
+     * buckets instead). The file is written next to the index outside the buffer pool and the log,
+     * with a LSN above every record in the log, and replaces the index once it is complete.
+     */
+    static int build(TableInfo tableInfo, int columnOrdinal) throws IOException {
+        return build(tableInfo, columnOrdinal, isHash(tableInfo._tableName, tableInfo._colData.get(columnOrdinal)._columnName));
+    }
+
+    static int build(TableInfo tableInfo, int columnOrdinal, boolean isHash) throws IOException {
+        TableCol column = tableInfo._colData.get(columnOrdinal);
+        String path = isHash ? getHDXFilePath(tableInfo._tableName, column._columnName)
+                : getNDXFilePath(tableInfo._tableName, column._columnName);
+        String tablePath = DavisBasePrompt.getTBLFilePath(tableInfo._tableName);
+
+        RandomAccessFile tableFile = BufferPool.open(tablePath, "r");
+        int pageSize = BufferPool.getPageSize(tableFile);
+        // only used to make and sort the keys, the file is written below
+        TableIndex index = new TableIndex(tableInfo._tableName, column._columnName, columnOrdinal, column._type);
+        List<IndexCell> keys = new ArrayList<>();
+        try {
+            BPlusTree bPlusTree = new BPlusTree(DavisBaseBinaryFile.getRootPageNo(tableFile), tableInfo._tableName, tableFile);
+            for (int pageNo : bPlusTree.scanLeaves())
+                for (TableRow record : new Page(pageNo, tableFile).getPageRows()) {
+                    IndexCell key = index.toCell(record.getField(columnOrdinal), record._rowId);
+                    if (tableInfo._clusteredKey != null)
+                        key._clusteredKey = tableInfo._clusteredKey.encode(record);
+                    keys.add(key);
+                }
+        } finally {
+            BufferPool.close(tableFile);
+        }
+        keys.sort(index::compareKeys);
+
+        String buildPath = path + ".build";
+        new File(buildPath).delete();
+        RandomAccessFile file = new RandomAccessFile(buildPath, "rw");
+        try {
+            FileHeader header = FileHeader.create(file, pageSize, FileHeader.noCompression, FileHeader.rowLayout);
+            header._clusteredKey = tableInfo._clusteredKey;
+            long lsn = WriteAheadLog.reserveLSN();
+
+            if (isHash)
+                HashIndex.write(file, header, keys, column._type, lsn);
+            else
+                writeTree(file, header, keys, lsn);
+            header._lsn = lsn;
+            header._checkpointLSN = lsn;
+            header.write(file);
+            file.getChannel().force(false);
+        } catch (IOException e) {
+            file.close();
+            new File(buildPath).delete();
+            throw e;
+        }
+        file.close();
+
+        // the index is replaced outside the log, like a table file by VACUUM
+        WriteAheadLog.commit();
+        BufferPool.discard(path);
+        Files.move(Paths.get(buildPath), Paths.get(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return keys.size();
+    }
+
+    // Lay out the B+ tree of the sorted keys into a file being built, from its page 1
+    private static void writeTree(RandomAccessFile file, FileHeader header, List<IndexCell> keys, long lsn) throws IOException {
+        // the leaves, each one is followed by its right sibling
+        List<IndexCell> level = new ArrayList<>();
+        List<IndexCell> pageCells = new ArrayList<>();
+        for (int i = 0; i <= keys.size(); i++) {
+            if (i < keys.size()) {
+                pageCells.add(keys.get(i));
+                if (getSize(pageCells, false) <= header._pageSize)
+                    continue;
+                pageCells.remove(pageCells.size() - 1);
+            } else if (pageCells.isEmpty() && !level.isEmpty())
+                break;
+            boolean isLast = i == keys.size();
+            ByteBuffer page = newPage(PageType.idxLEAF, header._pageSize, lsn, isLast ? -1 : header._pageCount + 1);
+            writeCells(page, pageCells);
+            level.add(getParentCell(pageCells, header._pageCount));
+            writePage(file, header._pageCount++, page);
+            pageCells = new ArrayList<>();
+            if (!isLast)
+                pageCells.add(keys.get(i));
+        }
+
+        // the interior levels, the last child of a page is its right-most child
+        while (level.size() > 1) {
+            List<IndexCell> parentLevel = new ArrayList<>();
+            int first = 0;
+            while (first < level.size()) {
+                int end = first + 1;
+                while (end < level.size() && getSize(level.subList(first, end + 1), true) <= header._pageSize)
+                    end++;
+                // a page holds at least a cell and its right-most child
+                if (end == first + 1 && end < level.size())
+                    end++;
+                ByteBuffer page = newPage(PageType.idxINTERIOR, header._pageSize, lsn, level.get(end - 1)._leftChild);
+                writeCells(page, level.subList(first, end - 1));
+                IndexCell last = level.get(end - 1);
+                IndexCell parentCell = new IndexCell(last._typeCode, last._value, last._rowId);
+                parentCell._leftChild = header._pageCount;
+                parentLevel.add(parentCell);
+                writePage(file, header._pageCount++, page);
+                first = end;
+            }
+            level = parentLevel;
+        }
+
+        header._rootPageNum = level.get(0)._leftChild;
+    }
+
+    // the cell a page gets in its parent: its largest key, the smallest one for an empty page
+    private static IndexCell getParentCell(List<IndexCell> cells, int pageNum) {
+        IndexCell cell = cells.isEmpty() ? new IndexCell(Type.NULL._value, new byte[0], Integer.MIN_VALUE)
+                : cells.get(cells.size() - 1);
+        IndexCell parentCell = new IndexCell(cell._typeCode, cell._value, cell._rowId);
+        parentCell._leftChild = pageNum;
+        return parentCell;
+    }
+
+    // Rebuild every index of the table, after its file was rebuilt (LOAD DATA)
+    static void rebuildAll(TableInfo tableInfo) throws IOException {
+        for (int i = 0; i < tableInfo._colData.size(); i++) {
+            TableCol column = tableInfo._colData.get(i);
+            if (exists(tableInfo._tableName, column._columnName)
+                    || (column._isUnique && !isCatalog(tableInfo._tableName) && !tableInfo.isClusteredKey(i)))
+                build(tableInfo, i);
+        }
+    }
+
+    /*
+     * A UNIQUE or PRIMARY KEY column has an index, so the check of an insert (TableInfo.validateInsert)
+     * is a lookup of the value instead of a scan of the table. CREATE TABLE builds them; a table
+     * created before gets them with its next insert. The clustered key needs none, the table tree
+     * is ordered by it.
+     */
+    static void createUniqueIndexes(TableInfo tableInfo) throws IOException {
+        if (isCatalog(tableInfo._tableName))
+            return;
+        for (int i = 0; i < tableInfo._colData.size(); i++) {
+            TableCol column = tableInfo._colData.get(i);
+            if (column._isUnique && !tableInfo.isClusteredKey(i) && !exists(tableInfo._tableName, column._columnName))
+                build(tableInfo, i);
+        }
+    }
+
+    static ByteBuffer newPage(PageType pageType, int pageSize, long lsn, int rightPage) {
+        ByteBuffer page = ByteBuffer.allocate(pageSize);
+        page.put(0, pageType._value);
+        page.putInt(6, rightPage);
+        page.putInt(0x0A, -1);
+        page.putLong(Page.pageLSN, lsn);
+        return page;
+    }
+
+    static void writePage(RandomAccessFile file, int pageNum, ByteBuffer page) throws IOException {
+        file.seek((long) pageNum * page.capacity());
+        file.write(page.array());
+    }
+}
@@ -1,8 +1,11 @@
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.List;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.nio.ByteBuffer;
 
 /**
  * Author: Bo-Yu Huang
@@ -14,10 +17,14 @@ class TableRow{
     public Byte[] _colDatatypes;
     public Byte[] _recordBody;
     public List<Field> _fields;
-    public short _recordOffset;
+    public int _recordOffset;
     public short _pageHeaderIndex;
+    public RandomAccessFile _tblFile;
+    // the PAX leaf the row was read from, its fields are only decoded when they are used
+    public PaxLeaf _paxLeaf;
     
-    TableRow(short pageHeaderIndex, short recordOffset, byte[] colDatatypes, byte[] recordBody, int rowId) throws Exception{
+    TableRow(RandomAccessFile tblFile, short pageHeaderIndex, int recordOffset, byte[] colDatatypes, byte[] recordBody, int rowId) throws Exception{
+        _tblFile = tblFile;
         _pageHeaderIndex = pageHeaderIndex;
         _recordOffset = recordOffset;
         _colDatatypes = LoadByte.byteToBytes(colDatatypes);
@@ -25,16 +32,94 @@ class TableRow{
         _rowId = rowId;
         setFields();
     }
+
+    TableRow(RandomAccessFile tblFile, short pageHeaderIndex, PaxLeaf paxLeaf, int rowId){
+        _tblFile = tblFile;
+        _pageHeaderIndex = pageHeaderIndex;
+        _paxLeaf = paxLeaf;
+        _rowId = rowId;
+        _fields = new ArrayList<>(Collections.nCopies(paxLeaf._columnCount, (Field) null));
+    }
     
     private void setFields() throws Exception {
         _fields = new ArrayList<>();
         int pointer = 0;
         for(Byte colDataType : _colDatatypes) {
              byte[] byteValue = LoadByte.Bytestobytes(Arrays.copyOfRange(_recordBody,pointer, pointer + Type.getTypeSize(colDataType)));
-             _fields.add(new Field(Type.get(colDataType), byteValue));
+             _fields.add(toField(colDataType, byteValue));
                     pointer =  pointer + Type.getTypeSize(colDataType);
         }
     }
+
+    static Field toField(byte colDataType, byte[] byteValue) throws Exception {
+        if (colDataType == Type.textOverflow) {
+            // only the prefix is in the record, the value is read when the column is used
+            Field field = new Field(Type.TEXT, Arrays.copyOfRange(byteValue, 8, byteValue.length));
+            field._overflowLength = ByteBuffer.wrap(byteValue).getInt(0);
+            field._overflowPage = ByteBuffer.wrap(byteValue).getInt(4);
+            field._strValue = null;
+            return field;
+        }
+        return new Field(Type.get(colDataType), byteValue);
+    }
+
+    // The field of the i-th column, a long TEXT value is read from its overflow pages on first use
+    public Field getField(int i) throws IOException {
+        if (_fields.get(i) == null) {
+            try {
+                _fields.set(i, _paxLeaf.getField(i, _pageHeaderIndex));
+            } catch (Exception e) {
+                throw new IOException("unable to decode column " + i + " of row " + _rowId, e);
+            }
+        }
+        Field field = _fields.get(i);
+        if (field._overflowPage != -1 && field._strValue == null) {
+            try {
+                Field value = new Field(Type.TEXT, Page.readOverflow(_tblFile, field._overflowPage, field._overflowLength));
+                field._byteAtt = value._byteAtt;
+                field._ByteAtt = value._ByteAtt;
+                field._strValue = value._strValue;
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("unable to read the overflow pages of row " + _rowId, e);
+            }
+        }
+        return field;
+    }
+
+    // The value a condition compares, WhereCondition.rowIdOrdinal is the row id
+    public String getStrValue(int ordinal) throws IOException {
+        if (ordinal == WhereCondition.rowIdOrdinal)
+            return Integer.toString(_rowId);
+        return getField(ordinal)._strValue;
+    }
+
+    // Every field with its whole value, before the row is written somewhere else
+    public List<Field> getFields() throws IOException {
+        for (int i = 0; i < _fields.size(); i++)
+            getField(i);
+        return _fields;
+    }
+
+    // The column types and the record body as a row-format cell holds them
+    public Byte[] getColDatatypes() {
+        if (_colDatatypes == null)
+            loadRecord();
+        return _colDatatypes;
+    }
+
+    public Byte[] getRecordBody() {
+        if (_recordBody == null)
+            loadRecord();
+        return _recordBody;
+    }
+
+    private void loadRecord() {
+        PaxRow row = _paxLeaf.getRow(_pageHeaderIndex);
+        _colDatatypes = LoadByte.byteToBytes(row._colDatatypes);
+        _recordBody = LoadByte.byteToBytes(row._recordBody);
+    }
 }
 
 public class TableInfo{
@@ -47,11 +132,14 @@ public class TableInfo{
     public int _rootPageNum;
     public int _last_id;
     public int _rowCount;
+    // the primary key of a table created with PRIMARY KEY (<columns>) CLUSTERED, null when the
+    // rows are kept in the order they came in (see ClusteredTable)
+    public ClusteredKey _clusteredKey;
 
     TableInfo(String tableName){
         _tableName = tableName;
         try{
-            RandomAccessFile TablesCatalog = new RandomAccessFile(DavisBasePrompt.getTBLFilePath(DavisBaseBinaryFile.tablesTable), "r");
+            RandomAccessFile TablesCatalog = BufferPool.open(DavisBasePrompt.getTBLFilePath(DavisBaseBinaryFile.tablesTable), "r");
             BPlusTree bplusTree = new BPlusTree(DavisBaseBinaryFile.getRootPageNo(TablesCatalog), tableName, TablesCatalog);
             //scan through all pages in tables-catalog
             for (Integer pageNo : bplusTree.getAllLeaves()) {
@@ -59,10 +147,10 @@ public class TableInfo{
                 //scan through all the records in each page
                 for (TableRow record : page.getPageRows()) {
                     //if the record with table is found, get the root page No and record count; break the loop
-                    if ((record._fields.get(0)._strValue).equals(tableName)) {
-                        _rootPageNum = Integer.parseInt(record._fields.get(1)._strValue);
-                        _last_id = Integer.parseInt(record._fields.get(2)._strValue);
-                        _rowCount = Integer.parseInt(record._fields.get(3)._strValue);
+                    if ((record.getField(0)._strValue).equals(tableName)) {
+                        _rootPageNum = Integer.parseInt(record.getField(1)._strValue);
+                        _last_id = Integer.parseInt(record.getField(2)._strValue);
+                        _rowCount = Integer.parseInt(record.getField(3)._strValue);
                         _tableExist = true;
                         break;
                     }
@@ -71,11 +159,11 @@ public class TableInfo{
                     break;
             }
 
-            TablesCatalog.close();
+            BufferPool.close(TablesCatalog);
             if(_tableExist){
                 // load column data
                 try {
-                    RandomAccessFile columnsCatalog = new RandomAccessFile(DavisBasePrompt.getTBLFilePath(DavisBaseBinaryFile.columnsTable), "r");
+                    RandomAccessFile columnsCatalog = BufferPool.open(DavisBasePrompt.getTBLFilePath(DavisBaseBinaryFile.columnsTable), "r");
                     _rowData = new ArrayList<>();
                     _colData = new ArrayList<>();
                     _colNames = new ArrayList<>();
@@ -86,17 +174,17 @@ public class TableInfo{
                     for (Integer pageNo : bPlusTree.getAllLeaves()) {
                         Page page = new Page(pageNo, columnsCatalog);
                         for (TableRow record : page.getPageRows()) {
-                            if (record._fields.get(0)._strValue.equals(_tableName)) {
+                            if (record.getField(0)._strValue.equals(_tableName)) {
                                 //set column information in the data members of the class
                                 _rowData.add(record);
-                                _colNames.add(record._fields.get(1)._strValue);
+                                _colNames.add(record.getField(1)._strValue);
                                 TableCol colInfo = new TableCol(
-                                        _tableName, Type.get(record._fields.get(2)._strValue),
-                                        record._fields.get(1)._strValue, record._fields.get(6)._strValue.equals("YES"),
-                                        record._fields.get(4)._strValue.equals("YES"), Short.parseShort(record._fields.get(3)._strValue)
+                                        _tableName, Type.get(record.getField(2)._strValue),
+                                        record.getField(1)._strValue, record.getField(6)._strValue.equals("YES"),
+                                        record.getField(4)._strValue.equals("YES"), Short.parseShort(record.getField(3)._strValue)
                                 );
 
-                                if(record._fields.get(5)._strValue.equals("PRI"))
+                                if(record.getField(5)._strValue.equals("PRI"))
                                     colInfo._isPrimaryKey = true;
 
                                 _colData.add(colInfo);
@@ -104,7 +192,9 @@ public class TableInfo{
                         }
                     }
                     // 'rowid' column doesn't exist here
-                    columnsCatalog.close();
+                    BufferPool.close(columnsCatalog);
+                    if (!_tableName.equals(DavisBaseBinaryFile.tablesTable) && !_tableName.equals(DavisBaseBinaryFile.columnsTable))
+                        _clusteredKey = getClusteredKey();
                 } catch (Exception e) {
                     System.out.println("ERROR: unable to get complete column data for " + _tableName);
                 }
@@ -116,6 +206,24 @@ public class TableInfo{
         }
     }
 
+    // the clustering is kept in the file header, the table file may not be there yet
+    private ClusteredKey getClusteredKey() throws IOException {
+        String tablePath = DavisBasePrompt.getTBLFilePath(_tableName);
+        if (!new File(tablePath).isFile())
+            return null;
+        RandomAccessFile tableFile = BufferPool.open(tablePath, "r");
+        try {
+            return BufferPool.getHeader(tableFile)._clusteredKey;
+        } finally {
+            BufferPool.close(tableFile);
+        }
+    }
+
+    // a clustered key of this single column, the table tree itself finds its rows
+    public boolean isClusteredKey(int ordinal) {
+        return _clusteredKey != null && _clusteredKey._ordinals.length == 1 && _clusteredKey._ordinals[0] == ordinal;
+    }
+
     public boolean checkColumnExists(List<String> columns) {
         if(columns.size() == 0)
             return true;
@@ -143,12 +251,12 @@ public class TableInfo{
     public void updateCatalog(){
         // update root page, last_id and record_count in the tables catalog
         try{
-            RandomAccessFile tableFile = new RandomAccessFile(DavisBasePrompt.getTBLFilePath(_tableName), "r");
+            RandomAccessFile tableFile = BufferPool.open(DavisBasePrompt.getTBLFilePath(_tableName), "r");
             // re-found the root page number
             int rootPageNo = DavisBaseBinaryFile.getRootPageNo(tableFile);
-            tableFile.close();
+            BufferPool.close(tableFile);
 
-            RandomAccessFile davisbaseTablesCatalog = new RandomAccessFile(DavisBasePrompt.getTBLFilePath(DavisBaseBinaryFile.tablesTable), "rw");
+            RandomAccessFile davisbaseTablesCatalog = BufferPool.open(DavisBasePrompt.getTBLFilePath(DavisBaseBinaryFile.tablesTable), "rw");
             DavisBaseBinaryFile tablesBinaryFile = new DavisBaseBinaryFile(davisbaseTablesCatalog);
 
             TableInfo tablesInfo = new TableInfo(DavisBaseBinaryFile.tablesTable);
@@ -171,33 +279,44 @@ public class TableInfo{
 
             tablesBinaryFile.updateRecords(tablesInfo,condition,null,0,columns,newValues);
 
-            davisbaseTablesCatalog.close();
+            BufferPool.close(davisbaseTablesCatalog);
         } catch(IOException e){
             System.out.println("Error: unable to update meta data for " + _tableName);
         }
     }
 
     public boolean validateInsert(List<Field> row) throws IOException{
-        RandomAccessFile tableFile = new RandomAccessFile(DavisBasePrompt.getTBLFilePath(_tableName), "r");
+        RandomAccessFile tableFile = BufferPool.open(DavisBasePrompt.getTBLFilePath(_tableName), "r");
         DavisBaseBinaryFile file = new DavisBaseBinaryFile(tableFile);
 
+        // the clustered key is looked up in the table tree itself, whatever its columns
+        if (_clusteredKey != null) {
+            byte[] key = _clusteredKey.encode(row);
+            if (ClusteredTable.find(tableFile, _clusteredKey, key) != -1) {
+                System.out.println("ERROR: Insert failed: Primary key " + _clusteredKey.toString(key) + " should be unique.");
+                BufferPool.close(tableFile);
+                return false;
+            }
+        }
+
         for(int i=0;i<_colData.size();i++) {
             WhereCondition condition = new WhereCondition(_colData.get(i)._type);
             condition._columnName = _colData.get(i)._columnName;
             condition._columnOrdinal = i;
             condition.setOperator("=");
 
-            if(_colData.get(i)._isUnique)
+            if(_colData.get(i)._isUnique && !isClusteredKey(i))
             {
+                // a probe of the index of the column (see TableIndex.createUniqueIndexes), not a scan
                 condition.setConditionValue(row.get(i)._strValue);
                 if(file.recordExists(this, condition)){
                     System.out.println("ERROR: Insert failed: Column "+ _colData.get(i)._columnName + " should be unique.");
-                    tableFile.close();
+                    BufferPool.close(tableFile);
                     return false;
                 }
             }
         }
-        tableFile.close();
+        BufferPool.close(tableFile);
         return true;
     }
 }
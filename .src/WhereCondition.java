@@ -15,7 +15,11 @@ public class WhereCondition{
     int _columnOrdinal;
     Type _type;
 
+    // the ordinal of a condition on rowid, see TableRow.getStrValue
+    static final int rowIdOrdinal = -1;
+
     WhereCondition(Type dataType) { _type = dataType;}
+
     public void setConditionValue(String conditionValue) {
         _comparedValue = conditionValue;
         _comparedValue = _comparedValue.replace("'", "");
@@ -67,7 +71,8 @@ public class WhereCondition{
         OperatorType operation = getOperation();
         if(currentValue.toLowerCase().equals("null") || _comparedValue.toLowerCase().equals("null"))
             return doOperationOnDifference(operation,compare(currentValue,_comparedValue,Type.NULL));
-        if (_type == Type.TEXT || _type == Type.NULL)
+        // a date is printed with every field at its full width, so it sorts like its value
+        if (_type == Type.TEXT || _type == Type.NULL || _type == Type.DATE || _type == Type.DATETIME)
             return doStringCompare(currentValue, operation);
         else if (_type == Type.DOUBLE || _type == Type.FLOAT){
             switch (operation) {
@@ -152,7 +157,16 @@ public class WhereCondition{
                 }
             }
 
-            if (tableInfo._tableExist && tableInfo.checkColumnExists(new ArrayList<>(Arrays.asList(condition._columnName)))) {
+            if (tableInfo._tableExist && condition._columnName.equals("rowid")) {
+                // the row id is the key of the table tree, not a column
+                condition._columnOrdinal = rowIdOrdinal;
+                condition._type = Type.INT;
+                try {
+                    Integer.parseInt(condition._comparedValue);
+                } catch (Exception e) {
+                    throw new Exception("ERROR: Invalid Comparison " + e);
+                }
+            } else if (tableInfo._tableExist && tableInfo.checkColumnExists(new ArrayList<>(Arrays.asList(condition._columnName)))) {
                 condition._columnOrdinal = tableInfo._colNames.indexOf(condition._columnName);
                 condition._type = tableInfo._colData.get(condition._columnOrdinal)._type;
 
@@ -160,6 +174,8 @@ public class WhereCondition{
                     try {
                         if (condition._type == Type.DOUBLE || condition._type == Type.FLOAT)
                             Double.parseDouble(condition._comparedValue);
+                        else if (condition._type == Type.DATE || condition._type == Type.DATETIME)
+                            condition._comparedValue = Field.toStrValue(condition._type, new Field(condition._type, condition._comparedValue)._byteAtt);
                         else
                             Long.parseLong(condition._comparedValue);
                     } catch (Exception e) {
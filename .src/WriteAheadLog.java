@@ -0,0 +1,602 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * Author: Bo-Yu Huang
+ * Date: 8/9/20
+ */
+
+/*
+ * Write-ahead log of every page and file header change, shared by all table files.
+ *
+ * A record holds the full image of the page (or header) after the change, so recovery redoes:
+ * it copies the image back unless the page on disk already carries the same or a later LSN. The
+ * changes of a statement are logged together when the statement ends, followed by a commit
+ * record; recovery ignores the records after the last commit.
+ *
+ * A statement that changes more pages than the buffer pool holds has some of them written to the
+ * table files before it commits (BufferPool.steal). Each of those writes follows an undo record
+ * with the image the page had on disk before it. Recovery first puts back the undo images logged
+ * after the last commit, the oldest image of a page last, then redoes.
+ *
+ * The log is a sequence of segment files in data/wal, named after the LSN of their first record.
+ * A new segment is started once the current one reaches segmentSizeKB (--log-segment-kb), the
+ * checkpoint deletes the segments that are not needed for recovery anymore.
+ *
+ * Segment file layout:
+ *  0x00  long      LSN of the first record (the next LSN when the segment is empty)
+ *  then the records:
+ *        int       length of the rest of the record
+ *        long      LSN
+ *        byte      record type: recPAGE, recHEADER, recCOMMIT or recUNDO
+ *        UTF       path of the table file      (all but commit records)
+ *        int       page number                 (all but commit records)
+ *        int, []   length and bytes of the image (all but commit records)
+ *        int       CRC32 of the record from the LSN on, a torn record at the tail fails it
+ */
+enum Durability{
+    FULL,
+    BATCHED,
+    NONE;
+}
+
+class LogRecord {
+    long _lsn;
+    byte _type;
+    String _filePath;
+    int _pageNum;
+    byte[] _image;
+}
+
+public class WriteAheadLog {
+    static final byte recPAGE = 1;
+    static final byte recHEADER = 2;
+    static final byte recCOMMIT = 3;
+    static final byte recUNDO = 4;
+
+    static String logDirectory = "data/wal";
+    static int segmentSizeKB = 1024;
+
+    /*
+     * When the log is forced to disk (SET DURABILITY or --durability at startup):
+     *  FULL     at the end of every statement, a committed statement is never lost
+     *  BATCHED  by a background thread every flushIntervalMs (--flush-interval-ms), a crash loses
+     *           at most the statements of the last interval
+     *  NONE     never, the log is written at the end of every statement and the OS decides when
+     *           it reaches the disk
+     * The table files themselves only have to be forced when the log is emptied.
+     */
+    static Durability durability = Durability.FULL;
+    static int flushIntervalMs = 100;
+    static Thread _flusher;
+
+    /*
+     * A checkpoint runs in the background every checkpointIntervalMs (--checkpoint-interval-ms)
+     * if something was logged since the last one, see checkpoint().
+     */
+    static int checkpointIntervalMs = 1000;
+    static int checkpointBatchPages = 16;
+    static Thread _checkpointer;
+
+    /*
+     * The background threads are stopped with a flag, not with an interrupt: an interrupt while a
+     * thread forces a FileChannel closes the channel, and with it the file the pool writes to.
+     */
+    static volatile boolean _stopFlusher;
+    static volatile boolean _stopCheckpointer;
+    static final Object _sleeping = new Object();
+
+    // <LSN of the first record, segment file>, the last one is being written
+    static TreeMap<Long, File> _segments = new TreeMap<>();
+    static RandomAccessFile _log;
+    static long _logEnd;
+    static long _nextLSN = 1;
+    // every record with a LSN up to _flushedLSN is on disk
+    static long _flushedLSN = 0;
+
+    // records appended but not yet written, with the LSN of the last one
+    static ByteArrayOutputStream _pending = new ByteArrayOutputStream();
+    static long _pendingLSN = 0;
+    static boolean _isFlushing = false;
+
+    /*
+     * End of a statement: log the after-image of every page and header it changed and, with FULL
+     * durability, wait for the commit record to be on disk.
+     */
+    public static void commit() {
+        try {
+            long commitLSN = BufferPool.logChanges();
+            if (commitLSN != 0 && durability != Durability.BATCHED)
+                flush(commitLSN);
+        } catch (IOException e) {
+            System.out.println("ERROR: unable to write the log " + e.getMessage());
+        }
+    }
+
+    public static void setDurability(Durability level) {
+        durability = level;
+        if (level == Durability.BATCHED && _flusher == null) {
+            _flusher = new Thread(() -> {
+                while (pause(flushIntervalMs, () -> _stopFlusher)) {
+                    try {
+                        if (durability == Durability.BATCHED)
+                            flushAppended();
+                    } catch (IOException e) {
+                        System.out.println("ERROR: unable to write the log " + e.getMessage());
+                    }
+                }
+            }, "log flusher");
+            _flusher.setDaemon(true);
+            _flusher.start();
+        }
+        try {
+            // the statements committed so far get the new level as well
+            if (level != Durability.BATCHED)
+                flushAppended();
+        } catch (IOException e) {
+            System.out.println("ERROR: unable to write the log " + e.getMessage());
+        }
+    }
+
+    // Log the image of a page, the LSN is stamped in the page header before it is copied
+    static synchronized long appendPage(String filePath, int pageNum, ByteBuffer page) throws IOException {
+        long lsn = _nextLSN++;
+        page.putLong(Page.pageLSN, lsn);
+        byte[] image = new byte[page.capacity()];
+        Page.readBytes(page, 0, image);
+        append(lsn, recPAGE, filePath, pageNum, image);
+        return lsn;
+    }
+
+    static synchronized long appendHeader(String filePath, FileHeader header) throws IOException {
+        long lsn = _nextLSN++;
+        header._lsn = lsn;
+        append(lsn, recHEADER, filePath, 0, header.toBytes());
+        return lsn;
+    }
+
+    // Log the image a page has on disk before a change that is not committed yet is written over it
+    static synchronized long appendUndo(String filePath, int pageNum, byte[] image) throws IOException {
+        long lsn = _nextLSN++;
+        append(lsn, recUNDO, filePath, pageNum, image);
+        return lsn;
+    }
+
+    // A LSN no record will have, for pages written outside the log (LOAD DATA, see BulkLoader)
+    static synchronized long reserveLSN() {
+        return _nextLSN++;
+    }
+
+    static synchronized long appendCommit() throws IOException {
+        long lsn = _nextLSN++;
+        append(lsn, recCOMMIT, null, 0, null);
+        return lsn;
+    }
+
+    private static void append(long lsn, byte type, String filePath, int pageNum, byte[] image) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeLong(lsn);
+        out.writeByte(type);
+        if (type != recCOMMIT) {
+            out.writeUTF(filePath);
+            out.writeInt(pageNum);
+            out.writeInt(image.length);
+            out.write(image);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.toByteArray());
+        out.writeInt((int) crc.getValue());
+
+        DataOutputStream pending = new DataOutputStream(_pending);
+        pending.writeInt(record.size());
+        record.writeTo(pending);
+        _pendingLSN = lsn;
+    }
+
+    static void flushAppended() throws IOException {
+        long lsn;
+        synchronized (WriteAheadLog.class) {
+            lsn = _nextLSN - 1;
+        }
+        flush(lsn);
+    }
+
+    /*
+     * Make the log durable up to lsn (only written, not forced, with NONE durability).
+     * Group commit: the first committer to get here writes everything appended so far and forces
+     * it with one fsync, the committers that arrive while it is forcing wait for it and are
+     * flushed together by the next one.
+     */
+    static void flush(long lsn) throws IOException {
+        byte[] records;
+        long lastLSN;
+        synchronized (WriteAheadLog.class) {
+            while (_isFlushing && _flushedLSN < lsn) {
+                try {
+                    WriteAheadLog.class.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting for the log");
+                }
+            }
+            if (_flushedLSN >= lsn)
+                return;
+            _isFlushing = true;
+            records = _pending.toByteArray();
+            lastLSN = _pendingLSN;
+            _pending.reset();
+        }
+
+        boolean written = false;
+        try {
+            // the log is written and forced outside the lock, new records keep piling up meanwhile
+            if (_logEnd >= (long) segmentSizeKB * 1024) {
+                // the first record of the batch starts the next segment
+                long firstLSN = ByteBuffer.wrap(records).getLong(4);
+                synchronized (WriteAheadLog.class) {
+                    _log.close();
+                    openSegment(firstLSN);
+                }
+            }
+            _log.seek(_logEnd);
+            _log.write(records);
+            if (durability != Durability.NONE)
+                _log.getChannel().force(false);
+            written = true;
+        } finally {
+            synchronized (WriteAheadLog.class) {
+                if (written) {
+                    _logEnd += records.length;
+                    _flushedLSN = lastLSN;
+                } else {
+                    // put the records back in front of the ones appended meanwhile
+                    byte[] appended = _pending.toByteArray();
+                    _pending.reset();
+                    _pending.write(records, 0, records.length);
+                    _pending.write(appended, 0, appended.length);
+                }
+                _isFlushing = false;
+                WriteAheadLog.class.notifyAll();
+            }
+        }
+    }
+
+    /*
+     * Startup: undo the pages stolen by a statement that did not commit, redo the committed records
+     * on the table files, then empty the log.
+     * The table files are written directly, the buffer pool is not used yet.
+     */
+    public static void recover() {
+        try {
+            File directory = new File(logDirectory);
+            directory.mkdirs();
+            for (File segment : directory.listFiles((dir, name) -> name.endsWith(".log")))
+                _segments.put(Long.parseLong(segment.getName().replace(".log", "")), segment);
+
+            List<LogRecord> records = new ArrayList<>();
+            for (File segment : _segments.values()) {
+                try (RandomAccessFile log = new RandomAccessFile(segment, "r")) {
+                    if (log.length() < 8)
+                        break;
+                    _nextLSN = Math.max(_nextLSN, log.readLong());
+                    // a torn record ends the log
+                    if (!readRecords(log, records))
+                        break;
+                }
+            }
+            int lastCommit = -1;
+            int statements = 0;
+            for (int i = 0; i < records.size(); i++) {
+                _nextLSN = Math.max(_nextLSN, records.get(i)._lsn + 1);
+                if (records.get(i)._type == recCOMMIT) {
+                    lastCommit = i;
+                    statements++;
+                }
+            }
+
+            HashMap<String, RandomAccessFile> tableFiles = new HashMap<>();
+            HashMap<String, Long> checkpointLSNs = new HashMap<>();
+            HashMap<String, CompressedFile> compressedFiles = new HashMap<>();
+            int pagesUndone = 0;
+            for (int i = records.size() - 1; i > lastCommit; i--) {
+                LogRecord record = records.get(i);
+                if (record._type != recUNDO || !openTableFile(record._filePath, tableFiles, checkpointLSNs, compressedFiles))
+                    continue;
+                writeImage(tableFiles.get(record._filePath), compressedFiles.get(record._filePath), record);
+                pagesUndone++;
+            }
+
+            int pagesWritten = 0;
+            for (int i = 0; i < lastCommit; i++) {
+                LogRecord record = records.get(i);
+                if (record._type == recCOMMIT || record._type == recUNDO)
+                    continue;
+                // the table was dropped after the record was logged
+                if (!openTableFile(record._filePath, tableFiles, checkpointLSNs, compressedFiles))
+                    continue;
+                RandomAccessFile file = tableFiles.get(record._filePath);
+                // the change is older than the last checkpoint of the file, it is on disk already
+                if (record._lsn < checkpointLSNs.get(record._filePath))
+                    continue;
+
+                // the pages of a compressed table are found through its page map, page 0 is never compressed
+                CompressedFile compressedFile = compressedFiles.get(record._filePath);
+                if (compressedFile != null && record._type == recPAGE) {
+                    long diskLSN = 0;
+                    try {
+                        diskLSN = compressedFile.read(record._pageNum).getLong(Page.pageLSN);
+                    } catch (IOException e) {
+                        // torn by the crash, the logged image replaces it
+                    }
+                    if (diskLSN < record._lsn) {
+                        writeImage(file, compressedFile, record);
+                        pagesWritten++;
+                    }
+                    continue;
+                }
+
+                long start = (long) record._pageNum * record._image.length;
+                int lsnOffset = record._type == recPAGE ? Page.pageLSN : FileHeader.lsnOffset;
+                long diskLSN = 0;
+                if (file.length() >= start + lsnOffset + 8) {
+                    file.seek(start + lsnOffset);
+                    diskLSN = file.readLong();
+                }
+                if (diskLSN < record._lsn) {
+                    writeImage(file, null, record);
+                    pagesWritten++;
+                }
+            }
+            for (CompressedFile compressedFile : compressedFiles.values()) {
+                compressedFile.force();
+                compressedFile.close();
+            }
+            for (RandomAccessFile file : tableFiles.values()) {
+                file.getChannel().force(false);
+                file.close();
+            }
+            if (pagesUndone > 0)
+                System.out.println("Rolled back a statement that did not commit, " + pagesUndone + " page(s) put back");
+            if (pagesWritten > 0)
+                System.out.println("Recovered " + statements + " statement(s) from the log, " + pagesWritten + " page(s) written");
+            truncate();
+        } catch (IOException e) {
+            System.out.println("ERROR: unable to recover from the log " + e.getMessage());
+        }
+    }
+
+    // Open a table file the first time recovery needs it, false if it was dropped after the record was logged
+    private static boolean openTableFile(String path, HashMap<String, RandomAccessFile> tableFiles, HashMap<String, Long> checkpointLSNs,
+                                         HashMap<String, CompressedFile> compressedFiles) throws IOException {
+        if (tableFiles.containsKey(path))
+            return true;
+        if (!new File(path).exists())
+            return false;
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        tableFiles.put(path, file);
+        long checkpointLSN = 0;
+        if (file.length() >= FileHeader.headerLength) {
+            file.seek(FileHeader.checkpointLSNOffset);
+            checkpointLSN = file.readLong();
+        }
+        checkpointLSNs.put(path, checkpointLSN);
+        try {
+            FileHeader header = FileHeader.read(file);
+            if (header.isCompressed())
+                compressedFiles.put(path, new CompressedFile(path, file, header));
+        } catch (IOException e) {
+            // no complete header yet, the pages are where they would be uncompressed
+        }
+        return true;
+    }
+
+    private static void writeImage(RandomAccessFile file, CompressedFile compressedFile, LogRecord record) throws IOException {
+        if (compressedFile != null && record._type != recHEADER)
+            compressedFile.write(record._pageNum, record._image);
+        else {
+            file.seek((long) record._pageNum * record._image.length);
+            file.write(record._image);
+        }
+    }
+
+    // Read the records of a segment, false if it ends with a torn one
+    private static boolean readRecords(RandomAccessFile log, List<LogRecord> records) throws IOException {
+        long position = 8;
+        while (position + 4 <= log.length()) {
+            log.seek(position);
+            int length = log.readInt();
+            if (length < 13 || position + 4 + length > log.length())
+                return false;
+            byte[] raw = new byte[length];
+            log.readFully(raw);
+
+            CRC32 crc = new CRC32();
+            crc.update(raw, 0, length - 4);
+            if ((int) crc.getValue() != ByteBuffer.wrap(raw).getInt(length - 4))
+                return false;
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+            LogRecord record = new LogRecord();
+            try {
+                record._lsn = in.readLong();
+                record._type = in.readByte();
+                if (record._type != recCOMMIT) {
+                    record._filePath = in.readUTF();
+                    record._pageNum = in.readInt();
+                    record._image = new byte[in.readInt()];
+                    in.readFully(record._image);
+                }
+            } catch (EOFException e) {
+                return false;
+            }
+            records.add(record);
+            position += 4 + length;
+        }
+        return position == log.length();
+    }
+
+    /*
+     * Fuzzy checkpoint, statements keep going while it runs. The dirty pages are written back a
+     * batch at a time, so a statement waits at most for one small batch, and the table files are
+     * forced outside the buffer pool lock. Afterwards every change logged before the redo LSN is
+     * on disk: it is recorded in the file headers and the segments before it are deleted.
+     */
+    static void checkpoint() throws IOException {
+        // the write-backs must not wait for the log while they hold the pool
+        flushAppended();
+        List<Frame> dirtyFrames = BufferPool.getDirtyFrames();
+        for (int i = 0; i < dirtyFrames.size(); i += checkpointBatchPages)
+            BufferPool.writeBack(dirtyFrames.subList(i, Math.min(i + checkpointBatchPages, dirtyFrames.size())));
+        BufferPool.writeBackHeaders();
+
+        long redoLSN = BufferPool.getRedoLSN();
+        forceFiles();
+        BufferPool.setCheckpointLSN(redoLSN);
+        forceFiles();
+
+        synchronized (WriteAheadLog.class) {
+            // a segment can go when the next one starts at or before the redo LSN
+            while (_segments.size() > 1) {
+                Long first = _segments.firstKey();
+                if (_segments.higherKey(first) > redoLSN)
+                    break;
+                _segments.remove(first).delete();
+            }
+        }
+    }
+
+    private static void forceFiles() throws IOException {
+        for (FileChannel channel : BufferPool.getChannels()) {
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // the table was dropped or vacuumed meanwhile
+            }
+        }
+        for (MappedFile mappedFile : BufferPool.getMappedFiles())
+            mappedFile.force();
+    }
+
+    public static void startCheckpointer() {
+        _checkpointer = new Thread(() -> {
+            long lastCheckpointLSN = 0;
+            while (pause(checkpointIntervalMs, () -> _stopCheckpointer)) {
+                try {
+                    long lsn;
+                    synchronized (WriteAheadLog.class) {
+                        lsn = _nextLSN;
+                    }
+                    if (lsn != lastCheckpointLSN) {
+                        checkpoint();
+                        lastCheckpointLSN = lsn;
+                    }
+                } catch (IOException e) {
+                    System.out.println("ERROR: checkpoint failed " + e.getMessage());
+                }
+            }
+        }, "checkpointer");
+        _checkpointer.setDaemon(true);
+        _checkpointer.start();
+    }
+
+    // Sleep between two runs of a background thread, false when the thread has to stop
+    private static boolean pause(int ms, BooleanSupplier isStopped) {
+        synchronized (_sleeping) {
+            try {
+                // wait(0) would never wake up, an interval of 0 means one run right after the other
+                if (!isStopped.getAsBoolean())
+                    _sleeping.wait(Math.max(ms, 1));
+            } catch (InterruptedException e) {
+                return false;
+            }
+            return !isStopped.getAsBoolean();
+        }
+    }
+
+    private static void wakeUp() {
+        synchronized (_sleeping) {
+            _sleeping.notifyAll();
+        }
+    }
+
+    // Wait for the running checkpoint to finish and stop the background checkpoints (on exit)
+    public static void stopCheckpointer() {
+        if (_checkpointer == null)
+            return;
+        _stopCheckpointer = true;
+        wakeUp();
+        try {
+            _checkpointer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        _checkpointer = null;
+    }
+
+    /*
+     * Empty the log, only when every logged change is in the table files (after recovery and
+     * after the buffer pool was flushed on exit). The next LSN is kept so LSNs never go back.
+     */
+    static synchronized void truncate() throws IOException {
+        while (_isFlushing) {
+            try {
+                WriteAheadLog.class.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for the log");
+            }
+        }
+        _pending.reset();
+        _flushedLSN = _nextLSN - 1;
+        if (_log != null)
+            _log.close();
+        for (File segment : _segments.values())
+            segment.delete();
+        _segments.clear();
+        openSegment(_nextLSN);
+    }
+
+    private static void openSegment(long firstLSN) throws IOException {
+        File segment = new File(logDirectory, String.format("%020d.log", firstLSN));
+        _log = new RandomAccessFile(segment, "rw");
+        _log.setLength(0);
+        _log.writeLong(firstLSN);
+        _log.getChannel().force(false);
+        _logEnd = 8;
+        _segments.put(firstLSN, segment);
+    }
+
+    public static void close() {
+        if (_flusher != null) {
+            _stopFlusher = true;
+            wakeUp();
+            try {
+                _flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            truncate();
+            _log.close();
+        } catch (IOException e) {
+            System.out.println("ERROR: unable to close the log " + e.getMessage());
+        }
+    }
+}